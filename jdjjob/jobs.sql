@@ -8,5 +8,39 @@ CREATE TABLE `jobs` (
 `locked_by` VARCHAR(255) NULL,
 `failed_at` DATETIME NULL,
 `error` TEXT NULL,
+`created_at` DATETIME NOT NULL,
+`unique_key` VARCHAR(255) NULL,
+`payload_hash` CHAR(64) NULL,
+`pending_parents` INT UNSIGNED NOT NULL DEFAULT 0,
+`deadline` DATETIME NULL,
+`tenant` VARCHAR(255) NULL,
+`affinity` VARCHAR(255) NULL,
+UNIQUE KEY `uniq_job` (`unique_key`),
+KEY `idx_queue_run_at` (`queue`, `run_at`),
+KEY `idx_queue_deadline` (`queue`, `deadline`),
+KEY `idx_queue_tenant` (`queue`, `tenant`, `created_at`),
+KEY `idx_queue_failed_tenant` (`queue`, `failed_at`, `tenant`),
+KEY `idx_queue_affinity` (`queue`, `affinity`, `created_at`),
+KEY `idx_payload_hash` (`payload_hash`)
+) ENGINE = INNODB;
+
+CREATE TABLE `jobs_payloads` (
+`hash` CHAR(64) NOT NULL PRIMARY KEY,
+`payload` LONGTEXT NOT NULL,
 `created_at` DATETIME NOT NULL
-) ENGINE = INNODB;
\ No newline at end of file
+) ENGINE = INNODB;
+
+CREATE TABLE `jobs_dependencies` (
+`parent_id` INT UNSIGNED NOT NULL,
+`child_id` INT UNSIGNED NOT NULL,
+PRIMARY KEY (`parent_id`, `child_id`),
+KEY `idx_child_id` (`child_id`)
+) ENGINE = INNODB;
+
+CREATE TABLE `jobs_results` (
+`job_id` INT UNSIGNED NOT NULL PRIMARY KEY,
+`status` TINYINT UNSIGNED NOT NULL,
+`result` TEXT NULL,
+`expires_at` DATETIME NOT NULL,
+KEY `idx_expires_at` (`expires_at`)
+) ENGINE = INNODB;
@@ -0,0 +1,16 @@
+package org.fartpig.jdjjob;
+
+/**
+ * Job handler interface for jobs that should run on the workers that
+ * prefer their affinity key, see the `affinity` worker option. Jobs of
+ * other handlers have their class name as their affinity key.
+ */
+public interface DJAffinityHandlerInterface extends DJJobHandlerInterface {
+	/**
+	 * Called on enqueue, e.g. a partner or reference data set the job needs
+	 * warm.
+	 *
+	 * @return string The affinity key of the job.
+	 */
+	public String djjobAffinityKey();
+}
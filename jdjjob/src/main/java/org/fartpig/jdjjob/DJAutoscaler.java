@@ -0,0 +1,257 @@
+package org.fartpig.jdjjob;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits how many jobs a worker runs at once, and adjusts that limit between
+ * a minimum and a maximum from what it observes every interval:
+ *
+ * - the backlog, the number of ready jobs in the worker's queues,
+ * - the age of the oldest ready job, which is how long the next job started
+ * has waited since it was enqueued or became due,
+ * - the average wait for a pooled connection, see DJMetrics.POOL_WAIT.
+ *
+ * When the pool is saturated it scales down, as more jobs would only wait
+ * longer for connections. Otherwise it doubles the limit while there is a
+ * backlog that is older than the target latency or keeps all slots busy, and
+ * lowers it by one while there is no backlog and slots are idle. After a
+ * change the next one up waits for the up cooldown, the next one down for
+ * the longer down cooldown, so the limit does not flap.
+ *
+ * Every check and decision is recorded in DJMetrics.
+ */
+public class DJAutoscaler extends DJBase implements Runnable {
+
+	private String name;
+	private List<String> queues;
+	private int min;
+	private int max;
+	private long intervalMs;
+	private long upCooldownMs;
+	private long downCooldownMs;
+	private long targetLatencyMs;
+	private long poolWaitLimitUs;
+
+	// guarded by this
+	private int limit;
+	private int busy = 0;
+
+	private long lastChangeMs;
+	private long poolWaitCount;
+	private long poolWaitTotal;
+	private volatile boolean running = false;
+	private Thread thread;
+
+	/**
+	 * @param string
+	 *            name The name of the worker.
+	 * @param List<String>
+	 *            queues The queues whose backlog to watch.
+	 * @param int
+	 *            initial The limit to start with.
+	 * @param int
+	 *            min The lowest limit.
+	 * @param int
+	 *            max The highest limit.
+	 */
+	public DJAutoscaler(String name, List<String> queues, int initial, int min, int max) {
+		this.name = name;
+		this.queues = new ArrayList<String>(queues);
+		this.min = Math.max(1, min);
+		this.max = Math.max(this.min, max);
+		this.limit = Math.min(this.max, Math.max(this.min, initial));
+		this.setTimings(10000, 30000, 120000, 5000, 50000);
+		DJMetrics.record(DJMetrics.CONCURRENCY, this.limit);
+	}
+
+	/**
+	 * @param long
+	 *            intervalMs How often to check.
+	 * @param long
+	 *            upCooldownMs How long after a change to wait before scaling
+	 *            up.
+	 * @param long
+	 *            downCooldownMs How long after a change to wait before
+	 *            scaling down.
+	 * @param long
+	 *            targetLatencyMs How long the oldest ready job may have waited
+	 *            before scaling up.
+	 * @param long
+	 *            poolWaitLimitUs The average wait for a connection above which
+	 *            the pool counts as saturated.
+	 */
+	public void setTimings(long intervalMs, long upCooldownMs, long downCooldownMs, long targetLatencyMs,
+			long poolWaitLimitUs) {
+		this.intervalMs = intervalMs;
+		this.upCooldownMs = upCooldownMs;
+		this.downCooldownMs = downCooldownMs;
+		this.targetLatencyMs = targetLatencyMs;
+		this.poolWaitLimitUs = poolWaitLimitUs;
+	}
+
+	/**
+	 * Waits for a free slot and takes it.
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (this.busy >= this.limit) {
+			this.wait();
+		}
+		this.busy += 1;
+	}
+
+	/**
+	 * Gives a slot taken by acquire back.
+	 */
+	public synchronized void release() {
+		this.busy -= 1;
+		this.notifyAll();
+	}
+
+	public synchronized int getLimit() {
+		return this.limit;
+	}
+
+	public synchronized int getBusy() {
+		return this.busy;
+	}
+
+	private synchronized void setLimit(int limit) {
+		this.limit = limit;
+		this.notifyAll();
+	}
+
+	/**
+	 * Starts checking every interval, if the limit may change at all.
+	 */
+	public void start() {
+		if (this.min == this.max) {
+			return;
+		}
+		this.lastChangeMs = System.currentTimeMillis();
+		this.poolWaitCount = DJMetrics.getCount(DJMetrics.POOL_WAIT);
+		this.poolWaitTotal = DJMetrics.getTotal(DJMetrics.POOL_WAIT);
+		this.running = true;
+		this.thread = new Thread(this, "djjob-autoscaler-" + this.name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Stops checking. The limit stays as it is.
+	 */
+	public void stop() {
+		this.running = false;
+		if (this.thread != null) {
+			this.thread.interrupt();
+		}
+	}
+
+	public void run() {
+		while (this.running) {
+			try {
+				Thread.sleep(this.intervalMs);
+			} catch (InterruptedException e) {
+				break;
+			}
+			long[] backlog = this.getBacklog();
+			this.adjust(System.currentTimeMillis(), backlog[0], backlog[1], this.getPoolWaitUs());
+		}
+	}
+
+	/**
+	 * @return long[] The number of ready jobs in the queues and the age in
+	 *         milliseconds of the oldest one.
+	 */
+	protected long[] getBacklog() {
+		long count = 0;
+		long age = 0;
+		for (String queue : this.queues) {
+			DJShard shard = DJShardRouter.getShard(queue);
+			if (!shard.hasJobsTable()) {
+				// the other stores only count their jobs
+				long[] status = shard.getJobStore().status(queue);
+				count += status[0] - status[1] - status[2];
+				continue;
+			}
+			DJJobQuery query = new DJJobQuery(queue).state(DJJobQuery.PENDING);
+			List<Object> args = new ArrayList<Object>();
+			String where = query.where(args);
+			List<Object[]> rs = query.getShard().getReadDao()
+					.executeQuery("SELECT COUNT(*), TIMESTAMPDIFF(SECOND, MIN(COALESCE(run_at, created_at)), NOW())"
+							+ " FROM " + query.getShard().getJobsTable() + " WHERE " + where, args);
+			if (rs.isEmpty()) {
+				continue;
+			}
+			count += ((Number) rs.get(0)[0]).longValue();
+			if (rs.get(0)[1] != null) {
+				age = Math.max(age, ((Number) rs.get(0)[1]).longValue() * 1000);
+			}
+		}
+		return new long[] { count, age };
+	}
+
+	/**
+	 * @return long The average wait for a connection since the last check.
+	 */
+	private long getPoolWaitUs() {
+		long count = DJMetrics.getCount(DJMetrics.POOL_WAIT);
+		long total = DJMetrics.getTotal(DJMetrics.POOL_WAIT);
+		long waits = count - this.poolWaitCount;
+		long average = waits > 0 ? (total - this.poolWaitTotal) / waits : 0;
+		this.poolWaitCount = count;
+		this.poolWaitTotal = total;
+		return average;
+	}
+
+	/**
+	 * Checks the observations once and changes the limit if they call for it.
+	 *
+	 * @param long
+	 *            nowMs The current time.
+	 * @param long
+	 *            backlog The number of ready jobs.
+	 * @param long
+	 *            backlogAgeMs The age of the oldest ready job.
+	 * @param long
+	 *            poolWaitUs The average wait for a connection.
+	 *
+	 * @return int The new limit.
+	 */
+	public int adjust(long nowMs, long backlog, long backlogAgeMs, long poolWaitUs) {
+		DJMetrics.record(DJMetrics.BACKLOG, backlog);
+		DJMetrics.record(DJMetrics.BACKLOG_AGE, backlogAgeMs);
+
+		int limit = this.getLimit();
+		int busy = this.getBusy();
+		long sinceChange = nowMs - this.lastChangeMs;
+		int next = limit;
+		String reason = null;
+		if (poolWaitUs > this.poolWaitLimitUs) {
+			if (limit > this.min && sinceChange >= this.downCooldownMs) {
+				next = limit - 1;
+				reason = "pool saturated";
+			}
+		} else if (backlog > 0 && (backlogAgeMs > this.targetLatencyMs || busy >= limit)) {
+			if (limit < this.max && sinceChange >= this.upCooldownMs) {
+				next = Math.min(this.max, limit * 2);
+				reason = "backlog";
+			}
+		} else if (backlog == 0 && busy < limit) {
+			if (limit > this.min && sinceChange >= this.downCooldownMs) {
+				next = limit - 1;
+				reason = "idle";
+			}
+		}
+
+		if (next != limit) {
+			this.setLimit(next);
+			this.lastChangeMs = nowMs;
+			DJMetrics.increment(next > limit ? DJMetrics.SCALE_UP : DJMetrics.SCALE_DOWN);
+			log(DJBase.INFO, "[WORKER] %s concurrency %d -> %d (%s: backlog %d, oldest %d ms, pool wait %d us)",
+					this.name, limit, next, reason, backlog, backlogAgeMs, poolWaitUs);
+		}
+		DJMetrics.record(DJMetrics.CONCURRENCY, next);
+		return next;
+	}
+}
@@ -3,6 +3,9 @@ package org.fartpig.jdjjob;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.sql.DataSource;
+
+import org.fartpig.jdjjob.dao.DBUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -83,14 +86,45 @@ public abstract class DJBase {
 
 		DJBase.jobsTable = jobsTable;
 
+		// an embedded database starts empty
+		DataSource dataSource = DBUtils.getDataSource();
+		if (DBUtils.getDialect(dataSource).isEmbedded()) {
+			DBUtils.createTables(dataSource, jobsTable);
+		}
+
 		// searches for retries
 		if (options.containsKey("retries")) {
 			DJBase.retries = (int) Integer.valueOf(options.get(retries));
 		}
 	}
 
+	/**
+	 * Logs a formatted message, formatting it only if the level is enabled.
+	 * The arguments are boxed into their array before the level is checked,
+	 * so calls on hot paths check isLogEnabled() first.
+	 */
 	protected static void log(int severity, String mesg, Object... args) {
-		log(String.format(mesg, args), severity);
+		if (isLogEnabled(severity)) {
+			log(String.format(mesg, args), severity);
+		}
+	}
+
+	/**
+	 * Whether messages of the given severity are written.
+	 */
+	protected static boolean isLogEnabled(int severity) {
+		switch (severity) {
+		case DJBase.CRITICAL:
+		case DJBase.ERROR:
+			return logger.isErrorEnabled();
+		case DJBase.WARN:
+			return logger.isWarnEnabled();
+		case DJBase.INFO:
+			return logger.isInfoEnabled();
+		case DJBase.DEBUG:
+			return logger.isDebugEnabled();
+		}
+		return false;
 	}
 
 	/**
@@ -0,0 +1,21 @@
+package org.fartpig.jdjjob;
+
+import java.util.List;
+
+/**
+ * Job handler interface for jobs that can be performed many at a time.
+ */
+public interface DJBatchJobHandlerInterface extends DJJobHandlerInterface {
+	/**
+	 * Method that will perform a batch of jobs of this handler class in one
+	 * call, when the worker runs with a `batch_size` above 1.
+	 *
+	 * @param List<DJJobHandlerInterface>
+	 *            handlers The handlers of the jobs in the batch, all of this
+	 *            class.
+	 * @return List<Exception> One entry per handler, in order: null when the
+	 *         job succeeded, a DJRetryException to retry it later, or any other
+	 *         exception to fail it. Throwing fails the whole batch.
+	 */
+	public List<Exception> performBatch(List<DJJobHandlerInterface> handlers) throws Exception;
+}
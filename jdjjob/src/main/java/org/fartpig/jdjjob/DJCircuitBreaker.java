@@ -0,0 +1,210 @@
+package org.fartpig.jdjjob;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stops running the jobs of a handler class while most of them fail, e.g.
+ * because the service they call is down, so they do not use up their
+ * attempts.
+ *
+ * A breaker watches the outcomes of the last `window` jobs of its class in
+ * this process. Once at least `minCalls` of them ran and the share of
+ * failures reaches `failureRate`, it opens: claimed jobs of the class are
+ * deferred by the time left until it half-opens, without counting an
+ * attempt. After `openSeconds` one job is let through as a probe, its
+ * success closes the breaker again and its failure opens it for another
+ * `openSeconds`. A probe that does not report back within `openSeconds`,
+ * e.g. because its thread died, is given up and the next job probes.
+ *
+ * Breakers are registered per handler class. A default breaker is copied
+ * for each handler class without its own.
+ */
+public class DJCircuitBreaker {
+
+	// states
+	public static final int CLOSED = 0;
+	public static final int OPEN = 1;
+	public static final int HALF_OPEN = 2;
+
+	private static final Map<Class<?>, DJCircuitBreaker> breakers = new ConcurrentHashMap<Class<?>, DJCircuitBreaker>();
+	private static volatile DJCircuitBreaker defaultBreaker = null;
+
+	private final double failureRate;
+	private final int minCalls;
+	private final long openMs;
+
+	// guarded by this
+	// the outcomes of the last jobs as a ring, true for a failure
+	private final boolean[] outcomes;
+	private int calls = 0;
+	private int failures = 0;
+	private int next = 0;
+	private int state = CLOSED;
+	private long openedAtMs;
+	private boolean probing = false;
+	private long probedAtMs;
+
+	/**
+	 * @param double
+	 *            failureRate The share of failed jobs, from 0 to 1, that opens
+	 *            the breaker.
+	 * @param int
+	 *            window How many of the last jobs the rate is taken over.
+	 * @param int
+	 *            minCalls How many jobs must have run before the rate counts.
+	 * @param long
+	 *            openSeconds How long the breaker stays open before a probe.
+	 */
+	public DJCircuitBreaker(double failureRate, int window, int minCalls, long openSeconds) {
+		this.failureRate = failureRate;
+		this.outcomes = new boolean[Math.max(window, 1)];
+		this.minCalls = Math.max(1, Math.min(minCalls, this.outcomes.length));
+		this.openMs = openSeconds * 1000;
+	}
+
+	/**
+	 * Asks whether a job may run now, letting one probe through once the
+	 * breaker may half-open.
+	 *
+	 * @param long
+	 *            nowMs The current time.
+	 *
+	 * @return long '0' if the job may run, otherwise how many seconds to
+	 *         defer it.
+	 */
+	public synchronized long acquire(long nowMs) {
+		if (this.state == OPEN && nowMs - this.openedAtMs >= this.openMs) {
+			this.state = HALF_OPEN;
+		}
+		if (this.state == CLOSED) {
+			return 0;
+		}
+		if (this.state == HALF_OPEN && (!this.probing || nowMs - this.probedAtMs >= this.openMs)) {
+			this.probing = true;
+			this.probedAtMs = nowMs;
+			return 0;
+		}
+		// until the breaker may half-open, or a second while a probe runs
+		return Math.max(1, (this.openedAtMs + this.openMs - nowMs + 999) / 1000);
+	}
+
+	/**
+	 * Records the outcome of a job that ran.
+	 *
+	 * @param boolean
+	 *            failed Whether the job failed.
+	 * @param long
+	 *            nowMs The current time.
+	 *
+	 * @return boolean Whether the breaker opened.
+	 */
+	public synchronized boolean record(boolean failed, long nowMs) {
+		if (this.state == HALF_OPEN) {
+			this.probing = false;
+			if (failed) {
+				this.open(nowMs);
+				return true;
+			}
+			this.state = CLOSED;
+			this.calls = 0;
+			this.failures = 0;
+			this.next = 0;
+			return false;
+		}
+		if (this.state == OPEN) {
+			// a job that started before the breaker opened
+			return false;
+		}
+
+		if (this.calls == this.outcomes.length) {
+			if (this.outcomes[this.next]) {
+				this.failures -= 1;
+			}
+		} else {
+			this.calls += 1;
+		}
+		this.outcomes[this.next] = failed;
+		if (failed) {
+			this.failures += 1;
+		}
+		this.next = (this.next + 1) % this.outcomes.length;
+
+		if (this.calls >= this.minCalls && this.failures >= this.failureRate * this.calls) {
+			this.open(nowMs);
+			return true;
+		}
+		return false;
+	}
+
+	private void open(long nowMs) {
+		this.state = OPEN;
+		this.openedAtMs = nowMs;
+		DJMetrics.increment(DJMetrics.CIRCUIT_OPENED);
+	}
+
+	/**
+	 * @return int One of CLOSED, OPEN or HALF_OPEN.
+	 */
+	public synchronized int getState() {
+		return this.state;
+	}
+
+	/**
+	 * @return string The failed and total jobs in the window, and the state.
+	 */
+	public synchronized String toString() {
+		String[] names = { "closed", "open", "half-open" };
+		return String.format("%s, %d of the last %d jobs failed", names[this.state], this.failures, this.calls);
+	}
+
+	private DJCircuitBreaker copy() {
+		return new DJCircuitBreaker(this.failureRate, this.outcomes.length, this.minCalls, this.openMs / 1000);
+	}
+
+	/**
+	 * Registers the breaker of a handler class.
+	 */
+	public static void register(Class<? extends DJJobHandlerInterface> handlerClass, DJCircuitBreaker breaker) {
+		breakers.put(handlerClass, breaker);
+	}
+
+	/**
+	 * Sets the breaker copied for each handler class without its own, null
+	 * for none.
+	 */
+	public static void setDefault(DJCircuitBreaker breaker) {
+		defaultBreaker = breaker;
+	}
+
+	/**
+	 * Removes all breakers.
+	 */
+	public static void clear() {
+		breakers.clear();
+		defaultBreaker = null;
+	}
+
+	/**
+	 * Returns the breaker of a handler class.
+	 *
+	 * @param Class<?>
+	 *            handlerClass The handler class of a job.
+	 *
+	 * @return DJCircuitBreaker The breaker, or null if none applies.
+	 */
+	public static DJCircuitBreaker get(Class<?> handlerClass) {
+		DJCircuitBreaker breaker = breakers.get(handlerClass);
+		DJCircuitBreaker template = defaultBreaker;
+		if (breaker == null && template != null) {
+			synchronized (breakers) {
+				breaker = breakers.get(handlerClass);
+				if (breaker == null) {
+					breaker = template.copy();
+					breakers.put(handlerClass, breaker);
+				}
+			}
+		}
+		return breaker;
+	}
+}
@@ -0,0 +1,186 @@
+package org.fartpig.jdjjob;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fartpig.jdjjob.dao.DJJobDao;
+import org.fartpig.jdjjob.dao.DJUnitOfWork;
+
+/**
+ * The jobs of a queue that failed for good, that is with failed_at set.
+ *
+ * Requeue and purge work through the matching jobs in chunks by ascending
+ * id, each chunk one short statement on its own rows, and pause between the
+ * chunks, so a large run does not hold locks the workers are waiting for.
+ */
+public class DJDeadLetter extends DJBase {
+
+	private String queue;
+	private DJShard shard;
+	private int chunkSize;
+	private long throttle;
+
+	private DJJobQuery query;
+
+	/**
+	 * Possible options: `chunk_size`: How many jobs to requeue or purge per
+	 * statement. Default: '500' `throttle`: How many milliseconds to pause
+	 * between the chunks. Default: '100'
+	 *
+	 * @param string
+	 *            queue The queue of the failed jobs.
+	 * @param Map<String,Object>
+	 *            options The options.
+	 */
+	public DJDeadLetter(String queue, Map<String, Object> options) {
+		Map<String, Object> originalMap = new HashMap<String, Object>();
+		originalMap.put("chunk_size", 500);
+		originalMap.put("throttle", 100);
+
+		options = Utils.mergeMaps(originalMap, options);
+
+		this.queue = queue == null ? "default" : queue;
+		this.query = new DJJobQuery(this.queue).state(DJJobQuery.FAILED);
+		this.shard = this.query.getShard();
+		this.chunkSize = (Integer) options.get("chunk_size");
+		this.throttle = ((Number) options.get("throttle")).longValue();
+	}
+
+	/**
+	 * Only the jobs of the given handler class.
+	 */
+	public DJDeadLetter handlerClass(String className) {
+		this.query.handlerClass(className);
+		return this;
+	}
+
+	/**
+	 * Only the jobs that failed within the given times, either may be null.
+	 */
+	public DJDeadLetter failedBetween(Date after, Date before) {
+		this.query.failedBetween(after, before);
+		return this;
+	}
+
+	/**
+	 * Only the jobs whose error contains the given text.
+	 */
+	public DJDeadLetter errorContains(String text) {
+		this.query.errorContains(text);
+		return this;
+	}
+
+	/**
+	 * @return long How many jobs match.
+	 */
+	public long count() {
+		return this.query.count();
+	}
+
+	/**
+	 * Lists a page of the matching jobs, see DJJobQuery.page.
+	 */
+	public List<Job> list(long afterId, int limit) {
+		return this.query.page(afterId, limit);
+	}
+
+	/**
+	 * Puts the matching jobs back into the queue with no attempts, no error
+	 * and the given run_at.
+	 *
+	 * @param Date
+	 *            runAt When to run them, null for right away.
+	 *
+	 * @return int How many jobs were requeued.
+	 */
+	public int requeue(Date runAt) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(" UPDATE ");
+		sb.append(this.shard.getJobsTable());
+		sb.append(" SET attempts = 0, failed_at = NULL, error = NULL, run_at = ?, ");
+		sb.append(" locked_at = NULL, locked_by = NULL ");
+		sb.append(" WHERE failed_at IS NOT NULL AND id IN ");
+		List<Object> args = new ArrayList<Object>();
+		args.add(runAt == null ? null : new java.sql.Timestamp(runAt.getTime()));
+		int requeued = this.inChunks(sb.toString(), args, false);
+		log(DJBase.INFO, "[DEADLETTER] requeued %d jobs of queue::%s", requeued, this.queue);
+		return requeued;
+	}
+
+	/**
+	 * Deletes the matching jobs. The jobs waiting for them are released, as
+	 * if they had finished.
+	 *
+	 * @return int How many jobs were deleted.
+	 */
+	public int purge() {
+		String sql = "SELECT id FROM " + this.shard.getJobsTable() + " WHERE failed_at IS NOT NULL AND id IN ";
+		int purged = this.inChunks(sql, new ArrayList<Object>(), true);
+		log(DJBase.INFO, "[DEADLETTER] purged %d jobs of queue::%s", purged, this.queue);
+		return purged;
+	}
+
+	/**
+	 * Runs a statement ending in "id IN " on the matching jobs, a chunk of ids
+	 * at a time.
+	 *
+	 * @param boolean
+	 *            delete Whether the statement selects the jobs of the chunk
+	 *            to delete, see DJJdbcJobStore.delete.
+	 */
+	private int inChunks(String sql, List<Object> args, boolean delete) {
+		DJUnitOfWork unitOfWork = this.shard.openUnitOfWork();
+		try {
+			return this.inChunks(unitOfWork, sql, args, delete);
+		} finally {
+			unitOfWork.close();
+		}
+	}
+
+	private int inChunks(DJUnitOfWork unitOfWork, String sql, List<Object> args, boolean delete) {
+		DJJobDao dao = unitOfWork.getDao(this.shard.getJobsTable());
+		long lastId = 0;
+		int total = 0;
+		while (true) {
+			List<Object> selectArgs = new ArrayList<Object>();
+			String where = this.query.where(selectArgs);
+			selectArgs.add(lastId);
+			selectArgs.add(this.chunkSize);
+			List<Object[]> rs = dao.executeQuery("SELECT id FROM " + this.shard.getJobsTable() + " WHERE " + where
+					+ " AND id > ? ORDER BY id LIMIT ?", selectArgs);
+			if (rs.isEmpty()) {
+				break;
+			}
+
+			StringBuilder ids = new StringBuilder("(");
+			List<Object> chunkArgs = new ArrayList<Object>(args);
+			for (Object[] obj : rs) {
+				ids.append(chunkArgs.size() == args.size() ? "?" : ", ?");
+				chunkArgs.add(obj[0]);
+				lastId = ((Number) obj[0]).longValue();
+			}
+			ids.append(")");
+
+			int updated = delete ? DJJdbcJobStore.delete(unitOfWork, this.shard.getJobsTable(), sql + ids
+					+ " FOR UPDATE", chunkArgs) : dao.executeUpdate(sql + ids, chunkArgs);
+			if (updated < 0) {
+				break;
+			}
+			total += updated;
+
+			if (rs.size() < this.chunkSize) {
+				break;
+			}
+			try {
+				Thread.sleep(this.throttle);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return total;
+	}
+}
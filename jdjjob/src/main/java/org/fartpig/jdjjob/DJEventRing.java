@@ -0,0 +1,205 @@
+package org.fartpig.jdjjob;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed size in-memory ring of job lifecycle events.
+ *
+ * Recording an event allocates one small immutable object and publishes it
+ * into its slot with a compare and set, so it is cheap enough to stay on for
+ * every job. Once the ring is full the oldest events are overwritten. A
+ * writer lapped by one a whole ring ahead of it drops its event rather than
+ * overwrite the newer one. The events can be dumped as text, or streamed to
+ * a listener by polling with a cursor.
+ */
+public class DJEventRing {
+
+	// event types
+	public static final int CLAIMED = 0;
+	public static final int STARTED = 1;
+	public static final int FINISHED = 2;
+	public static final int RETRIED = 3;
+	public static final int FAILED = 4;
+	public static final int LOCK_LOST = 5;
+	public static final int TIMED_OUT = 6;
+	public static final int DEFERRED = 7;
+
+	private static final String[] TYPE_NAMES = { "claimed", "started", "finished", "retried", "failed",
+			"lock_lost", "timed_out", "deferred" };
+
+	private static final DJEventRing defaultRing = new DJEventRing(
+			Integer.getInteger("djjob.events.size", 4096).intValue());
+
+	/**
+	 * Receives streamed events.
+	 */
+	public interface Listener {
+		/**
+		 * @param long
+		 *            seq The sequence number of the event.
+		 * @param long
+		 *            timeMs When it happened.
+		 * @param int
+		 *            type One of the event types.
+		 * @param string
+		 *            shard The shard of the job.
+		 * @param long
+		 *            jobId The job id.
+		 */
+		public void onEvent(long seq, long timeMs, int type, String shard, long jobId);
+	}
+
+	private static final class Event {
+		final long seq;
+		final long timeMs;
+		final int type;
+		final String shard;
+		final long jobId;
+
+		Event(long seq, long timeMs, int type, String shard, long jobId) {
+			this.seq = seq;
+			this.timeMs = timeMs;
+			this.type = type;
+			this.shard = shard;
+			this.jobId = jobId;
+		}
+	}
+
+	private final int mask;
+	private final AtomicLong next = new AtomicLong();
+	// null until the first event of each slot
+	private final AtomicReferenceArray<Event> events;
+
+	/**
+	 * @param int
+	 *            size How many events to keep, rounded up to a power of two.
+	 */
+	public DJEventRing(int size) {
+		int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+		this.mask = capacity - 1;
+		this.events = new AtomicReferenceArray<Event>(capacity);
+	}
+
+	/**
+	 * @return DJEventRing The ring the jobs record to. Its size is set by the
+	 *         system property `djjob.events.size`, default '4096'.
+	 */
+	public static DJEventRing getDefault() {
+		return defaultRing;
+	}
+
+	/**
+	 * Records an event of a job.
+	 */
+	public static void record(int type, DJJob job) {
+		defaultRing.add(type, job.getShard().getName(), job.getJobId());
+	}
+
+	/**
+	 * Adds an event.
+	 *
+	 * @param int
+	 *            type One of the event types.
+	 * @param string
+	 *            shard The shard of the job.
+	 * @param long
+	 *            jobId The job id.
+	 */
+	public void add(int type, String shard, long jobId) {
+		long seq = this.next.getAndIncrement();
+		int slot = (int) (seq & this.mask);
+		Event event = new Event(seq, System.currentTimeMillis(), type, shard, jobId);
+		while (true) {
+			Event written = this.events.get(slot);
+			if (written != null && written.seq > seq) {
+				// lapped, the slot holds a newer event already
+				return;
+			}
+			if (this.events.compareAndSet(slot, written, event)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return long The sequence number the next event will get.
+	 */
+	public long getNextSeq() {
+		return this.next.get();
+	}
+
+	/**
+	 * @return int How many events the ring keeps.
+	 */
+	public int getCapacity() {
+		return this.mask + 1;
+	}
+
+	/**
+	 * Streams the events from a cursor on. Events that were overwritten
+	 * before they were read are skipped.
+	 *
+	 * @param long
+	 *            fromSeq The first sequence number to read, usually the
+	 *            result of the previous call.
+	 * @param Listener
+	 *            listener Receives the events in order.
+	 *
+	 * @return long The cursor for the next call.
+	 */
+	public long read(long fromSeq, Listener listener) {
+		long end = this.next.get();
+		long seq = Math.max(fromSeq, end - this.getCapacity());
+		for (; seq < end; seq++) {
+			Event event = this.events.get((int) (seq & this.mask));
+			if (event == null || event.seq < seq) {
+				// still being written, stop here to keep the order
+				break;
+			}
+			if (event.seq > seq) {
+				// already overwritten
+				continue;
+			}
+			listener.onEvent(seq, event.timeMs, event.type, event.shard, event.jobId);
+		}
+		return seq;
+	}
+
+	/**
+	 * Writes the events still in the ring as text, one per line, oldest
+	 * first.
+	 *
+	 * @param Appendable
+	 *            out Where to write them.
+	 */
+	public void dump(final Appendable out) throws IOException {
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		final IOException[] error = new IOException[1];
+		this.read(0, new Listener() {
+
+			public void onEvent(long seq, long timeMs, int type, String shard, long jobId) {
+				if (error[0] != null) {
+					return;
+				}
+				try {
+					out.append(String.format("%d %s %s %s:%d%n", seq, format.format(new Date(timeMs)),
+							getTypeName(type), shard, jobId));
+				} catch (IOException e) {
+					error[0] = e;
+				}
+			}
+
+		});
+		if (error[0] != null) {
+			throw error[0];
+		}
+	}
+
+	public static String getTypeName(int type) {
+		return type >= 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : String.valueOf(type);
+	}
+}
@@ -0,0 +1,189 @@
+package org.fartpig.jdjjob;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+
+/**
+ * Stores payloads as files named by their SHA-256 hash, under a directory
+ * every worker of the shard can read, like a shared mount.
+ */
+public class DJFilePayloadStore extends DJBase implements DJPayloadStoreInterface {
+
+	// how many files are looked up in the jobs tables per query
+	private static final int CHUNK_SIZE = 500;
+
+	private File directory;
+	private Set<DJShard> shards = new CopyOnWriteArraySet<DJShard>();
+
+	/**
+	 * @param File
+	 *            directory The directory to store the payloads in.
+	 */
+	public DJFilePayloadStore(File directory) {
+		this.directory = directory;
+	}
+
+	private File getFile(String hash) {
+		// spread the files over 256 sub directories
+		return new File(new File(this.directory, hash.substring(0, 2)), hash);
+	}
+
+	public String put(String payload) {
+		String hash = Utils.sha256(payload);
+		File file = this.getFile(hash);
+		if (file.exists()) {
+			// refresh, so collect does not delete it under a job being
+			// enqueued
+			file.setLastModified(System.currentTimeMillis());
+			return hash;
+		}
+
+		File dir = file.getParentFile();
+		dir.mkdirs();
+		OutputStream out = null;
+		try {
+			// write aside and rename, so readers never see a partial file
+			File tmp = File.createTempFile(hash, ".tmp", dir);
+			out = new FileOutputStream(tmp);
+			out.write(payload.getBytes("UTF-8"));
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file) && !file.exists()) {
+				tmp.delete();
+				return null;
+			}
+			tmp.delete();
+			return hash;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return null;
+	}
+
+	public String get(String hash) {
+		File file = this.getFile(hash);
+		if (!file.exists()) {
+			return null;
+		}
+
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				bytes.write(buffer, 0, read);
+			}
+			return bytes.toString("UTF-8");
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return null;
+	}
+
+	public void addShard(DJShard shard) {
+		this.shards.add(shard);
+	}
+
+	public int collect(int minAge) {
+		if (this.shards.isEmpty()) {
+			return 0;
+		}
+		File[] dirs = this.directory.listFiles();
+		if (dirs == null) {
+			return 0;
+		}
+
+		// a chunk of candidates at a time, looked up among the referenced
+		// hashes of each shard, rather than loading all of those
+		long before = System.currentTimeMillis() - minAge * 1000L;
+		Map<String, File> chunk = new HashMap<String, File>();
+		int deleted = 0;
+		for (File dir : dirs) {
+			File[] files = dir.listFiles();
+			for (int i = 0; files != null && i < files.length; i++) {
+				if (files[i].lastModified() < before) {
+					chunk.put(files[i].getName(), files[i]);
+				}
+				if (chunk.size() == CHUNK_SIZE) {
+					deleted += this.collect(chunk, before);
+				}
+			}
+		}
+		deleted += this.collect(chunk, before);
+		log(DJBase.INFO, "[PAYLOAD] deleted %d unreferenced payloads from %s", deleted, this.directory);
+		return deleted;
+	}
+
+	/**
+	 * Deletes the files of a chunk no job refers to, and empties the chunk.
+	 * A file stored again since it was listed is younger than `before` and
+	 * kept.
+	 */
+	private int collect(Map<String, File> chunk, long before) {
+		if (chunk.isEmpty()) {
+			return 0;
+		}
+		for (DJShard shard : this.shards) {
+			StringBuilder sb = new StringBuilder("SELECT DISTINCT payload_hash FROM ");
+			sb.append(shard.getJobsTable());
+			sb.append(" WHERE payload_hash IN (");
+			List<Object> args = new ArrayList<Object>();
+			for (String hash : chunk.keySet()) {
+				sb.append(args.isEmpty() ? "?" : ", ?");
+				args.add(hash);
+			}
+			sb.append(")");
+			List<Object[]> rs = shard.getDao().executeQueryOrNull(sb.toString(), args);
+			if (rs == null) {
+				// unknown which are referenced, keep them all
+				chunk.clear();
+				return 0;
+			}
+			for (Object[] obj : rs) {
+				chunk.remove(obj[0]);
+			}
+			if (chunk.isEmpty()) {
+				return 0;
+			}
+		}
+
+		int deleted = 0;
+		for (File file : chunk.values()) {
+			if (file.lastModified() < before && file.delete()) {
+				deleted += 1;
+			}
+		}
+		chunk.clear();
+		return deleted;
+	}
+}
@@ -0,0 +1,466 @@
+package org.fartpig.jdjjob;
+
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.fartpig.jdjjob.dao.DJJobDao;
+import org.fartpig.jdjjob.dao.DJSqlCatalog;
+import org.fartpig.jdjjob.dao.DJUnitOfWork;
+
+/**
+ * Keeps the jobs of a shard in its jobs table, one statement of DJSqlCatalog
+ * per state change, on the connection pinned to the job.
+ */
+public class DJJdbcJobStore implements DJJobStoreInterface {
+
+	// how many tenants a fair claim looks at before it takes any ready job
+	private static final int TENANT_PROBES = 10;
+
+	private DJShard shard;
+
+	// the tenant each queue was last served for in the fair order, absent
+	// before the first tenant
+	private Map<String, String> tenants = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * @param DJShard
+	 *            shard The shard whose jobs table to use.
+	 */
+	public DJJdbcJobStore(DJShard shard) {
+		this.shard = shard;
+	}
+
+	public long enqueue(String handler, String queue, Date runAt, String payloadHash, String affinity) {
+		DJJobDao dao = this.shard.getDao();
+		List<Object> args = new ArrayList<Object>();
+		args.add(handler);
+		args.add(queue);
+		args.add(runAt);
+		args.add(null);
+		args.add(payloadHash);
+		args.add(affinity);
+		return dao.executeInsert(dao.getSql().insert, args);
+	}
+
+	public List<Long> claim(String queue, String workerName, int lockTimeout, int maxAttempts, String order,
+			List<String> affinity, DJUnitOfWork unitOfWork) {
+		DJJobDao dao = unitOfWork.getDao(this.shard.getJobsTable());
+		DJSqlCatalog sql = dao.getSql();
+		boolean leased = lockTimeout > 0;
+		if (DEADLINE_ORDER.equals(order)) {
+			// in order, the losers of a lock conflict move on to the next one
+			List<Long> ids = this.claim(dao, leased ? sql.claimByDeadlineLeased : sql.claimByDeadline, affinity,
+					queue, workerName, lockTimeout, maxAttempts);
+			if (!ids.isEmpty()) {
+				return ids;
+			}
+		} else if (FAIR_ORDER.equals(order)) {
+			List<Long> ids = this.claimFair(dao, queue, workerName, lockTimeout, maxAttempts, affinity);
+			if (!ids.isEmpty()) {
+				Collections.shuffle(ids);
+				return ids;
+			}
+		}
+
+		List<Long> ids = this.claim(dao, leased ? sql.claimLeased : sql.claim, affinity, queue, workerName,
+				lockTimeout, maxAttempts);
+
+		// randomly order the 10 to prevent lock contention among workers
+		Collections.shuffle(ids);
+		return ids;
+	}
+
+	/**
+	 * Claims the oldest jobs of the tenant after the one last served, going
+	 * round the tenants of the queue in order, with the jobs without a tenant
+	 * as one more tenant after the last one. Only tenants with jobs ready to
+	 * claim are walked, on the queue, failed_at and tenant index, so tenants
+	 * holding only failed, delayed or locked jobs do not take a turn. A tenant
+	 * whose jobs another worker locked in between is skipped, up to
+	 * TENANT_PROBES of them per claim.
+	 */
+	private List<Long> claimFair(DJJobDao dao, String queue, String workerName, int lockTimeout,
+			int maxAttempts, List<String> affinity) {
+		DJSqlCatalog sql = dao.getSql();
+		boolean leased = lockTimeout > 0;
+		String tenant = this.tenants.get(queue);
+		List<Long> ids = Collections.emptyList();
+		for (int i = 0; i < TENANT_PROBES && ids.isEmpty(); i++) {
+			List<Object> args = new ArrayList<Object>();
+			args.add(queue);
+			args.add(workerName);
+			if (leased) {
+				args.add(lockTimeout);
+			}
+			args.add(maxAttempts);
+			String select;
+			if (tenant == null) {
+				select = leased ? sql.selectFirstTenantLeased : sql.selectFirstTenant;
+			} else {
+				select = leased ? sql.selectNextTenantLeased : sql.selectNextTenant;
+				args.add(tenant);
+			}
+			List<Object[]> rs = dao.executeQuery(select, args);
+			tenant = rs.isEmpty() ? null : (String) rs.get(0)[0];
+
+			if (tenant == null) {
+				ids = this.claim(dao, leased ? sql.claimWithoutTenantLeased : sql.claimWithoutTenant, affinity,
+						queue, workerName, lockTimeout, maxAttempts);
+			} else {
+				ids = this.claim(dao, leased ? sql.claimByTenantLeased : sql.claimByTenant, affinity, queue,
+						workerName, lockTimeout, maxAttempts, tenant);
+			}
+		}
+
+		if (tenant == null) {
+			this.tenants.remove(queue);
+		} else {
+			this.tenants.put(queue, tenant);
+		}
+		return ids;
+	}
+
+	/**
+	 * Claims by one of the claims of the catalog, the jobs with one of the
+	 * affinity keys first, the jobs this worker has warm, and the others only
+	 * when there are none. Either way in the order of the claim.
+	 */
+	private List<Long> claim(DJJobDao dao, String sql, List<String> affinity, String queue, String workerName,
+			int lockTimeout, int maxAttempts, Object... more) {
+		if (!affinity.isEmpty()) {
+			List<Object> args = new ArrayList<Object>();
+			Collections.addAll(args, more);
+			args.addAll(affinity);
+			List<Long> ids = this.claim(dao, dao.getSql().withAffinity(sql, affinity.size()), queue, workerName,
+					lockTimeout, maxAttempts, args.toArray());
+			if (!ids.isEmpty()) {
+				return ids;
+			}
+		}
+		return this.claim(dao, sql, queue, workerName, lockTimeout, maxAttempts, more);
+	}
+
+	private List<Long> claim(DJJobDao dao, String sql, String queue, String workerName, int lockTimeout,
+			int maxAttempts, Object... more) {
+		// we can grab a locked job if we own the lock
+		List<Object> args = new ArrayList<Object>();
+		args.add(queue);
+		args.add(workerName);
+		if (lockTimeout > 0) {
+			args.add(lockTimeout);
+		}
+		args.add(maxAttempts);
+		Collections.addAll(args, more);
+
+		List<Long> ids = new ArrayList<Long>();
+		for (Object[] obj : dao.executeQuery(sql, args)) {
+			ids.add(((Number) obj[0]).longValue());
+		}
+		return ids;
+	}
+
+	public boolean lock(DJJob job, int lockTimeout) {
+		DJJobDao dao = job.getDao();
+		String sql = lockTimeout > 0 ? dao.getSql().lockLeased : dao.getSql().lock;
+		List<Object> args = new ArrayList<Object>();
+		args.add(job.getWorkerName());
+		args.add(job.getJobId());
+		args.add(job.getWorkerName());
+		if (lockTimeout > 0) {
+			args.add(lockTimeout);
+		}
+		return dao.executeUpdate(sql, args) > 0;
+	}
+
+	public String load(DJJob job) {
+		Job row = job.getDao().loadByJobId(job.getJobId());
+		return row == null ? null : row.getHandler();
+	}
+
+	public int getAttempts(DJJob job) {
+		DJJobDao dao = job.getDao();
+		List<Object> args = new ArrayList<Object>();
+		args.add(job.getJobId());
+		List<Object[]> rs = dao.executeQuery(dao.getSql().selectAttempts, args);
+		return rs.size() > 0 ? ((Number) rs.get(0)[0]).intValue() : 0;
+	}
+
+	public boolean finish(DJJob job, String result, boolean storeResult) {
+		// the delete, the release of the waiting children and the result are
+		// one state change
+		boolean pinned = job.openUnitOfWork();
+		DJUnitOfWork unitOfWork = job.getUnitOfWork();
+		unitOfWork.begin();
+		DJJobDao dao = job.getDao();
+		List<Object> args = new ArrayList<Object>();
+		args.add(job.getJobId());
+		int deleted = dao.executeUpdate(dao.getSql().delete, args);
+		if (deleted < 0) {
+			return this.rollback(job, pinned, "delete");
+		}
+		// else the job was deleted since, and its children released with it
+		if (deleted == 1 && !releaseChildren(dao, args)) {
+			return this.rollback(job, pinned, "release the children of");
+		}
+		if (storeResult) {
+			args = new ArrayList<Object>();
+			args.add(job.getJobId());
+			args.add(DJJobResult.SUCCEEDED);
+			args.add(result);
+			args.add(job.getResultTtl());
+			if (dao.executeUpdate(dao.getSql().insertResult, args) < 0) {
+				return this.rollback(job, pinned, "store the result of");
+			}
+		}
+		return this.commit(job, pinned, "finish") && storeResult;
+	}
+
+	public boolean fail(DJJob job, String error, int maxAttempts, boolean storeResult) {
+		// the failure and the lock release are one state change
+		boolean pinned = job.openUnitOfWork();
+		DJUnitOfWork unitOfWork = job.getUnitOfWork();
+		unitOfWork.begin();
+		DJJobDao dao = job.getDao();
+		List<Object> args = new ArrayList<Object>();
+		args.add(maxAttempts);
+		args.add(maxAttempts);
+		args.add(error);
+		args.add(maxAttempts);
+		args.add(job.getJobId());
+		if (dao.executeUpdate(dao.getSql().fail, args) < 0) {
+			return this.rollback(job, pinned, "fail");
+		}
+
+		boolean storedResult = false;
+		if (storeResult) {
+			args = new ArrayList<Object>();
+			args.add(job.getResultTtl());
+			args.add(job.getJobId());
+			int stored = dao.executeUpdate(dao.getSql().insertFailureResult, args);
+			if (stored < 0) {
+				return this.rollback(job, pinned, "store the failure of");
+			}
+			storedResult = stored > 0;
+		}
+
+		if (this.releaseLock(dao, job) < 0) {
+			return this.rollback(job, pinned, "unlock");
+		}
+		return this.commit(job, pinned, "fail") && storedResult;
+	}
+
+	public void timeout(DJJob job, String error, int maxAttempts) {
+		// not on the pinned connection, which belongs to the running thread
+		DJJobDao dao = this.shard.getDao();
+		List<Object> args = new ArrayList<Object>();
+		args.add(maxAttempts);
+		args.add(error);
+		args.add(maxAttempts);
+		args.add(job.getJobId());
+		args.add(job.getWorkerName());
+		dao.execute(dao.getSql().timeout, args);
+	}
+
+	public void retryLater(DJJob job, long delay) {
+		boolean pinned = job.openUnitOfWork();
+		DJUnitOfWork unitOfWork = job.getUnitOfWork();
+		unitOfWork.begin();
+		DJJobDao dao = job.getDao();
+		List<Object> args = new ArrayList<Object>();
+		args.add(delay);
+		args.add(job.getJobId());
+		if (dao.executeUpdate(dao.getSql().retryLater, args) < 0 || this.releaseLock(dao, job) < 0) {
+			this.rollback(job, pinned, "retry");
+			return;
+		}
+		this.commit(job, pinned, "retry");
+	}
+
+	/**
+	 * Deletes the jobs a query selects, in one transaction on the unit of
+	 * work, releasing the jobs waiting for them as if they had finished.
+	 * Every deletion of jobs that may have children goes through here or
+	 * finish, else the children would wait forever.
+	 *
+	 * @param DJUnitOfWork
+	 *            unitOfWork The unit of work on the primary of the shard.
+	 * @param string
+	 *            jobsTable The jobs table of the shard.
+	 * @param string
+	 *            selectSql Selects the ids of the jobs, locking them with FOR
+	 *            UPDATE.
+	 * @param List<Object>
+	 *            args The arguments of the select.
+	 *
+	 * @return int How many jobs were deleted, or -1 if it failed and was
+	 *         rolled back.
+	 */
+	static int delete(DJUnitOfWork unitOfWork, String jobsTable, String selectSql, List<Object> args) {
+		DJJobDao dao = unitOfWork.getDao(jobsTable);
+		if (!unitOfWork.begin()) {
+			return -1;
+		}
+		List<Object[]> rows = dao.executeQueryOrNull(selectSql, args);
+		if (rows == null) {
+			unitOfWork.rollback();
+			return -1;
+		}
+		if (rows.isEmpty()) {
+			unitOfWork.commit();
+			return 0;
+		}
+		List<Object> ids = new ArrayList<Object>();
+		for (Object[] row : rows) {
+			ids.add(row[0]);
+		}
+		int deleted = dao.executeUpdate(dao.getSql().deleteIn + in(ids.size()), ids);
+		if (deleted < 0 || !releaseChildren(dao, ids) || !unitOfWork.commit()) {
+			unitOfWork.rollback();
+			return -1;
+		}
+		return deleted;
+	}
+
+	/**
+	 * Counts the given parents as done for the jobs waiting for them and
+	 * deletes their dependencies, within the transaction of the dao.
+	 *
+	 * @return boolean Whether all statements succeeded.
+	 */
+	private static boolean releaseChildren(DJJobDao dao, List<Object> parentIds) {
+		List<Object[]> rows = dao.executeQueryOrNull(dao.getSql().selectChildren + in(parentIds.size()), parentIds);
+		if (rows == null) {
+			return false;
+		}
+		if (rows.isEmpty()) {
+			return true;
+		}
+
+		// a child of several of the parents is released once per parent, by
+		// one statement per count
+		Map<Object, Integer> released = new HashMap<Object, Integer>();
+		for (Object[] row : rows) {
+			Integer count = released.get(row[0]);
+			released.put(row[0], count == null ? 1 : count + 1);
+		}
+		Map<Integer, List<Object>> byCount = new HashMap<Integer, List<Object>>();
+		for (Map.Entry<Object, Integer> entry : released.entrySet()) {
+			List<Object> args = byCount.get(entry.getValue());
+			if (args == null) {
+				args = new ArrayList<Object>();
+				args.add(entry.getValue());
+				byCount.put(entry.getValue(), args);
+			}
+			args.add(entry.getKey());
+		}
+		for (List<Object> args : byCount.values()) {
+			if (dao.executeUpdate(dao.getSql().releaseChildren + in(args.size() - 1), args) < 0) {
+				return false;
+			}
+		}
+		return dao.executeUpdate(dao.getSql().deleteDependencies + in(parentIds.size()), parentIds) >= 0;
+	}
+
+	/**
+	 * @return string An IN list of the given number of parameters.
+	 */
+	private static String in(int size) {
+		StringBuilder sb = new StringBuilder("(");
+		for (int i = 0; i < size; i++) {
+			sb.append(i == 0 ? "?" : ", ?");
+		}
+		return sb.append(")").toString();
+	}
+
+	/**
+	 * Commits the state change of a job and returns the pinned connection.
+	 *
+	 * @param string
+	 *            step What the state change did, for the log.
+	 *
+	 * @return boolean Whether the state change was committed.
+	 */
+	private boolean commit(DJJob job, boolean pinned, String step) {
+		boolean committed = job.getUnitOfWork().commit();
+		if (pinned) {
+			job.closeUnitOfWork();
+		}
+		if (!committed) {
+			DJBase.log(DJBase.ERROR, "[JOB] could not commit, did not %s job::%d", step, job.getJobId());
+		}
+		return committed;
+	}
+
+	/**
+	 * Rolls back the state change of a job after the first statement that
+	 * failed, leaving the job as it was claimed.
+	 *
+	 * @return boolean 'false'
+	 */
+	private boolean rollback(DJJob job, boolean pinned, String step) {
+		job.getUnitOfWork().rollback();
+		if (pinned) {
+			job.closeUnitOfWork();
+		}
+		DJBase.log(DJBase.ERROR, "[JOB] could not %s job::%d, rolled back", step, job.getJobId());
+		return false;
+	}
+
+	public void defer(DJJob job, long delay) {
+		DJJobDao dao = job.getDao();
+		List<Object> args = new ArrayList<Object>();
+		args.add(delay);
+		args.add(job.getJobId());
+		args.add(job.getWorkerName());
+		dao.execute(dao.getSql().defer, args);
+	}
+
+	public boolean renewLock(DJJob job) {
+		// not on the pinned connection, which belongs to the running thread
+		DJJobDao dao = this.shard.getDao();
+		List<Object> args = new ArrayList<Object>();
+		args.add(job.getJobId());
+		args.add(job.getWorkerName());
+		return dao.executeUpdate(dao.getSql().renewLock, args) > 0;
+	}
+
+	public void releaseLock(DJJob job) {
+		this.releaseLock(job.getDao(), job);
+	}
+
+	/**
+	 * @return int The number of locks released, or -1 if it failed.
+	 */
+	private int releaseLock(DJJobDao dao, DJJob job) {
+		List<Object> args = new ArrayList<Object>();
+		args.add(job.getJobId());
+		args.add(job.getWorkerName());
+		return dao.executeUpdate(dao.getSql().releaseLock, args);
+	}
+
+	public void releaseLocks(String workerName) {
+		DJJobDao dao = this.shard.getDao();
+		List<Object> args = new ArrayList<Object>();
+		args.add(workerName);
+		dao.execute(dao.getSql().releaseLocks, args);
+	}
+
+	public long[] status(String queue) {
+		DJJobDao dao = this.shard.getReadDao();
+		List<Object> args = new ArrayList<Object>();
+		args.add(queue);
+		long[] status = new long[3];
+		List<Object[]> rs = dao.executeQuery(dao.getSql().status, args);
+		if (rs.size() > 0) {
+			for (int i = 0; i < status.length; i++) {
+				status[i] = ((Number) rs.get(0)[i]).longValue();
+			}
+		}
+		return status;
+	}
+}
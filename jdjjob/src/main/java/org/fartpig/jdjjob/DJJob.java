@@ -2,27 +2,44 @@ package org.fartpig.jdjjob;
 
 import java.sql.Date;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.fartpig.jdjjob.dao.DJJobDao;
+import org.fartpig.jdjjob.dao.DJSqlCatalog;
+import org.fartpig.jdjjob.dao.DJUnitOfWork;
 
 /**
  * Represents a job that needs to be executed.
  */
 public class DJJob extends DJBase {
 
+	// marks a handler payload kept in the shard's payload store by its hash
+	private static final String PAYLOAD_REF = "@";
+
 	private String workerName;
 	private long jobId;
+	private String queue;
+	private DJShard shard;
 
 	private int maxAttempts;
+	private int lockTimeout;
+	private int resultTtl;
+	private long lockedAtMs;
+	private DJUnitOfWork unitOfWork;
 
 	/**
 	 * Constructs the Job
 	 *
 	 * Possible options: `max_attempts`: The amount of attempts before bailing
-	 * out. Default: '5'
+	 * out. Default: '5' `lock_timeout`: How many seconds a lock is leased for,
+	 * after which another worker may take the job over. Use '0' for locks that
+	 * never expire. Default: '0' `queue`: The queue of the job, to find its
+	 * retry policy. Default: 'default' `shard`: The DJShard holding the job.
+	 * Default: the shard the queue is routed to `result_ttl`: How many seconds
+	 * the outcome of a result handler is kept. Default: '3600'
 	 *
 	 * @param string
 	 *            workerName Name of the worker that created this job.
@@ -34,12 +51,23 @@ public class DJJob extends DJBase {
 	public DJJob(String workerName, long jobId, Map<String, Object> options) {
 		Map<String, Object> originalMap = new HashMap<String, Object>();
 		originalMap.put("max_attempts", 5);
+		originalMap.put("lock_timeout", 0);
+		originalMap.put("queue", "default");
+		originalMap.put("result_ttl", 3600);
 
 		options = Utils.mergeMaps(originalMap, options);
 
 		this.workerName = workerName;
 		this.jobId = jobId;
 		this.maxAttempts = (Integer) options.get("max_attempts");
+		this.lockTimeout = (Integer) options.get("lock_timeout");
+		this.resultTtl = (Integer) options.get("result_ttl");
+		this.queue = (String) options.get("queue");
+		this.shard = (DJShard) options.get("shard");
+		if (this.shard == null) {
+			this.shard = DJShardRouter.getShard(this.queue);
+		}
+		this.lockedAtMs = System.currentTimeMillis();
 	}
 
 	/**
@@ -50,24 +78,217 @@ public class DJJob extends DJBase {
 	 * @return boolean Whether or not the job succeeded.
 	 */
 	public boolean run() {
-		// pull the handler from the db
-		DJJobHandlerInterface handler = this.getHandler();
-		if (handler == null) {
-			String msg = String.format("[JOB] bad handler for job::%d", this.jobId);
-			this.finishWithError(msg, handler);
-			return false;
+		boolean pinned = this.openUnitOfWork();
+		try {
+			// pull the handler from the db
+			DJProfiler.Sample sample = DJProfiler.start();
+			DJJobHandlerInterface handler = this.getHandler();
+			if (sample != null) {
+				sample.loaded();
+			}
+			if (handler == null) {
+				String msg = String.format("[JOB] bad handler for job::%d", this.jobId);
+				this.finishWithError(msg, handler);
+				return false;
+			}
+
+			DJCircuitBreaker breaker = DJCircuitBreaker.get(handler.getClass());
+			if (breaker != null && this.acquire(breaker, handler) > 0) {
+				return false;
+			}
+
+			// run the handler
+			DJEventRing.record(DJEventRing.STARTED, this);
+			Exception error = null;
+			long startedAt = System.currentTimeMillis();
+			try {
+				handler.perform();
+			} catch (Exception e) {
+				error = e;
+			} catch (Error e) {
+				// still a failure to the breaker, or a probe never reports
+				if (breaker != null) {
+					breaker.record(true, System.currentTimeMillis());
+				}
+				throw e;
+			}
+			DJWorkloadRecorder.ran(this.queue, handler.getClass(), System.currentTimeMillis() - startedAt);
+			if (sample != null) {
+				sample.performed(handler.getClass());
+			}
+			if (breaker != null) {
+				record(breaker, handler, error);
+			}
+			return this.complete(handler, error);
+		} finally {
+			if (pinned) {
+				this.closeUnitOfWork();
+			}
 		}
+	}
 
-		// run the handler
+	/**
+	 * Runs a batch of jobs in a single performBatch call of their handler.
+	 *
+	 * The handlers are loaded with one query. Each job is still finished,
+	 * failed or retried on its own according to the result reported for it.
+	 *
+	 * @param List<DJJob>
+	 *            jobs The locked jobs, all of the same handler class.
+	 *
+	 * @return int The number of jobs that succeeded.
+	 */
+	public static int runBatch(List<DJJob> jobs) {
+		if (jobs.isEmpty()) {
+			return 0;
+		}
+
+		// the whole batch shares one connection
+		DJJob first = jobs.get(0);
+		boolean pinned = first.openUnitOfWork();
+		for (DJJob job : jobs) {
+			job.unitOfWork = first.unitOfWork;
+		}
 		try {
+			return runPinnedBatch(jobs);
+		} finally {
+			if (pinned) {
+				for (DJJob job : jobs) {
+					job.closeUnitOfWork();
+				}
+			}
+		}
+	}
 
-			handler.perform();
+	private static int runPinnedBatch(List<DJJob> jobs) {
+		DJShard shard = jobs.get(0).shard;
+		DJJobDao dao = jobs.get(0).getDao();
+		StringBuilder sb = new StringBuilder();
+		sb.append(" SELECT id, handler FROM ");
+		sb.append(shard.getJobsTable());
+		sb.append(" WHERE id IN (");
+		List<Object> args = new ArrayList<Object>();
+		for (DJJob job : jobs) {
+			sb.append(args.isEmpty() ? "?" : ", ?");
+			args.add(job.jobId);
+		}
+		sb.append(")");
+
+		Map<Long, String> handlerStrs = new HashMap<Long, String>();
+		for (Object[] obj : dao.executeQuery(sb.toString(), args)) {
+			handlerStrs.put(((Number) obj[0]).longValue(), (String) obj[1]);
+		}
 
+		List<DJJob> batchJobs = new ArrayList<DJJob>();
+		List<DJJobHandlerInterface> handlers = new ArrayList<DJJobHandlerInterface>();
+		for (DJJob job : jobs) {
+			DJJobHandlerInterface handler = toHandler(handlerStrs.get(job.jobId), shard);
+			if (handler == null) {
+				String msg = String.format("[JOB] bad handler for job::%d", job.jobId);
+				job.finishWithError(msg, handler);
+				continue;
+			}
+			batchJobs.add(job);
+			handlers.add(handler);
+		}
+
+		if (handlers.isEmpty()) {
+			return 0;
+		}
+
+		// the batch is one call of the handler, it is deferred or let through
+		// as a whole
+		DJCircuitBreaker breaker = DJCircuitBreaker.get(handlers.get(0).getClass());
+		long delay = breaker == null ? 0 : batchJobs.get(0).acquire(breaker, handlers.get(0));
+		if (delay > 0) {
+			for (int i = 1; i < batchJobs.size(); i++) {
+				batchJobs.get(i).defer(delay);
+			}
+			return 0;
+		}
+
+		for (DJJob job : batchJobs) {
+			DJEventRing.record(DJEventRing.STARTED, job);
+		}
+
+		List<Exception> errors;
+		try {
+			errors = ((DJBatchJobHandlerInterface) handlers.get(0)).performBatch(handlers);
+			if (errors == null || errors.size() != handlers.size()) {
+				throw new DJException("performBatch must report one result per job");
+			}
+		} catch (Exception e) {
+			errors = Collections.nCopies(handlers.size(), e);
+		} catch (Error e) {
+			if (breaker != null) {
+				breaker.record(true, System.currentTimeMillis());
+			}
+			throw e;
+		}
+
+		int succeeded = 0;
+		for (int i = 0; i < batchJobs.size(); i++) {
+			if (breaker != null) {
+				record(breaker, handlers.get(i), errors.get(i));
+			}
+			if (batchJobs.get(i).complete(handlers.get(i), errors.get(i))) {
+				succeeded += 1;
+			}
+		}
+		return succeeded;
+	}
+
+	/**
+	 * Defers this job instead of running it while the circuit breaker of its
+	 * handler class is open.
+	 *
+	 * @return long '0' if the job may run, otherwise the seconds it was
+	 *         deferred by.
+	 */
+	private long acquire(DJCircuitBreaker breaker, DJJobHandlerInterface handler) {
+		long delay = breaker.acquire(System.currentTimeMillis());
+		if (delay > 0) {
+			if (isLogEnabled(DJBase.DEBUG)) {
+				log(DJBase.DEBUG, "[JOB] circuit of %s is %s, job::%d deferred for %d seconds",
+						handler.getClass().getSimpleName(), breaker, this.jobId, delay);
+			}
+			this.defer(delay);
+		}
+		return delay;
+	}
+
+	private static void record(DJCircuitBreaker breaker, DJJobHandlerInterface handler, Exception error) {
+		if (breaker.record(error != null, System.currentTimeMillis())) {
+			log(DJBase.WARN, "[JOB] circuit of %s opened, %s", handler.getClass().getName(), breaker);
+		}
+	}
+
+	/**
+	 * Finishes, retries or fails this job according to the outcome of its
+	 * handler.
+	 *
+	 * @param DJJobHandlerInterface
+	 *            handler The handler that ran this job.
+	 * @param Exception
+	 *            error What the handler threw, or null if it succeeded.
+	 *
+	 * @return boolean Whether or not the job succeeded.
+	 */
+	protected boolean complete(DJJobHandlerInterface handler, Exception error) {
+		if (error == null) {
 			// cleanup
-			this.finish();
+			this.finish(handler);
 			return true;
+		}
+
+		DJRetryPolicy policy = DJRetryPolicy.get(handler.getClass(), this.queue);
+		if (policy != null) {
+			this.retry(policy, handler, error);
+			return false;
+		}
 
-		} catch (DJRetryException e) {
+		if (error instanceof DJRetryException) {
+			DJRetryException e = (DJRetryException) error;
 
 			// attempts hasn't been incremented yet.
 			int attempts = this.getAttempts() + 1;
@@ -79,16 +300,41 @@ public class DJJob extends DJBase {
 				msg = String.format("[JOB] job::%d %s Giving up.", this.jobId, msg);
 				this.finishWithError(msg, handler);
 			} else {
-				log(String.format("[JOB] job::%d %s Try again in %d seconds.", this.jobId, msg, e.getDelay()),
-						DJBase.WARN);
+				log(DJBase.WARN, "[JOB] job::%d %s Try again in %d seconds.", this.jobId, msg, e.getDelay());
 				this.retryLater(e.getDelay());
 			}
 			return false;
+		}
 
-		} catch (Exception e) {
-			this.finishWithError(e.getMessage(), handler);
-			return false;
+		this.finishWithError(error.getMessage(), handler);
+		return false;
+	}
+
+	/**
+	 * Retries this job later or gives up, as the retry policy says.
+	 */
+	private void retry(DJRetryPolicy policy, DJJobHandlerInterface handler, Exception error) {
+		int maxAttempts = policy.getMaxAttempts() > 0 ? policy.getMaxAttempts() : this.maxAttempts;
+
+		// attempts hasn't been incremented yet.
+		int attempts = this.getAttempts() + 1;
+
+		String msg = String.format("Caught %s \"%s\" on attempt %d/%d.", error.getClass().getSimpleName(),
+				error.getMessage(), attempts, maxAttempts);
 
+		if (!policy.isRetryable(error)) {
+			msg = String.format("[JOB] job::%d %s Not retryable, giving up.", this.jobId, msg);
+			this.finishWithError(msg, handler, 0);
+		} else if (attempts >= maxAttempts) {
+			msg = String.format("[JOB] job::%d %s Giving up.", this.jobId, msg);
+			this.finishWithError(msg, handler, maxAttempts);
+		} else {
+			long delay = policy.getDelay(attempts);
+			if (error instanceof DJRetryException && ((DJRetryException) error).hasDelay()) {
+				delay = Math.min(((DJRetryException) error).getDelay(), policy.getMaxDelay());
+			}
+			log(DJBase.WARN, "[JOB] job::%d %s Try again in %d seconds.", this.jobId, msg, delay);
+			this.retryLater(delay);
 		}
 	}
 
@@ -98,24 +344,142 @@ public class DJJob extends DJBase {
 	 * @return boolean Whether or not acquiring the lock succeeded.
 	 */
 	public boolean acquireLock() {
-		log(String.format("[JOB] attempting to acquire lock for job::%d on %s", this.jobId, this.workerName),
-				DJBase.INFO);
-		DJJobDao dao = new DJJobDao();
-		StringBuilder sb = new StringBuilder();
-		sb.append(" UPDATE ");
-		sb.append(DJBase.jobsTable);
-		sb.append(" SET locked_at=NOW(), locked_by=? ");
-		sb.append(" WHERE id=? AND (locked_at IS NULL OR locked_by=?) AND failed_at IS NULL");
-		List<Object> args = new ArrayList<Object>();
-		args.add(this.workerName);
-		args.add(this.jobId);
-		args.add(this.workerName);
-		boolean lock = dao.execute(sb.toString(), args);
+		boolean debug = isLogEnabled(DJBase.DEBUG);
+		if (debug) {
+			log(DJBase.DEBUG, "[JOB] attempting to acquire lock for job::%d on %s", this.jobId, this.workerName);
+		}
+		long now = System.currentTimeMillis();
+		boolean lock = this.getStore().lock(this, this.lockTimeout);
 		if (!lock) {
-			log(DJBase.INFO, "[JOB] failed to acquire lock for job::%d", this.jobId);
+			if (debug) {
+				log(DJBase.DEBUG, "[JOB] failed to acquire lock for job::%d", this.jobId);
+			}
+			return false;
+		}
+
+		this.lockedAtMs = now;
+		DJEventRing.record(DJEventRing.CLAIMED, this);
+		return true;
+	}
+
+	/**
+	 * @return long The id of this job.
+	 */
+	public long getJobId() {
+		return this.jobId;
+	}
+
+	/**
+	 * @return string The queue of this job.
+	 */
+	public String getQueue() {
+		return this.queue;
+	}
+
+	/**
+	 * @return DJShard The shard holding this job.
+	 */
+	public DJShard getShard() {
+		return this.shard;
+	}
+
+	/**
+	 * @return string The name of the worker this job is locked by.
+	 */
+	public String getWorkerName() {
+		return this.workerName;
+	}
+
+	/**
+	 * @return int How many seconds the outcome of a result handler is kept.
+	 */
+	public int getResultTtl() {
+		return this.resultTtl;
+	}
+
+	private DJJobStoreInterface getStore() {
+		return this.shard.getJobStore();
+	}
+
+	/**
+	 * @return string The id of this job qualified by its shard, unique across
+	 *         shards.
+	 */
+	public String getKey() {
+		return this.shard.getName() + ":" + this.jobId;
+	}
+
+	/**
+	 * Returns how long ago this job was locked.
+	 *
+	 * @return long The time since the lock was acquired in milliseconds.
+	 */
+	public long getLockHeldMs() {
+		return System.currentTimeMillis() - this.lockedAtMs;
+	}
+
+	/**
+	 * Pins a connection to this job, unless it already has one, for its
+	 * statements up to closeUnitOfWork.
+	 *
+	 * @return boolean Whether a new unit of work was opened, and so has to be
+	 *         closed by the caller.
+	 */
+	public boolean openUnitOfWork() {
+		if (this.unitOfWork != null) {
 			return false;
 		}
+		this.unitOfWork = this.shard.openUnitOfWork();
+		return true;
+	}
 
+	/**
+	 * Returns the pinned connection of this job to the pool.
+	 */
+	public void closeUnitOfWork() {
+		if (this.unitOfWork != null) {
+			this.unitOfWork.close();
+			this.unitOfWork = null;
+		}
+	}
+
+	public DJUnitOfWork getUnitOfWork() {
+		return this.unitOfWork;
+	}
+
+	/**
+	 * Pins the given unit of work to this job, as when a claim or a batch
+	 * shares one connection. It must be on the primary of this job's shard.
+	 *
+	 * @param DJUnitOfWork
+	 *            unitOfWork The unit of work, or null to unpin.
+	 */
+	public void setUnitOfWork(DJUnitOfWork unitOfWork) {
+		this.unitOfWork = unitOfWork;
+	}
+
+	/**
+	 * @return DJJobDao A dao on the pinned connection, or on the shard if none
+	 *         is pinned.
+	 */
+	protected DJJobDao getDao() {
+		if (this.unitOfWork != null) {
+			return this.unitOfWork.getDao(this.shard.getJobsTable());
+		}
+		return this.shard.getDao();
+	}
+
+	/**
+	 * Extends the lock lease of this job while it runs.
+	 *
+	 * @return boolean Whether this job's worker still holds the lock.
+	 */
+	public boolean renewLock() {
+		long now = System.currentTimeMillis();
+		if (!this.getStore().renewLock(this)) {
+			return false;
+		}
+		this.lockedAtMs = now;
 		return true;
 	}
 
@@ -123,25 +487,35 @@ public class DJJob extends DJBase {
 	 * Releases the lock on this job.
 	 */
 	public void releaseLock() {
-		DJJobDao dao = new DJJobDao();
-		StringBuilder sb = new StringBuilder();
-		sb.append(" UPDATE ");
-		sb.append(DJBase.jobsTable);
-		sb.append(" SET locked_at = NULL, locked_by = NULL ");
-		sb.append(" WHERE id = ?");
-		List<Object> args = new ArrayList<Object>();
-		args.add(this.jobId);
-		dao.execute(sb.toString(), args);
+		this.getStore().releaseLock(this);
 	}
 
 	/**
 	 * Finishes this job. Will delete it from the jobs table.
 	 */
 	public void finish() {
-		DJJobDao dao = new DJJobDao();
-		Job job = new Job();
-		job.setId(this.jobId);
-		dao.delete(job);
+		this.finish(null);
+	}
+
+	/**
+	 * Finishes this job, storing the result of its handler if it is a result
+	 * handler.
+	 *
+	 * @param null|object
+	 *            DJJobHandlerInterface The handler that ran this job.
+	 */
+	protected void finish(DJJobHandlerInterface handler) {
+		String result = null;
+		boolean storeResult = handler instanceof DJResultHandlerInterface;
+		if (storeResult) {
+			Object value = ((DJResultHandlerInterface) handler).djjobResult();
+			result = value == null ? null : Utils.serializationObj(value);
+		}
+
+		if (this.getStore().finish(this, result, storeResult)) {
+			DJJobResults.publish(this.getKey());
+		}
+		DJEventRing.record(DJEventRing.FINISHED, this);
 		log(DJBase.INFO, "[JOB] completed job::%d", this.jobId);
 	}
 
@@ -154,30 +528,55 @@ public class DJJob extends DJBase {
 	 *            DJJobHandlerInterface The handler that ran this job.
 	 */
 	public void finishWithError(String error, DJJobHandlerInterface handler) {
-		DJJobDao dao = new DJJobDao();
-		StringBuilder sb = new StringBuilder();
-		sb.append(" UPDATE ");
-		sb.append(DJBase.jobsTable);
-		sb.append(" SET attempts = attempts + 1, ");
-		sb.append(" failed_at = IF(attempts >= ?, NOW(), NULL), ");
-		sb.append(" error = IF(attempts >= ?, ?, NULL) ");
-		sb.append(" WHERE id = ?");
-		List<Object> args = new ArrayList<Object>();
-		args.add(this.maxAttempts);
-		args.add(this.maxAttempts);
-		args.add(error);
-		args.add(this.jobId);
-		dao.execute(sb.toString(), args);
+		this.finishWithError(error, handler, this.maxAttempts);
+	}
+
+	/**
+	 * Finishes this job with an error, failing it for good once it has been
+	 * attempted maxAttempts times.
+	 */
+	protected void finishWithError(String error, DJJobHandlerInterface handler, int maxAttempts) {
+		// the attempts are read on the same connection afterwards
+		boolean pinned = this.openUnitOfWork();
+		boolean storedResult = this.getStore().fail(this, error, maxAttempts,
+				handler instanceof DJResultHandlerInterface);
 
+		DJEventRing.record(DJEventRing.FAILED, this);
 		log(error, DJBase.ERROR);
 		log(DJBase.ERROR, "[JOB] failure in job::%d", this.jobId);
-		this.releaseLock();
+		if (storedResult) {
+			DJJobResults.publish(this.getKey());
+		}
 
-		if (handler != null && (this.getAttempts() == this.maxAttempts)) {
-			handler.onDjjobRetryError(error);
+		try {
+			if (handler != null && (this.getAttempts() >= maxAttempts)) {
+				handler.onDjjobRetryError(error);
+			}
+		} finally {
+			if (pinned) {
+				this.closeUnitOfWork();
+			}
 		}
 	}
 
+	/**
+	 * Records that this job was still running when its worker had to stop.
+	 * Counts as a failed attempt, unless the job finished in the meantime.
+	 * The job stays locked, so no other worker runs it while its handler
+	 * may still be running.
+	 *
+	 * Called from another thread than the one running the job, so it does
+	 * not use the pinned connection of the job.
+	 *
+	 * @param string
+	 *            error The error message to write to the job.
+	 */
+	public void timeout(String error) {
+		this.getStore().timeout(this, error, this.maxAttempts);
+		DJEventRing.record(DJEventRing.TIMED_OUT, this);
+		log(DJBase.ERROR, "[JOB] job::%d %s", this.jobId, error);
+	}
+
 	/**
 	 * Saves a retry date to this job.
 	 *
@@ -185,18 +584,21 @@ public class DJJob extends DJBase {
 	 *            delay The amount of seconds to delay this job.
 	 */
 	public void retryLater(long delay) {
-		DJJobDao dao = new DJJobDao();
-		StringBuilder sb = new StringBuilder();
-		sb.append(" UPDATE ");
-		sb.append(DJBase.jobsTable);
-		sb.append(" SET run_at = DATE_ADD(NOW(), INTERVAL ? SECOND), ");
-		sb.append(" attempts = attempts + 1 ");
-		sb.append(" WHERE id = ?");
-		List<Object> args = new ArrayList<Object>();
-		args.add(delay);
-		args.add(this.jobId);
-		dao.execute(sb.toString(), args);
-		this.releaseLock();
+		this.getStore().retryLater(this, delay);
+		DJEventRing.record(DJEventRing.RETRIED, this);
+	}
+
+	/**
+	 * Releases the lock and runs this job again later without counting an
+	 * attempt, see DJCircuitBreaker.
+	 *
+	 * @param long
+	 *            delay How many seconds to wait.
+	 */
+	public void defer(long delay) {
+		this.getStore().defer(this, delay);
+		DJEventRing.record(DJEventRing.DEFERRED, this);
+		DJMetrics.increment(DJMetrics.CIRCUIT_DEFERRED);
 	}
 
 	/**
@@ -207,25 +609,71 @@ public class DJJob extends DJBase {
 	 * @throws ClassNotFoundException
 	 */
 	public DJJobHandlerInterface getHandler() {
-		DJJobDao dao = new DJJobDao();
-		Job job = dao.loadByJobId(this.jobId);
-		if (job != null) {
-			String handlerStr = job.getHandler();
-			// format: classname:{jsonstr}
-			if (handlerStr != null && handlerStr.length() > 0) {
-				int clazzIndex = handlerStr.indexOf(":");
-				String clazzStr = handlerStr.substring(0, clazzIndex);
-				Object obj;
-				try {
-					obj = Utils.deserializationObj(handlerStr.substring(clazzIndex + 1), Class.forName(clazzStr));
-					if (DJJobHandlerInterface.class.isInstance(obj)) {
-						return (DJJobHandlerInterface) obj;
-					}
-				} catch (ClassNotFoundException e) {
-					e.printStackTrace();
-				}
+		String handlerStr = this.getStore().load(this);
+		if (handlerStr != null) {
+			return toHandler(handlerStr, this.shard);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the class name of the handler for this job, without loading
+	 * the handler itself.
+	 *
+	 * @return string The handler class name, or null if the job is gone.
+	 */
+	public String getHandlerClassName() {
+		if (!this.shard.hasJobsTable()) {
+			String handlerStr = this.getStore().load(this);
+			return handlerStr == null ? null : handlerStr.substring(0, handlerStr.indexOf(":"));
+		}
+
+		DJJobDao dao = this.getDao();
+		List<Object> args = new ArrayList<Object>();
+		args.add(this.jobId);
+		List<Object[]> rs = dao.executeQuery(dao.getSql().selectHandlerClass, args);
+		return rs.size() > 0 ? (String) rs.get(0)[0] : null;
+	}
+
+	/**
+	 * Whether the given handler class can perform jobs in batches.
+	 *
+	 * @param string
+	 *            className The handler class name.
+	 *
+	 * @return boolean
+	 */
+	public static boolean isBatchHandlerClass(String className) {
+		try {
+			return DJBatchJobHandlerInterface.class.isAssignableFrom(Class.forName(className));
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
 
+	private static DJJobHandlerInterface toHandler(String handlerStr, DJShard shard) {
+		// format: classname:{jsonstr} or classname:@payloadhash
+		if (handlerStr != null && handlerStr.length() > 0) {
+			int clazzIndex = handlerStr.indexOf(":");
+			String clazzStr = handlerStr.substring(0, clazzIndex);
+			String payload = handlerStr.substring(clazzIndex + 1);
+			if (payload.startsWith(PAYLOAD_REF)) {
+				payload = shard.loadPayload(payload.substring(PAYLOAD_REF.length()));
+				if (payload == null) {
+					log(DJBase.ERROR, "[JOB] missing payload %s", handlerStr);
+					return null;
+				}
 			}
+			Object obj;
+			try {
+				obj = Utils.deserializationObj(payload, Class.forName(clazzStr));
+				if (DJJobHandlerInterface.class.isInstance(obj)) {
+					return (DJJobHandlerInterface) obj;
+				}
+			} catch (ClassNotFoundException e) {
+				e.printStackTrace();
+			}
+
 		}
 		return null;
 	}
@@ -236,16 +684,27 @@ public class DJJob extends DJBase {
 	 * @return bool The amount of attempts left.
 	 */
 	public int getAttempts() {
-		DJJobDao dao = new DJJobDao();
-		Job job = dao.loadByJobId(this.jobId);
-		if (job != null) {
-			return job.getAttempts();
-		}
-		return 0;
+		return this.getStore().getAttempts(this);
 	}
 
-	private static String convertObjectToHandlerStr(DJJobHandlerInterface handler) {
-		return handler.getClass().getName() + ":" + Utils.serializationObj(handler);
+	/**
+	 * Serializes a handler for the jobs table of a shard, offloading a large
+	 * payload to the payload store of the shard. Every enqueue passes here,
+	 * so it is also where the workload recorder sees them.
+	 *
+	 * @return String[] The handler column, and the payload hash or null if
+	 *         the payload is inline.
+	 */
+	private static String[] convertObjectToHandlerStr(DJJobHandlerInterface handler, String queue, DJShard shard) {
+		String payload = Utils.serializationObj(handler);
+		DJWorkloadRecorder.enqueued(queue, handler.getClass(), payload.length());
+		String hash = shard.storePayload(payload);
+		if (hash != null) {
+			payload = PAYLOAD_REF + hash;
+		}
+		String affinity = handler instanceof DJAffinityHandlerInterface
+				? ((DJAffinityHandlerInterface) handler).djjobAffinityKey() : handler.getClass().getName();
+		return new String[] { handler.getClass().getName() + ":" + payload, hash, affinity };
 	}
 
 	/**
@@ -254,8 +713,8 @@ public class DJJob extends DJBase {
 	 * @param DJJobHandlerInterface
 	 *            handler The handler that can execute this job.
 	 * @param string
-	 *            queue The queue to enqueue this job to. All queues are saved
-	 *            in the same table.
+	 *            queue The queue to enqueue this job to. The queue is saved in
+	 *            the jobs table of the shard it is routed to.
 	 * @param string
 	 *            runAt A valid mysql DATETIME string at which to run the jobs.
 	 *
@@ -263,20 +722,247 @@ public class DJJob extends DJBase {
 	 *
 	 */
 	public static boolean enqueue(DJJobHandlerInterface handler, String queue, Date runAt) {
+		return enqueue(handler, queue, runAt, null, false);
+	}
+
+	/**
+	 * Enqueues a job to the database and returns its id, for instance to
+	 * enqueue jobs waiting for it.
+	 *
+	 * @param DJJobHandlerInterface
+	 *            handler The handler that can execute this job.
+	 * @param string
+	 *            queue The queue to enqueue this job to.
+	 * @param Date
+	 *            runAt A valid mysql DATETIME string at which to run the jobs.
+	 *
+	 * @return long The id of the job, or -1 if it was not enqueued.
+	 */
+	public static long enqueueAndGetId(DJJobHandlerInterface handler, String queue, Date runAt) {
+		return enqueueAfter(handler, queue, runAt);
+	}
+
+	/**
+	 * Enqueues a job that is only claimed once all of its parent jobs have
+	 * completed, for fan-in steps after jobs run in parallel.
+	 *
+	 * The job keeps a counter of the parents it still waits for, which
+	 * finishing a parent decrements. Parents that already completed are not
+	 * waited for. A parent that failed for good keeps its children waiting
+	 * until it is requeued and completes, see DJDeadLetter. The parents must
+	 * be in the jobs table of the shard the queue is routed to.
+	 *
+	 * @param DJJobHandlerInterface
+	 *            handler The handler that can execute this job.
+	 * @param string
+	 *            queue The queue to enqueue this job to.
+	 * @param Date
+	 *            runAt A valid mysql DATETIME string at which to run the jobs.
+	 * @param long...
+	 *            parentIds The ids of the jobs to wait for.
+	 *
+	 * @return long The id of the job, or -1 if it was not enqueued.
+	 */
+	public static long enqueueAfter(DJJobHandlerInterface handler, String queue, Date runAt, long... parentIds) {
 		if (queue == null) {
 			queue = "default";
 		}
 
-		DJJobDao dao = new DJJobDao();
-		StringBuilder sb = new StringBuilder();
-		sb.append(" INSERT INTO  ");
-		sb.append(DJBase.jobsTable);
-		sb.append("  (handler, queue, run_at, created_at) VALUES(?, ?, ?, NOW()) ");
+		DJShard shard = DJShardRouter.getShard(queue);
+		String[] handlerStr = convertObjectToHandlerStr(handler, queue, shard);
+		if (parentIds.length == 0) {
+			long jobId = shard.getJobStore().enqueue(handlerStr[0], queue, runAt, handlerStr[1], handlerStr[2]);
+			if (jobId < 0) {
+				log(DJBase.ERROR, "[JOB] failed to enqueue new job");
+			}
+			return jobId;
+		}
+		requireJobsTable(shard, "dependencies");
+
 		List<Object> args = new ArrayList<Object>();
-		args.add(convertObjectToHandlerStr(handler));
+		args.add(handlerStr[0]);
 		args.add(queue);
 		args.add(runAt);
-		boolean result = dao.execute(sb.toString(), args);
+		args.add(null);
+		args.add(handlerStr[1]);
+		args.add(handlerStr[2]);
+
+		// the job, its dependencies and its counter become visible together,
+		// and the parents are read locked until then, so a parent finishing
+		// meanwhile is either counted and released or not counted at all
+		DJUnitOfWork unitOfWork = shard.openUnitOfWork();
+		try {
+			DJJobDao dao = unitOfWork.getDao(shard.getJobsTable());
+			if (!unitOfWork.begin()) {
+				return -1;
+			}
+			args.add(parentIds.length);
+			long jobId = dao.executeInsert(dao.getSql().insertWaiting, args);
+
+			StringBuilder sb = new StringBuilder();
+			sb.append("INSERT INTO ");
+			sb.append(dao.getSql().dependenciesTable);
+			sb.append(" (parent_id, child_id) SELECT id, ? FROM ");
+			sb.append(shard.getJobsTable());
+			sb.append(" WHERE id IN (");
+			args = new ArrayList<Object>();
+			args.add(jobId);
+			for (long parentId : parentIds) {
+				sb.append(args.size() == 1 ? "?" : ", ?");
+				args.add(parentId);
+			}
+			sb.append(")");
+			int pending = jobId < 0 ? -1 : dao.executeUpdate(sb.toString(), args);
+
+			args = new ArrayList<Object>();
+			args.add(pending);
+			args.add(jobId);
+			if (pending < 0 || dao.executeUpdate(dao.getSql().setPendingParents, args) < 0
+					|| !unitOfWork.commit()) {
+				unitOfWork.rollback();
+				log(DJBase.ERROR, "[JOB] failed to enqueue new job");
+				return -1;
+			}
+			if (isLogEnabled(DJBase.DEBUG)) {
+				log(DJBase.DEBUG, "[JOB] job::%d waits for %d jobs", jobId, pending);
+			}
+			return jobId;
+		} finally {
+			unitOfWork.close();
+		}
+	}
+
+	/**
+	 * Enqueues a job that must be started within a number of seconds, for
+	 * queues with a service level.
+	 *
+	 * Workers with the `claim_order` 'deadline' claim such jobs earliest
+	 * deadline first. No worker starts a job after its deadline: the workers
+	 * sweep those from the queue, failing them for good or deleting them
+	 * depending on their `expired_jobs` option, and count them in
+	 * DJMetrics.DEADLINE_MISSED. The deadline is taken on the database clock.
+	 *
+	 * @param DJJobHandlerInterface
+	 *            handler The handler that can execute this job.
+	 * @param string
+	 *            queue The queue to enqueue this job to.
+	 * @param Date
+	 *            runAt A valid mysql DATETIME string at which to run the jobs.
+	 * @param int
+	 *            deadline How many seconds from now the job must be started
+	 *            in.
+	 *
+	 * @return long The id of the job, or -1 if it was not enqueued.
+	 */
+	public static long enqueueWithDeadline(DJJobHandlerInterface handler, String queue, Date runAt, int deadline) {
+		if (queue == null) {
+			queue = "default";
+		}
+
+		DJShard shard = DJShardRouter.getShard(queue);
+		requireJobsTable(shard, "deadlines");
+		DJJobDao dao = shard.getDao();
+		String[] handlerStr = convertObjectToHandlerStr(handler, queue, shard);
+		List<Object> args = new ArrayList<Object>();
+		args.add(handlerStr[0]);
+		args.add(queue);
+		args.add(runAt);
+		args.add(handlerStr[1]);
+		args.add(handlerStr[2]);
+		args.add(deadline);
+		long jobId = dao.executeInsert(dao.getSql().insertWithDeadline, args);
+		if (jobId < 0) {
+			log(DJBase.ERROR, "[JOB] failed to enqueue new job");
+		}
+		return jobId;
+	}
+
+	/**
+	 * Enqueues a job on behalf of a tenant, so workers with the `claim_order`
+	 * 'fair' take turns between the tenants of the queue instead of running
+	 * one tenant's backlog before everyone else's jobs.
+	 *
+	 * @param DJJobHandlerInterface
+	 *            handler The handler that can execute this job.
+	 * @param string
+	 *            queue The queue to enqueue this job to.
+	 * @param Date
+	 *            runAt A valid mysql DATETIME string at which to run the jobs.
+	 * @param string
+	 *            tenant The owner of the job, e.g. a customer id.
+	 *
+	 * @return long The id of the job, or -1 if it was not enqueued.
+	 */
+	public static long enqueueForTenant(DJJobHandlerInterface handler, String queue, Date runAt, String tenant) {
+		if (queue == null) {
+			queue = "default";
+		}
+
+		DJShard shard = DJShardRouter.getShard(queue);
+		requireJobsTable(shard, "tenants");
+		DJJobDao dao = shard.getDao();
+		String[] handlerStr = convertObjectToHandlerStr(handler, queue, shard);
+		List<Object> args = new ArrayList<Object>();
+		args.add(handlerStr[0]);
+		args.add(queue);
+		args.add(runAt);
+		args.add(handlerStr[1]);
+		args.add(handlerStr[2]);
+		args.add(tenant);
+		long jobId = dao.executeInsert(dao.getSql().insertForTenant, args);
+		if (jobId < 0) {
+			log(DJBase.ERROR, "[JOB] failed to enqueue new job");
+		}
+		return jobId;
+	}
+
+	/**
+	 * Enqueues a job to the database, at most once per unique key.
+	 *
+	 * While a job with the same unique key is still in the jobs table the new
+	 * job is rejected, or, with replacePending, its handler and run_at replace
+	 * those of the existing job as long as no worker has locked it yet. The
+	 * key is released when the job finishes or fails for good.
+	 *
+	 * @param DJJobHandlerInterface
+	 *            handler The handler that can execute this job.
+	 * @param string
+	 *            queue The queue to enqueue this job to, which also picks the
+	 *            shard.
+	 * @param Date
+	 *            runAt A valid mysql DATETIME string at which to run the jobs.
+	 * @param string
+	 *            uniqueKey The unique key of this job, or null for none.
+	 * @param boolean
+	 *            replacePending Whether a duplicate updates the pending job
+	 *            instead of being rejected.
+	 *
+	 * @return bool Returns insert result, a rejected duplicate counts as
+	 *         enqueued
+	 */
+	public static boolean enqueue(DJJobHandlerInterface handler, String queue, Date runAt, String uniqueKey,
+			boolean replacePending) {
+		if (queue == null) {
+			queue = "default";
+		}
+
+		if (uniqueKey == null) {
+			return enqueueAfter(handler, queue, runAt) >= 0;
+		}
+
+		DJShard shard = DJShardRouter.getShard(queue);
+		requireJobsTable(shard, "unique keys");
+		DJJobDao dao = shard.getDao();
+		String sql = replacePending ? dao.getSql().insertReplacing : dao.getSql().insertUnique;
+		List<Object> args = new ArrayList<Object>();
+		String[] handlerStr = convertObjectToHandlerStr(handler, queue, shard);
+		args.add(handlerStr[0]);
+		args.add(queue);
+		args.add(runAt);
+		args.add(uniqueKey);
+		args.add(handlerStr[1]);
+		args.add(handlerStr[2]);
+		boolean result = dao.execute(sql, args);
 		if (!result) {
 			log(DJBase.ERROR, "[JOB] failed to enqueue new job");
 			return false;
@@ -298,27 +984,128 @@ public class DJJob extends DJBase {
 	 * @return bool
 	 */
 	public static boolean bulkEnqueue(List<DJJobHandlerInterface> handlers, String queue, Date runAt) {
+		return bulkEnqueue(handlers, null, queue, runAt, false);
+	}
+
+	/**
+	 * Bulk enqueues a lot of jobs to the database, at most once per unique
+	 * key.
+	 *
+	 * Duplicates within the batch are collapsed before the insert: the first
+	 * one wins, or the last one with replacePending. Duplicates of jobs
+	 * already in the table behave as in
+	 * {@link #enqueue(DJJobHandlerInterface, String, Date, String, boolean)}.
+	 *
+	 * @param List<DJJobHandlerInterface>
+	 *            handlers An array of handlers to enqueue.
+	 * @param List<String>
+	 *            uniqueKeys The unique key of each handler, null entries have
+	 *            no key. May be null.
+	 * @param string
+	 *            queue The queue to enqueue the handlers to.
+	 * @param Date
+	 *            run_at A valid mysql DATETIME string at which to run the jobs.
+	 * @param boolean
+	 *            replacePending Whether a duplicate updates the pending job
+	 *            instead of being rejected.
+	 *
+	 * @return bool
+	 */
+	public static boolean bulkEnqueue(List<DJJobHandlerInterface> handlers, List<String> uniqueKeys, String queue,
+			Date runAt, boolean replacePending) {
+		return bulkEnqueue(handlers, uniqueKeys, queue, runAt, replacePending, null);
+	}
+
+	/**
+	 * Bulk enqueues a lot of jobs on behalf of a tenant, see
+	 * {@link #enqueueForTenant(DJJobHandlerInterface, String, Date, String)}.
+	 *
+	 * @param List<DJJobHandlerInterface>
+	 *            handlers An array of handlers to enqueue.
+	 * @param string
+	 *            queue The queue to enqueue the handlers to.
+	 * @param Date
+	 *            run_at A valid mysql DATETIME string at which to run the jobs.
+	 * @param string
+	 *            tenant The owner of the jobs.
+	 *
+	 * @return bool
+	 */
+	public static boolean bulkEnqueueForTenant(List<DJJobHandlerInterface> handlers, String queue, Date runAt,
+			String tenant) {
+		return bulkEnqueue(handlers, null, queue, runAt, false, tenant);
+	}
+
+	private static boolean bulkEnqueue(List<DJJobHandlerInterface> handlers, List<String> uniqueKeys, String queue,
+			Date runAt, boolean replacePending, String tenant) {
 		if (queue == null) {
 			queue = "default";
 		}
 
-		DJJobDao dao = new DJJobDao();
+		if (uniqueKeys != null && uniqueKeys.size() != handlers.size()) {
+			throw new DJException("uniqueKeys must have one entry per handler");
+		}
+
+		// collapse the duplicates within the batch, keeping the position of
+		// the first occurrence
+		List<Integer> rows = new ArrayList<Integer>();
+		Map<String, Integer> keyRows = new HashMap<String, Integer>();
+		for (int i = 0; i < handlers.size(); i++) {
+			String uniqueKey = uniqueKeys == null ? null : uniqueKeys.get(i);
+			if (uniqueKey == null) {
+				rows.add(i);
+				continue;
+			}
+
+			Integer row = keyRows.get(uniqueKey);
+			if (row == null) {
+				keyRows.put(uniqueKey, rows.size());
+				rows.add(i);
+			} else if (replacePending) {
+				rows.set(row, i);
+			}
+		}
+
+		DJShard shard = DJShardRouter.getShard(queue);
+		if (!shard.hasJobsTable()) {
+			if (!keyRows.isEmpty()) {
+				requireJobsTable(shard, "unique keys");
+			}
+			if (tenant != null) {
+				requireJobsTable(shard, "tenants");
+			}
+			boolean result = true;
+			for (int i : rows) {
+				result = enqueueAfter(handlers.get(i), queue, runAt) >= 0 && result;
+			}
+			return result;
+		}
+
+		DJJobDao dao = shard.getDao();
 		StringBuilder sb = new StringBuilder();
 		sb.append(" INSERT INTO  ");
-		sb.append(DJBase.jobsTable);
-		sb.append("  (handler, queue, run_at, created_at) VALUES ");
-		for (int i = 0; i < handlers.size(); i++) {
+		sb.append(shard.getJobsTable());
+		sb.append("  (handler, queue, run_at, created_at, unique_key, payload_hash, affinity, tenant) VALUES ");
+		for (int i = 0; i < rows.size(); i++) {
 			if (i != 0) {
 				sb.append(" , ");
 			}
-			sb.append(" (?, ?, ?, NOW())");
+			sb.append(" (?, ?, ?, NOW(), ?, ?, ?, ?)");
+		}
+		if (!keyRows.isEmpty()) {
+			appendOnDuplicateKey(sb, replacePending);
 		}
 
 		List<Object> args = new ArrayList<Object>();
-		for (DJJobHandlerInterface handler : handlers) {
-			args.add(convertObjectToHandlerStr(handler));
+		for (int i : rows) {
+			String[] handlerStr = convertObjectToHandlerStr(handlers.get(i), queue, shard);
+			args.add(handlerStr[0]);
 			args.add(queue);
 			args.add(runAt);
+			args.add(uniqueKeys == null ? null : uniqueKeys.get(i));
+			args.add(handlerStr[1]);
+			args.add(handlerStr[2]);
+			args.add(tenant);
 		}
 
 		boolean result = dao.execute(sb.toString(), args);
@@ -330,8 +1117,65 @@ public class DJJob extends DJBase {
 		return true;
 	}
 
+	private static void requireJobsTable(DJShard shard, String feature) {
+		if (!shard.hasJobsTable()) {
+			throw new DJException(feature + " need the jobs table, shard " + shard.getName() + " keeps its jobs in "
+					+ shard.getJobStore().getClass().getSimpleName());
+		}
+	}
+
+	private static void appendOnDuplicateKey(StringBuilder sb, boolean replacePending) {
+		sb.append(replacePending ? DJSqlCatalog.ON_DUPLICATE_REPLACE : DJSqlCatalog.ON_DUPLICATE_REJECT);
+	}
+
 	/**
-	 * Returns the general status of the jobs table.
+	 * Removes the jobs of a queue whose deadline passed before a worker
+	 * locked them, see
+	 * {@link #enqueueWithDeadline(DJJobHandlerInterface, String, Date, int)}.
+	 * Workers call it periodically.
+	 *
+	 * @param string
+	 *            queue The queue.
+	 * @param boolean
+	 *            drop Whether to delete the jobs rather than fail them for
+	 *            good, where the dead-letter API finds them.
+	 *
+	 * @return int How many jobs missed their deadline.
+	 */
+	public static int expire(String queue, boolean drop) {
+		DJShard shard = DJShardRouter.getShard(queue);
+		if (!shard.hasJobsTable()) {
+			return 0;
+		}
+		DJUnitOfWork unitOfWork = shard.openUnitOfWork();
+		try {
+			return expire(unitOfWork, shard.getJobsTable(), queue, drop);
+		} finally {
+			unitOfWork.close();
+		}
+	}
+
+	static int expire(DJUnitOfWork unitOfWork, String jobsTable, String queue, boolean drop) {
+		DJJobDao dao = unitOfWork.getDao(jobsTable);
+		List<Object> args = new ArrayList<Object>();
+		if (!drop) {
+			args.add("Deadline missed");
+		}
+		args.add(queue);
+		// the dropped jobs may be parents, see DJJdbcJobStore.delete
+		int expired = drop ? DJJdbcJobStore.delete(unitOfWork, jobsTable, dao.getSql().selectExpired, args)
+				: dao.executeUpdate(dao.getSql().failExpired, args);
+		if (expired > 0) {
+			DJMetrics.record(DJMetrics.DEADLINE_MISSED, expired);
+			log(DJBase.WARN, "[JOB] %s %d jobs of queue::%s that missed their deadline", drop ? "dropped" : "failed",
+					expired, queue);
+		}
+		return Math.max(expired, 0);
+	}
+
+	/**
+	 * Returns the general status of the jobs table. It is read from the
+	 * shard's replica when one is set, see {@link DJShard#getReadDao()}.
 	 *
 	 * @param string
 	 *            queue The queue of which to see the status for.
@@ -344,27 +1188,9 @@ public class DJJob extends DJBase {
 			queue = "default";
 		}
 
-		DJJobDao dao = new DJJobDao();
-		StringBuilder sb = new StringBuilder();
-		sb.append(" SELECT COUNT(*) as total, COUNT(failed_at) as failed, COUNT(locked_at) as locked FROM ");
-		sb.append(DJBase.jobsTable);
-		sb.append(" WHERE queue = ? ");
-
-		List<Object> args = new ArrayList<Object>();
-		args.add(queue);
-
-		List<Object[]> objList = dao.executeQuery(sb.toString(), args);
-
-		long total = 0, failed = 0, locked = 0, outstanding = 0;
-
-		if (objList.size() > 0) {
-			Object[] objs = objList.get(0);
-
-			total = (Long) objs[0];
-			failed = (Long) objs[1];
-			locked = (Long) objs[2];
-			outstanding = total - locked - failed;
-		}
+		long[] status = DJShardRouter.getShard(queue).getJobStore().status(queue);
+		long total = status[0], failed = status[1], locked = status[2];
+		long outstanding = total - locked - failed;
 
 		Map<String, Object> result = new HashMap<String, Object>();
 		result.put("outstanding", outstanding);
@@ -0,0 +1,312 @@
+package org.fartpig.jdjjob;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.fartpig.jdjjob.dao.DJJobDao;
+
+/**
+ * A typed query on the jobs of one shard, for inspecting large tables.
+ *
+ * The results are paged by ascending id: every page starts after the id of
+ * the last job of the previous one, so a page costs the same however deep
+ * into the table it is, and iterating keeps only one page in memory. Queries
+ * run on the replica of the shard if it has one.
+ */
+public class DJJobQuery {
+
+	// job states
+	public static final int PENDING = 0;
+	public static final int SCHEDULED = 1;
+	public static final int RUNNING = 2;
+	public static final int FAILED = 3;
+	// waiting for parent jobs, see DJJob.enqueueAfter
+	public static final int WAITING = 4;
+
+	private static final String[] STATE_CONDITIONS = {
+			" AND failed_at IS NULL AND locked_at IS NULL AND pending_parents = 0 "
+					+ " AND (run_at IS NULL OR run_at <= NOW()) ",
+			" AND failed_at IS NULL AND locked_at IS NULL AND pending_parents = 0 AND run_at > NOW() ",
+			" AND failed_at IS NULL AND locked_at IS NOT NULL ", " AND failed_at IS NOT NULL ",
+			" AND failed_at IS NULL AND pending_parents > 0 " };
+
+	private DJShard shard;
+	private String queue;
+	private int state = -1;
+	private String handlerClass;
+	private String tenant;
+	private String errorLike;
+	private boolean summary = false;
+	private Date createdAfter;
+	private Date createdBefore;
+	private Date runAfter;
+	private Date runBefore;
+	private Date failedAfter;
+	private Date failedBefore;
+
+	/**
+	 * A query on the jobs of a queue, on the shard the queue is routed to.
+	 *
+	 * @param string
+	 *            queue The queue, null for all the queues of the default
+	 *            shard.
+	 */
+	public DJJobQuery(String queue) {
+		this.queue = queue;
+		this.shard = queue == null ? DJShardRouter.getDefaultShard() : DJShardRouter.getShard(queue);
+	}
+
+	/**
+	 * A query on all the jobs of a shard.
+	 */
+	public DJJobQuery(DJShard shard) {
+		this.shard = shard;
+	}
+
+	/**
+	 * Only the jobs in the given state, one of the job states.
+	 */
+	public DJJobQuery state(int state) {
+		if (state < PENDING || state > WAITING) {
+			throw new IllegalArgumentException("unknown job state " + state);
+		}
+		this.state = state;
+		return this;
+	}
+
+	/**
+	 * Only the jobs of the given handler class.
+	 */
+	public DJJobQuery handlerClass(String className) {
+		this.handlerClass = className;
+		return this;
+	}
+
+	/**
+	 * Only the jobs of the given tenant, see DJJob.enqueueForTenant.
+	 */
+	public DJJobQuery tenant(String tenant) {
+		this.tenant = tenant;
+		return this;
+	}
+
+	/**
+	 * Only the jobs whose error contains the given text.
+	 */
+	public DJJobQuery errorContains(String text) {
+		this.errorLike = "%" + escapeLike(text) + "%";
+		return this;
+	}
+
+	/**
+	 * Only the jobs created within the given times, either may be null.
+	 */
+	public DJJobQuery createdBetween(Date after, Date before) {
+		this.createdAfter = after;
+		this.createdBefore = before;
+		return this;
+	}
+
+	/**
+	 * Only the jobs due within the given times, either may be null.
+	 */
+	public DJJobQuery runBetween(Date after, Date before) {
+		this.runAfter = after;
+		this.runBefore = before;
+		return this;
+	}
+
+	/**
+	 * Only the jobs that failed within the given times, either may be null.
+	 */
+	public DJJobQuery failedBetween(Date after, Date before) {
+		this.failedAfter = after;
+		this.failedBefore = before;
+		return this;
+	}
+
+	/**
+	 * Leaves the handler and error columns out of the loaded jobs, which are
+	 * most of the size of a row.
+	 */
+	public DJJobQuery withoutPayload() {
+		this.summary = true;
+		return this;
+	}
+
+	public DJShard getShard() {
+		return this.shard;
+	}
+
+	public String getQueue() {
+		return this.queue;
+	}
+
+	private static String escapeLike(String str) {
+		return str.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+
+	private static void range(StringBuilder sb, List<Object> args, String column, Date after, Date before) {
+		if (after != null) {
+			sb.append(" AND ").append(column).append(" >= ? ");
+			args.add(new Timestamp(after.getTime()));
+		}
+		if (before != null) {
+			sb.append(" AND ").append(column).append(" < ? ");
+			args.add(new Timestamp(before.getTime()));
+		}
+	}
+
+	/**
+	 * Builds the where clause of the query.
+	 *
+	 * @param List<Object>
+	 *            args Receives the arguments of the clause.
+	 *
+	 * @return string
+	 */
+	String where(List<Object> args) {
+		StringBuilder sb = new StringBuilder(" 1 = 1 ");
+		if (this.queue != null) {
+			sb.append(" AND queue = ? ");
+			args.add(this.queue);
+		}
+		if (this.state >= 0) {
+			sb.append(STATE_CONDITIONS[this.state]);
+		}
+		if (this.tenant != null) {
+			sb.append(" AND tenant = ? ");
+			args.add(this.tenant);
+		}
+		if (this.handlerClass != null) {
+			sb.append(" AND handler LIKE ? ");
+			args.add(escapeLike(this.handlerClass) + ":%");
+		}
+		if (this.errorLike != null) {
+			sb.append(" AND error LIKE ? ");
+			args.add(this.errorLike);
+		}
+		range(sb, args, "created_at", this.createdAfter, this.createdBefore);
+		range(sb, args, "run_at", this.runAfter, this.runBefore);
+		range(sb, args, "failed_at", this.failedAfter, this.failedBefore);
+		return sb.toString();
+	}
+
+	/**
+	 * @return long How many jobs match.
+	 */
+	public long count() {
+		List<Object> args = new ArrayList<Object>();
+		String where = this.where(args);
+		List<Object[]> rs = this.shard.getReadDao()
+				.executeQuery("SELECT COUNT(*) FROM " + this.shard.getJobsTable() + " WHERE " + where, args);
+		return rs.isEmpty() ? 0 : ((Number) rs.get(0)[0]).longValue();
+	}
+
+	/**
+	 * Loads one job for inspection, if it matches.
+	 *
+	 * @param long
+	 *            id The id of the job.
+	 *
+	 * @return Job The job, or null if it is gone or does not match.
+	 */
+	public Job find(long id) {
+		List<Object> args = new ArrayList<Object>();
+		String where = this.where(args) + " AND id = ? ";
+		args.add(id);
+		DJJobDao dao = this.shard.getReadDao();
+		List<Job> jobs = this.summary ? dao.findByCondition(DJJobDao.SUMMARY_COLUMNS, where, null, args)
+				: dao.findByCondition(where, null, args);
+		return jobs.isEmpty() ? null : jobs.get(0);
+	}
+
+	/**
+	 * Loads a page of the matching jobs.
+	 *
+	 * @param long
+	 *            afterId The id of the last job of the previous page, '0' for
+	 *            the first page.
+	 * @param int
+	 *            limit The page size.
+	 *
+	 * @return List<Job> The jobs by ascending id, none if the query failed.
+	 */
+	public List<Job> page(long afterId, int limit) {
+		List<Job> jobs = this.load(afterId, limit);
+		return jobs == null ? Collections.<Job>emptyList() : jobs;
+	}
+
+	/**
+	 * @return List<Job> The page, or null if the query failed.
+	 */
+	private List<Job> load(long afterId, int limit) {
+		List<Object> args = new ArrayList<Object>();
+		String where = this.where(args) + " AND id > ? ";
+		args.add(afterId);
+		args.add(limit);
+		DJJobDao dao = this.shard.getReadDao();
+		if (this.summary) {
+			return dao.findByConditionOrNull(DJJobDao.SUMMARY_COLUMNS, where, "id LIMIT ?", args);
+		}
+		return dao.findByConditionOrNull(where, "id LIMIT ?", args);
+	}
+
+	/**
+	 * Iterates over all the matching jobs, loading them a page at a time. Jobs
+	 * added behind the current page while iterating are included. A page that
+	 * fails to load throws a DJException from hasNext() or next(), so an
+	 * export never ends early without notice.
+	 *
+	 * @param int
+	 *            pageSize How many jobs to load at a time.
+	 *
+	 * @return Iterator<Job> The jobs by ascending id.
+	 */
+	public Iterator<Job> iterator(final int pageSize) {
+		return new Iterator<Job>() {
+
+			private List<Job> page = Collections.<Job>emptyList();
+			private int index = 0;
+			private long lastId = 0;
+			private boolean done = false;
+
+			public boolean hasNext() {
+				if (this.index < this.page.size()) {
+					return true;
+				}
+				if (this.done) {
+					return false;
+				}
+				List<Job> page = DJJobQuery.this.load(this.lastId, pageSize);
+				if (page == null) {
+					throw new DJException("could not load the jobs after job::" + this.lastId + " of "
+							+ DJJobQuery.this.shard.getJobsTable());
+				}
+				this.page = page;
+				this.index = 0;
+				this.done = this.page.size() < pageSize;
+				return !this.page.isEmpty();
+			}
+
+			public Job next() {
+				if (!this.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Job job = this.page.get(this.index++);
+				this.lastId = job.getId().longValue();
+				return job;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+		};
+	}
+}
@@ -0,0 +1,55 @@
+package org.fartpig.jdjjob;
+
+/**
+ * The stored outcome of a job whose handler implements
+ * DJResultHandlerInterface.
+ */
+public class DJJobResult {
+
+	public static final int SUCCEEDED = 0;
+	public static final int FAILED = 1;
+
+	private long jobId;
+	private int status;
+	private String value;
+
+	public DJJobResult(long jobId, int status, String value) {
+		this.jobId = jobId;
+		this.status = status;
+		this.value = value;
+	}
+
+	public long getJobId() {
+		return this.jobId;
+	}
+
+	public boolean isSucceeded() {
+		return this.status == SUCCEEDED;
+	}
+
+	/**
+	 * @return string The result as JSON, or null if the job failed.
+	 */
+	public String getResult() {
+		return this.status == SUCCEEDED ? this.value : null;
+	}
+
+	/**
+	 * @param Class<T>
+	 *            clazz The type to read the result as.
+	 *
+	 * @return T The result, or null if the job failed or returned null.
+	 */
+	public <T> T getResult(Class<T> clazz) {
+		String result = this.getResult();
+		return result == null ? null : Utils.deserializationObj(result, clazz);
+	}
+
+	/**
+	 * @return string The error the job failed with for good, or null if it
+	 *         succeeded.
+	 */
+	public String getError() {
+		return this.status == FAILED ? this.value : null;
+	}
+}
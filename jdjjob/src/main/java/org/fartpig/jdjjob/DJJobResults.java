@@ -0,0 +1,210 @@
+package org.fartpig.jdjjob;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.fartpig.jdjjob.dao.DJJobDao;
+
+/**
+ * Reads and waits for the outcomes of jobs whose handler implements
+ * DJResultHandlerInterface.
+ *
+ * The outcome is stored in the results table of the shard in the same
+ * transaction that deletes a finished job or fails it for good, and kept for
+ * the `result_ttl` of the worker. A wait is woken right away when the job
+ * completes in this JVM, otherwise it polls the table with a back-off from
+ * 50 milliseconds up to 2 seconds.
+ */
+public class DJJobResults extends DJBase {
+
+	private static final long MIN_POLL_MS = 50;
+	private static final long MAX_POLL_MS = 2000;
+	private static final int COLLECT_CHUNK = 1000;
+
+	private static final Object monitor = new Object();
+	// guarded by monitor: the waiters per job key, and how many of the waited
+	// for jobs completed in this JVM
+	private static final Map<String, Integer> waiting = new HashMap<String, Integer>();
+	private static long signals = 0;
+
+	private DJJobResults() {
+	}
+
+	/**
+	 * Wakes the waits for a job that completed in this JVM.
+	 *
+	 * @param string
+	 *            jobKey The job key, see {@link DJJob#getKey()}.
+	 */
+	static void publish(String jobKey) {
+		synchronized (monitor) {
+			if (waiting.containsKey(jobKey)) {
+				signals += 1;
+				monitor.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @param string
+	 *            queue The queue of the job.
+	 * @param long
+	 *            jobId The job id.
+	 *
+	 * @return DJJobResult The outcome, or null if the job has not completed
+	 *         or its result expired.
+	 */
+	public static DJJobResult get(String queue, long jobId) {
+		return get(queue, Collections.singletonList(jobId)).get(jobId);
+	}
+
+	/**
+	 * @param string
+	 *            queue The queue of the jobs.
+	 * @param Collection<Long>
+	 *            jobIds The job ids.
+	 *
+	 * @return Map<Long,DJJobResult> The outcomes of the jobs that completed,
+	 *         by id.
+	 */
+	public static Map<Long, DJJobResult> get(String queue, Collection<Long> jobIds) {
+		Map<Long, DJJobResult> results = new HashMap<Long, DJJobResult>();
+		if (jobIds.isEmpty()) {
+			return results;
+		}
+
+		// the primary, a replica may not have the result yet
+		DJShard shard = DJShardRouter.getShard(queue == null ? "default" : queue);
+		DJJobDao dao = shard.getDao();
+		StringBuilder sb = new StringBuilder();
+		sb.append("SELECT job_id, status, result FROM ");
+		sb.append(dao.getSql().resultsTable);
+		sb.append(" WHERE expires_at > NOW() AND job_id IN (");
+		List<Object> args = new ArrayList<Object>();
+		for (Long jobId : jobIds) {
+			sb.append(args.isEmpty() ? "?" : ", ?");
+			args.add(jobId);
+		}
+		sb.append(")");
+
+		for (Object[] obj : dao.executeQuery(sb.toString(), args)) {
+			long jobId = ((Number) obj[0]).longValue();
+			results.put(jobId, new DJJobResult(jobId, ((Number) obj[1]).intValue(), (String) obj[2]));
+		}
+		return results;
+	}
+
+	/**
+	 * Waits for a job to complete.
+	 *
+	 * @param string
+	 *            queue The queue of the job.
+	 * @param long
+	 *            jobId The job id.
+	 * @param long
+	 *            timeoutMs How long to wait at most.
+	 *
+	 * @return DJJobResult The outcome, or null if the job did not complete in
+	 *         time.
+	 */
+	public static DJJobResult await(String queue, long jobId, long timeoutMs) throws InterruptedException {
+		return awaitAll(queue, Collections.singletonList(jobId), timeoutMs).get(jobId);
+	}
+
+	/**
+	 * Waits for several jobs to complete.
+	 *
+	 * @param string
+	 *            queue The queue of the jobs.
+	 * @param Collection<Long>
+	 *            jobIds The job ids.
+	 * @param long
+	 *            timeoutMs How long to wait at most.
+	 *
+	 * @return Map<Long,DJJobResult> The outcomes of the jobs that completed in
+	 *         time, by id.
+	 */
+	public static Map<Long, DJJobResult> awaitAll(String queue, Collection<Long> jobIds, long timeoutMs)
+			throws InterruptedException {
+		String shardName = DJShardRouter.getShard(queue == null ? "default" : queue).getName();
+		Set<Long> pending = new LinkedHashSet<Long>(jobIds);
+		List<String> keys = new ArrayList<String>();
+		for (Long jobId : pending) {
+			keys.add(shardName + ":" + jobId);
+		}
+
+		long seen;
+		synchronized (monitor) {
+			for (String key : keys) {
+				Integer count = waiting.get(key);
+				waiting.put(key, count == null ? 1 : count + 1);
+			}
+			seen = signals;
+		}
+
+		Map<Long, DJJobResult> results = new HashMap<Long, DJJobResult>();
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		long pollMs = MIN_POLL_MS;
+		try {
+			while (true) {
+				Map<Long, DJJobResult> found = get(queue, pending);
+				results.putAll(found);
+				pending.removeAll(found.keySet());
+
+				long left = deadline - System.currentTimeMillis();
+				if (pending.isEmpty() || left <= 0) {
+					break;
+				}
+
+				boolean signaled;
+				synchronized (monitor) {
+					if (signals == seen) {
+						monitor.wait(Math.min(pollMs, left));
+					}
+					signaled = signals != seen;
+					seen = signals;
+				}
+				pollMs = signaled ? MIN_POLL_MS : Math.min(pollMs * 2, MAX_POLL_MS);
+			}
+		} finally {
+			synchronized (monitor) {
+				for (String key : keys) {
+					Integer count = waiting.get(key);
+					if (count <= 1) {
+						waiting.remove(key);
+					} else {
+						waiting.put(key, count - 1);
+					}
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Deletes the expired results of the shard of a queue, a chunk at a time.
+	 *
+	 * @param string
+	 *            queue The queue, which picks the shard.
+	 *
+	 * @return int How many results were deleted.
+	 */
+	public static int collect(String queue) {
+		DJJobDao dao = DJShardRouter.getShard(queue == null ? "default" : queue).getDao();
+		String sql = "DELETE FROM " + dao.getSql().resultsTable + " WHERE expires_at <= NOW() LIMIT " + COLLECT_CHUNK;
+		int total = 0;
+		int deleted;
+		do {
+			deleted = dao.executeUpdate(sql, Collections.<Object>emptyList());
+			total += Math.max(deleted, 0);
+		} while (deleted == COLLECT_CHUNK);
+		log(DJBase.DEBUG, "[RESULT] collected %d expired results", total);
+		return total;
+	}
+}
@@ -0,0 +1,174 @@
+package org.fartpig.jdjjob;
+
+import java.sql.Date;
+import java.util.List;
+
+import org.fartpig.jdjjob.dao.DJUnitOfWork;
+
+/**
+ * Where the jobs of a shard are kept and how they change state on their way
+ * through the queue, see DJShard.setJobStore.
+ *
+ * DJJdbcJobStore keeps them in the jobs table and is the default. Unique
+ * keys, dependencies, results, batches, the scheduler and the query and
+ * dead-letter APIs need it. DJMemoryJobStore and DJJournalJobStore keep
+ * them in this process, for high rate queues that do not need those.
+ */
+public interface DJJobStoreInterface {
+
+	// the claim orders, see the `claim_order` worker option
+	public static final String CREATED_ORDER = "created";
+	public static final String DEADLINE_ORDER = "deadline";
+	public static final String FAIR_ORDER = "fair";
+
+	/**
+	 * @param string
+	 *            handler The serialized handler.
+	 * @param string
+	 *            queue The queue of the job.
+	 * @param Date
+	 *            runAt When to run the job, null for now.
+	 * @param null|string
+	 *            payloadHash The hash of the payload offloaded to the payload
+	 *            store of the shard, or null if it is inline.
+	 * @param string
+	 *            affinity The affinity key of the job, see
+	 *            DJAffinityHandlerInterface.
+	 *
+	 * @return long The id of the job, or -1 if it was not enqueued.
+	 */
+	public long enqueue(String handler, String queue, Date runAt, String payloadHash, String affinity);
+
+	/**
+	 * Finds jobs of a queue a worker may lock: due, not failed, attempted
+	 * fewer than maxAttempts times, and not locked by another worker, unless
+	 * its lock lease expired.
+	 *
+	 * @param string
+	 *            queue The queue.
+	 * @param string
+	 *            workerName The name of the claiming worker.
+	 * @param int
+	 *            lockTimeout The lock lease in seconds, '0' if locks never
+	 *            expire.
+	 * @param int
+	 *            maxAttempts The attempts after which a job is not claimed.
+	 * @param string
+	 *            order The claim order, CREATED_ORDER, DEADLINE_ORDER for the
+	 *            jobs with a deadline first, earliest deadline first, or
+	 *            FAIR_ORDER for the jobs of one tenant after the other. Stores
+	 *            without deadlines and tenants ignore it.
+	 * @param List<String>
+	 *            affinity The affinity keys whose jobs to return first, in the
+	 *            claim order, may be empty. Stores without affinity keys
+	 *            ignore them.
+	 * @param DJUnitOfWork
+	 *            unitOfWork The unit of work the claim and the claimed job
+	 *            share, unused by the stores outside the database.
+	 *
+	 * @return List<Long> The ids of the candidates, in the order to try them.
+	 */
+	public List<Long> claim(String queue, String workerName, int lockTimeout, int maxAttempts, String order,
+			List<String> affinity, DJUnitOfWork unitOfWork);
+
+	/**
+	 * Locks a job for the worker of the job, if it is still claimable.
+	 *
+	 * @return boolean Whether the worker holds the lock now.
+	 */
+	public boolean lock(DJJob job, int lockTimeout);
+
+	/**
+	 * @return string The serialized handler of a job, or null if it is gone.
+	 */
+	public String load(DJJob job);
+
+	/**
+	 * @return int How many times a job has been attempted.
+	 */
+	public int getAttempts(DJJob job);
+
+	/**
+	 * Deletes a job that completed.
+	 *
+	 * @param DJJob
+	 *            job The job.
+	 * @param null|string
+	 *            result The serialized result to keep for result handlers, or
+	 *            null.
+	 * @param boolean
+	 *            storeResult Whether the handler is a result handler.
+	 *
+	 * @return boolean Whether a result was stored.
+	 */
+	public boolean finish(DJJob job, String result, boolean storeResult);
+
+	/**
+	 * Counts a failed attempt and releases the lock of a job, failing it for
+	 * good once it has been attempted maxAttempts times.
+	 *
+	 * @param DJJob
+	 *            job The job.
+	 * @param string
+	 *            error The error message.
+	 * @param int
+	 *            maxAttempts The attempts after which the job fails for good.
+	 * @param boolean
+	 *            storeResult Whether the handler is a result handler.
+	 *
+	 * @return boolean Whether a failure result was stored.
+	 */
+	public boolean fail(DJJob job, String error, int maxAttempts, boolean storeResult);
+
+	/**
+	 * Counts a failed attempt of a job that timed out, unless the job
+	 * finished or the lock was lost in the meantime. The lock is kept, as the
+	 * handler may still be running. Called from another thread than the one
+	 * running the job.
+	 */
+	public void timeout(DJJob job, String error, int maxAttempts);
+
+	/**
+	 * Counts an attempt, releases the lock and runs the job again later.
+	 *
+	 * @param long
+	 *            delay How many seconds to wait.
+	 */
+	public void retryLater(DJJob job, long delay);
+
+	/**
+	 * Releases the lock and runs the job again later, without counting an
+	 * attempt.
+	 *
+	 * @param long
+	 *            delay How many seconds to wait.
+	 */
+	public void defer(DJJob job, long delay);
+
+	/**
+	 * Extends the lock lease of a running job. Called from another thread
+	 * than the one running the job.
+	 *
+	 * @return boolean Whether the worker of the job still holds its lock.
+	 */
+	public boolean renewLock(DJJob job);
+
+	/**
+	 * Releases the lock of a job, if its worker holds it.
+	 */
+	public void releaseLock(DJJob job);
+
+	/**
+	 * Releases all locks of a worker name.
+	 */
+	public void releaseLocks(String workerName);
+
+	/**
+	 * @param string
+	 *            queue The queue.
+	 *
+	 * @return long[] How many jobs the queue has in total, how many failed
+	 *         and how many are locked.
+	 */
+	public long[] status(String queue);
+}
@@ -0,0 +1,420 @@
+package org.fartpig.jdjjob;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the jobs of a shard in this process like DJMemoryJobStore, and
+ * appends every change to a memory-mapped journal file they are read back
+ * from on start, for durable queues on a single node.
+ *
+ * Only enqueues, deletes and the changes of attempts, run_at and failures
+ * are journaled. Locks are not: on start every job is unlocked, as the
+ * workers that held them exited with the process. Each record is framed by
+ * its length and CRC32, reading stops at the first torn one.
+ *
+ * Writes go to the page cache and survive the process, with `sync` they are
+ * also forced to the disk before the change returns, which survives the
+ * machine but is much slower. Once the journal grows past `compact_size`,
+ * or twice its size after the last compaction, the jobs still kept are
+ * written to a new journal that replaces it.
+ */
+public class DJJournalJobStore extends DJMemoryJobStore {
+
+	private static final byte ENQUEUED = 1;
+	private static final byte CHANGED = 2;
+	private static final byte REMOVED = 3;
+	// the next id, so ids are not reused after a compaction
+	private static final byte SEQUENCE = 4;
+
+	// length and CRC32 of a record
+	private static final int FRAME = 8;
+
+	private File file;
+	private boolean sync;
+	private long initialSize;
+	private long compactSize;
+
+	// changes take the read lock, a compaction the write lock
+	private final ReadWriteLock compaction = new ReentrantReadWriteLock();
+
+	// guarded by this
+	private RandomAccessFile raf;
+	private MappedByteBuffer buffer;
+	private int position;
+	private long compactAt;
+
+	/**
+	 * Opens the journal and reads the jobs back from it, creating it if it
+	 * does not exist.
+	 *
+	 * Possible options: `sync`: Whether to force every change to the disk.
+	 * Default: 'false' `initial_size`: How many bytes to map at first, the
+	 * mapping doubles when it is full. Default: '16777216'
+	 * `compact_size`: How many bytes the journal may grow to before the first
+	 * compaction. Default: '67108864'
+	 *
+	 * @param File
+	 *            file The journal file.
+	 * @param Map<String,Object>
+	 *            options The options.
+	 */
+	public DJJournalJobStore(File file, Map<String, Object> options) throws IOException {
+		Map<String, Object> originalMap = new HashMap<String, Object>();
+		originalMap.put("sync", false);
+		originalMap.put("initial_size", 16 * 1024 * 1024);
+		originalMap.put("compact_size", 64 * 1024 * 1024);
+
+		options = Utils.mergeMaps(originalMap, options);
+
+		this.file = file;
+		this.sync = (Boolean) options.get("sync");
+		this.initialSize = ((Number) options.get("initial_size")).longValue();
+		this.compactSize = ((Number) options.get("compact_size")).longValue();
+		this.open();
+		this.replay();
+	}
+
+	private synchronized void open() throws IOException {
+		this.raf = new RandomAccessFile(this.file, "rw");
+		long size = Math.max(this.raf.length(), this.initialSize);
+		this.raf.setLength(size);
+		this.buffer = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	private synchronized void replay() {
+		ByteBuffer in = this.buffer.duplicate();
+		int end = 0;
+		boolean torn = false;
+		long maxId = 0;
+		long now = System.currentTimeMillis();
+		while (end + FRAME <= in.capacity()) {
+			int length = in.getInt(end);
+			if (length <= 0 || end + FRAME + length > in.capacity()) {
+				torn = length != 0;
+				break;
+			}
+			byte[] record = new byte[length];
+			in.position(end + FRAME);
+			in.get(record);
+			CRC32 crc = new CRC32();
+			crc.update(record);
+			if ((int) crc.getValue() != in.getInt(end + 4)) {
+				torn = true;
+				break;
+			}
+			maxId = Math.max(maxId, this.apply(ByteBuffer.wrap(record)));
+			end += FRAME + length;
+		}
+
+		if (torn) {
+			// so records appended later are not followed by a stale tail
+			for (int i = end; i < this.buffer.capacity(); i++) {
+				this.buffer.put(i, (byte) 0);
+			}
+			DJBase.log(DJBase.WARN, "[JOURNAL] %s ends in a torn record at %d, ignored", this.file, end);
+		}
+		this.position = end;
+		this.compactAt = Math.max(this.compactSize, 2L * end);
+		this.nextId.set(Math.max(this.nextId.get(), maxId));
+
+		for (Entry entry : this.jobs.values()) {
+			this.schedule(entry, entry.state.get(), now);
+		}
+		DJBase.log(DJBase.INFO, "[JOURNAL] %s opened with %d jobs, %d bytes", this.file, this.jobs.size(), end);
+	}
+
+	/**
+	 * Applies a record read back from the journal.
+	 *
+	 * @return long The largest id the record mentions.
+	 */
+	private long apply(ByteBuffer record) {
+		byte type = record.get();
+		long id = record.getLong();
+		if (type == ENQUEUED) {
+			long createdAtMs = record.getLong();
+			String queue = readString(record);
+			String handler = readString(record);
+			this.jobs.put(id, new Entry(id, queue, handler, createdAtMs, readState(record)));
+		} else if (type == CHANGED) {
+			Entry entry = this.jobs.get(id);
+			if (entry != null) {
+				entry.state.set(readState(record));
+			}
+		} else if (type == REMOVED) {
+			this.jobs.remove(id);
+		}
+		return id;
+	}
+
+	public long enqueue(String handler, String queue, Date runAt, String payloadHash, String affinity) {
+		this.compaction.readLock().lock();
+		try {
+			return super.enqueue(handler, queue, runAt, payloadHash, affinity);
+		} finally {
+			this.compaction.readLock().unlock();
+			this.compactIfDue();
+		}
+	}
+
+	public boolean finish(DJJob job, String result, boolean storeResult) {
+		this.compaction.readLock().lock();
+		try {
+			return super.finish(job, result, storeResult);
+		} finally {
+			this.compaction.readLock().unlock();
+			this.compactIfDue();
+		}
+	}
+
+	public boolean fail(DJJob job, String error, int maxAttempts, boolean storeResult) {
+		this.compaction.readLock().lock();
+		try {
+			return super.fail(job, error, maxAttempts, storeResult);
+		} finally {
+			this.compaction.readLock().unlock();
+			this.compactIfDue();
+		}
+	}
+
+	public void timeout(DJJob job, String error, int maxAttempts) {
+		this.compaction.readLock().lock();
+		try {
+			super.timeout(job, error, maxAttempts);
+		} finally {
+			this.compaction.readLock().unlock();
+			this.compactIfDue();
+		}
+	}
+
+	public void retryLater(DJJob job, long delay) {
+		this.compaction.readLock().lock();
+		try {
+			super.retryLater(job, delay);
+		} finally {
+			this.compaction.readLock().unlock();
+			this.compactIfDue();
+		}
+	}
+
+	public void defer(DJJob job, long delay) {
+		this.compaction.readLock().lock();
+		try {
+			super.defer(job, delay);
+		} finally {
+			this.compaction.readLock().unlock();
+			this.compactIfDue();
+		}
+	}
+
+	protected void enqueued(Entry entry) {
+		this.append(encode(ENQUEUED, entry));
+	}
+
+	protected void changed(Entry entry) {
+		// the state as it is now, a concurrent change of the same job may
+		// have been journaled before this one
+		synchronized (this) {
+			this.append(encode(CHANGED, entry));
+		}
+	}
+
+	protected void removed(Entry entry) {
+		this.append(encode(REMOVED, entry));
+	}
+
+	private synchronized void append(byte[] record) {
+		try {
+			if (this.position + FRAME + record.length > this.buffer.capacity()) {
+				long size = Math.max(2L * this.buffer.capacity(), this.position + FRAME + record.length);
+				this.raf.setLength(size);
+				this.buffer = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+		} catch (IOException e) {
+			throw new DJException("journal " + this.file + " could not grow: " + e.getMessage());
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		this.buffer.position(this.position + FRAME);
+		this.buffer.put(record);
+		this.buffer.putInt(this.position + 4, (int) crc.getValue());
+		// the length last, a record is not read before it is complete
+		this.buffer.putInt(this.position, record.length);
+		this.position += FRAME + record.length;
+		if (this.sync) {
+			this.buffer.force();
+		}
+	}
+
+	/**
+	 * @return long How many bytes of the journal are used.
+	 */
+	public synchronized long getJournalSize() {
+		return this.position;
+	}
+
+	private void compactIfDue() {
+		boolean due;
+		synchronized (this) {
+			due = this.position >= this.compactAt;
+		}
+		if (due) {
+			this.compact(true);
+		}
+	}
+
+	/**
+	 * Rewrites the journal with only the jobs still kept, while changes wait.
+	 */
+	public void compact() {
+		this.compact(false);
+	}
+
+	private void compact(boolean onlyIfDue) {
+		this.compaction.writeLock().lock();
+		try {
+			synchronized (this) {
+				// another change may have compacted it already
+				if (!onlyIfDue || this.position >= this.compactAt) {
+					this.rewrite();
+				}
+			}
+		} catch (IOException e) {
+			DJBase.log(DJBase.ERROR, "[JOURNAL] compacting %s failed: %s", this.file, e.getMessage());
+		} finally {
+			this.compaction.writeLock().unlock();
+		}
+	}
+
+	private void rewrite() throws IOException {
+		long before = this.position;
+		File tmp = new File(this.file.getPath() + ".compact");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+		int size = 0;
+		try {
+			size += writeFramed(out, encodeSequence(this.nextId.get()));
+			for (Entry entry : this.jobs.values()) {
+				size += writeFramed(out, encode(ENQUEUED, entry));
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		this.raf.close();
+		if (!tmp.renameTo(this.file)) {
+			tmp.delete();
+			this.open();
+			throw new IOException("could not replace " + this.file);
+		}
+		this.open();
+		this.position = size;
+		this.compactAt = Math.max(this.compactSize, 2L * size);
+		DJBase.log(DJBase.INFO, "[JOURNAL] compacted %s from %d to %d bytes, %d jobs", this.file, before, size,
+				this.jobs.size());
+	}
+
+	private static int writeFramed(DataOutputStream out, byte[] record) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		out.writeInt(record.length);
+		out.writeInt((int) crc.getValue());
+		out.write(record);
+		return FRAME + record.length;
+	}
+
+	/**
+	 * Forces the journal to the disk and closes it.
+	 */
+	public synchronized void close() {
+		this.buffer.force();
+		try {
+			this.raf.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static byte[] encodeSequence(long nextId) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(SEQUENCE);
+		out.writeLong(nextId);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] encode(byte type, Entry entry) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(type == ENQUEUED ? 64 + entry.handler.length() : 64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(type);
+			out.writeLong(entry.id);
+			if (type == ENQUEUED) {
+				out.writeLong(entry.createdAtMs);
+				writeString(out, entry.queue);
+				writeString(out, entry.handler);
+			}
+			if (type != REMOVED) {
+				State state = entry.state.get();
+				out.writeInt(state.attempts);
+				out.writeLong(state.runAtMs);
+				out.writeLong(state.failedAtMs);
+				writeString(out, state.error);
+			}
+		} catch (IOException e) {
+			// not thrown by a byte array
+			throw new DJException(e.getMessage());
+		}
+		return bytes.toByteArray();
+	}
+
+	private static State readState(ByteBuffer in) {
+		int attempts = in.getInt();
+		long runAtMs = in.getLong();
+		long failedAtMs = in.getLong();
+		String error = readString(in);
+		return new State(attempts, runAtMs, null, 0, failedAtMs, error);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (IOException e) {
+			throw new DJException(e.getMessage());
+		}
+	}
+}
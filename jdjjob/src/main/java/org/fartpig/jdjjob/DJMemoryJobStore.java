@@ -0,0 +1,404 @@
+package org.fartpig.jdjjob;
+
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.fartpig.jdjjob.dao.DJUnitOfWork;
+
+/**
+ * Keeps the jobs of a shard in this process only, for queues whose jobs may
+ * be lost when it exits.
+ *
+ * Nothing on the claim path takes a lock: the ready jobs of each queue are
+ * ids in a lock-free queue, the delayed ones in a lock-free skip list by
+ * run_at, and the state of a job is replaced as a whole by compare-and-set.
+ * A claim polls an id and sets the lock in one step, so there are no lock
+ * conflicts between workers to spread out and the ready jobs are claimed
+ * oldest first. Ids may be polled for jobs that changed since they were
+ * queued, those are skipped.
+ *
+ * Locks do not expire: a worker can only lose its jobs by exiting, and then
+ * the jobs are gone with it.
+ */
+public class DJMemoryJobStore implements DJJobStoreInterface {
+
+	/**
+	 * A job. Its state is replaced, never changed.
+	 */
+	static class Entry {
+		final long id;
+		final String queue;
+		final String handler;
+		final long createdAtMs;
+		final AtomicReference<State> state;
+
+		Entry(long id, String queue, String handler, long createdAtMs, State state) {
+			this.id = id;
+			this.queue = queue;
+			this.handler = handler;
+			this.createdAtMs = createdAtMs;
+			this.state = new AtomicReference<State>(state);
+		}
+	}
+
+	static class State {
+		final int attempts;
+		final long runAtMs;
+		final String lockedBy;
+		final long lockedAtMs;
+		// 0 while the job has not failed for good
+		final long failedAtMs;
+		final String error;
+
+		State(int attempts, long runAtMs, String lockedBy, long lockedAtMs, long failedAtMs, String error) {
+			this.attempts = attempts;
+			this.runAtMs = runAtMs;
+			this.lockedBy = lockedBy;
+			this.lockedAtMs = lockedAtMs;
+			this.failedAtMs = failedAtMs;
+			this.error = error;
+		}
+
+		State lock(String workerName, long nowMs) {
+			return new State(this.attempts, this.runAtMs, workerName, nowMs, this.failedAtMs, this.error);
+		}
+
+		State unlock() {
+			return new State(this.attempts, this.runAtMs, null, 0, this.failedAtMs, this.error);
+		}
+
+		boolean isLockedBy(String workerName) {
+			return workerName.equals(this.lockedBy);
+		}
+
+		boolean isReady(long nowMs) {
+			return this.lockedBy == null && this.failedAtMs == 0 && this.runAtMs <= nowMs;
+		}
+	}
+
+	/**
+	 * A delayed job, ordered by when it is due.
+	 */
+	private static class Due implements Comparable<Due> {
+		final long runAtMs;
+		final long id;
+		final String queue;
+
+		Due(long runAtMs, long id, String queue) {
+			this.runAtMs = runAtMs;
+			this.id = id;
+			this.queue = queue;
+		}
+
+		public int compareTo(Due other) {
+			if (this.runAtMs != other.runAtMs) {
+				return this.runAtMs < other.runAtMs ? -1 : 1;
+			}
+			return this.id < other.id ? -1 : (this.id == other.id ? 0 : 1);
+		}
+	}
+
+	protected final AtomicLong nextId = new AtomicLong();
+	protected final Map<Long, Entry> jobs = new ConcurrentHashMap<Long, Entry>();
+	private final Map<String, Queue<Long>> ready = new ConcurrentHashMap<String, Queue<Long>>();
+	private final ConcurrentSkipListSet<Due> delayed = new ConcurrentSkipListSet<Due>();
+
+	public long enqueue(String handler, String queue, Date runAt, String payloadHash, String affinity) {
+		long now = System.currentTimeMillis();
+		State state = new State(0, runAt == null ? 0 : runAt.getTime(), null, 0, 0, null);
+		Entry entry = new Entry(this.nextId.incrementAndGet(), queue, handler, now, state);
+		this.enqueued(entry);
+		this.jobs.put(entry.id, entry);
+		this.schedule(entry, state, now);
+		return entry.id;
+	}
+
+	public List<Long> claim(String queue, String workerName, int lockTimeout, int maxAttempts, String order,
+			List<String> affinity, DJUnitOfWork unitOfWork) {
+		long now = System.currentTimeMillis();
+		this.promote(now);
+
+		Queue<Long> ids = this.getReady(queue);
+		List<Long> skipped = null;
+		Long id;
+		try {
+			while ((id = ids.poll()) != null) {
+				Entry entry = this.jobs.get(id);
+				if (entry == null) {
+					continue;
+				}
+				State state = entry.state.get();
+				if (!state.isReady(now)) {
+					// queued again by whatever makes it ready
+					continue;
+				}
+				if (state.attempts >= maxAttempts) {
+					// left for workers allowing more attempts
+					if (skipped == null) {
+						skipped = new ArrayList<Long>();
+					}
+					skipped.add(id);
+					continue;
+				}
+				if (entry.state.compareAndSet(state, state.lock(workerName, now))) {
+					return Collections.singletonList(id);
+				}
+			}
+		} finally {
+			if (skipped != null) {
+				ids.addAll(skipped);
+			}
+		}
+		return Collections.emptyList();
+	}
+
+	public boolean lock(DJJob job, int lockTimeout) {
+		Entry entry = this.jobs.get(job.getJobId());
+		if (entry == null) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		while (true) {
+			State state = entry.state.get();
+			if (!state.isLockedBy(job.getWorkerName()) && !state.isReady(now)) {
+				return false;
+			}
+			if (entry.state.compareAndSet(state, state.lock(job.getWorkerName(), now))) {
+				return true;
+			}
+		}
+	}
+
+	public String load(DJJob job) {
+		Entry entry = this.jobs.get(job.getJobId());
+		return entry == null ? null : entry.handler;
+	}
+
+	public int getAttempts(DJJob job) {
+		Entry entry = this.jobs.get(job.getJobId());
+		return entry == null ? 0 : entry.state.get().attempts;
+	}
+
+	public boolean finish(DJJob job, String result, boolean storeResult) {
+		Entry entry = this.jobs.remove(job.getJobId());
+		if (entry != null) {
+			this.removed(entry);
+		}
+		return false;
+	}
+
+	public boolean fail(DJJob job, String error, int maxAttempts, boolean storeResult) {
+		Entry entry = this.jobs.get(job.getJobId());
+		if (entry == null) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		State next;
+		while (true) {
+			State state = entry.state.get();
+			int attempts = state.attempts + 1;
+			boolean failed = attempts >= maxAttempts;
+			boolean held = state.isLockedBy(job.getWorkerName());
+			next = new State(attempts, state.runAtMs, held ? null : state.lockedBy, held ? 0 : state.lockedAtMs,
+					failed ? now : 0, failed ? error : null);
+			if (entry.state.compareAndSet(state, next)) {
+				break;
+			}
+		}
+		this.changed(entry);
+		this.schedule(entry, next, now);
+		return false;
+	}
+
+	public void timeout(DJJob job, String error, int maxAttempts) {
+		Entry entry = this.jobs.get(job.getJobId());
+		if (entry == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		State next;
+		while (true) {
+			State state = entry.state.get();
+			if (!state.isLockedBy(job.getWorkerName())) {
+				return;
+			}
+			int attempts = state.attempts + 1;
+			next = new State(attempts, state.runAtMs, state.lockedBy, state.lockedAtMs,
+					attempts >= maxAttempts ? now : 0, error);
+			if (entry.state.compareAndSet(state, next)) {
+				break;
+			}
+		}
+		this.changed(entry);
+		this.schedule(entry, next, now);
+	}
+
+	public void retryLater(DJJob job, long delay) {
+		Entry entry = this.jobs.get(job.getJobId());
+		if (entry == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		State next;
+		while (true) {
+			State state = entry.state.get();
+			boolean held = state.isLockedBy(job.getWorkerName());
+			next = new State(state.attempts + 1, now + delay * 1000, held ? null : state.lockedBy,
+					held ? 0 : state.lockedAtMs, state.failedAtMs, state.error);
+			if (entry.state.compareAndSet(state, next)) {
+				break;
+			}
+		}
+		this.changed(entry);
+		this.schedule(entry, next, now);
+	}
+
+	public void defer(DJJob job, long delay) {
+		Entry entry = this.jobs.get(job.getJobId());
+		if (entry == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		State next;
+		while (true) {
+			State state = entry.state.get();
+			if (!state.isLockedBy(job.getWorkerName())) {
+				return;
+			}
+			next = new State(state.attempts, now + delay * 1000, null, 0, state.failedAtMs, state.error);
+			if (entry.state.compareAndSet(state, next)) {
+				break;
+			}
+		}
+		this.changed(entry);
+		this.schedule(entry, next, now);
+	}
+
+	public boolean renewLock(DJJob job) {
+		// locks do not expire here
+		Entry entry = this.jobs.get(job.getJobId());
+		return entry != null && entry.state.get().isLockedBy(job.getWorkerName());
+	}
+
+	public void releaseLock(DJJob job) {
+		Entry entry = this.jobs.get(job.getJobId());
+		if (entry != null) {
+			this.release(entry, job.getWorkerName());
+		}
+	}
+
+	public void releaseLocks(String workerName) {
+		for (Entry entry : this.jobs.values()) {
+			this.release(entry, workerName);
+		}
+	}
+
+	private void release(Entry entry, String workerName) {
+		while (true) {
+			State state = entry.state.get();
+			if (!state.isLockedBy(workerName)) {
+				return;
+			}
+			State next = state.unlock();
+			if (entry.state.compareAndSet(state, next)) {
+				this.schedule(entry, next, System.currentTimeMillis());
+				return;
+			}
+		}
+	}
+
+	public long[] status(String queue) {
+		long[] status = new long[3];
+		for (Entry entry : this.jobs.values()) {
+			if (!entry.queue.equals(queue)) {
+				continue;
+			}
+			State state = entry.state.get();
+			status[0] += 1;
+			if (state.failedAtMs != 0) {
+				status[1] += 1;
+			}
+			if (state.lockedBy != null) {
+				status[2] += 1;
+			}
+		}
+		return status;
+	}
+
+	/**
+	 * @return int How many jobs are kept, including the failed ones.
+	 */
+	public int size() {
+		return this.jobs.size();
+	}
+
+	private Queue<Long> getReady(String queue) {
+		Queue<Long> ids = this.ready.get(queue);
+		if (ids == null) {
+			synchronized (this.ready) {
+				ids = this.ready.get(queue);
+				if (ids == null) {
+					ids = new ConcurrentLinkedQueue<Long>();
+					this.ready.put(queue, ids);
+				}
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Queues a job that is unlocked and not failed, for now or for later.
+	 */
+	protected void schedule(Entry entry, State state, long nowMs) {
+		if (state.lockedBy != null || state.failedAtMs != 0) {
+			return;
+		}
+		if (state.runAtMs <= nowMs) {
+			this.getReady(entry.queue).offer(entry.id);
+		} else {
+			this.delayed.add(new Due(state.runAtMs, entry.id, entry.queue));
+		}
+	}
+
+	/**
+	 * Moves the delayed jobs that are due to the ready queues.
+	 */
+	private void promote(long nowMs) {
+		Due due;
+		while ((due = this.delayed.pollFirst()) != null) {
+			if (due.runAtMs > nowMs) {
+				this.delayed.add(due);
+				return;
+			}
+			this.getReady(due.queue).offer(due.id);
+		}
+	}
+
+	/**
+	 * Called before a new job becomes visible.
+	 */
+	protected void enqueued(Entry entry) {
+	}
+
+	/**
+	 * Called after the attempts, run_at or failure of a job changed. Lock
+	 * changes are not reported.
+	 */
+	protected void changed(Entry entry) {
+	}
+
+	/**
+	 * Called after a job was deleted.
+	 */
+	protected void removed(Entry entry) {
+	}
+}
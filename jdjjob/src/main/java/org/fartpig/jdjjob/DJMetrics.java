@@ -0,0 +1,140 @@
+package org.fartpig.jdjjob;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide counters of the job queue, each keeping the number of
+ * recorded values, their total, their maximum and the last one, which makes
+ * a metric recorded periodically a gauge.
+ */
+public final class DJMetrics {
+
+	// microseconds spent waiting for a pooled connection, per checkout
+	public static final String POOL_WAIT = "pool_wait_us";
+
+	// the autoscaler of the workers, see DJAutoscaler: the concurrency limit,
+	// the ready jobs and the age of the oldest one at each check, and the
+	// number of decisions to scale up or down
+	public static final String CONCURRENCY = "worker_concurrency";
+	public static final String BACKLOG = "worker_backlog";
+	public static final String BACKLOG_AGE = "worker_backlog_age_ms";
+	public static final String SCALE_UP = "worker_scale_up";
+	public static final String SCALE_DOWN = "worker_scale_down";
+
+	// the claimed jobs another worker locked before this one could, see
+	// DJWorker.getNewJob()
+	public static final String CLAIM_LOST = "claim_lost";
+
+	// the jobs whose deadline passed before a worker started them, per sweep
+	public static final String DEADLINE_MISSED = "deadline_missed";
+
+	// the circuit breakers of the handler classes, see DJCircuitBreaker: how
+	// often one opened, and the jobs deferred while one was open
+	public static final String CIRCUIT_OPENED = "circuit_opened";
+	public static final String CIRCUIT_DEFERRED = "circuit_deferred";
+
+	private static final Map<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+
+	private DJMetrics() {
+	}
+
+	private static class Metric {
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong total = new AtomicLong();
+		final AtomicLong max = new AtomicLong();
+		final AtomicLong last = new AtomicLong();
+
+		void record(long value) {
+			this.last.set(value);
+			this.count.incrementAndGet();
+			this.total.addAndGet(value);
+			long max;
+			while ((max = this.max.get()) < value && !this.max.compareAndSet(max, value)) {
+			}
+		}
+	}
+
+	private static Metric get(String name) {
+		Metric metric = metrics.get(name);
+		if (metric == null) {
+			synchronized (metrics) {
+				metric = metrics.get(name);
+				if (metric == null) {
+					metric = new Metric();
+					metrics.put(name, metric);
+				}
+			}
+		}
+		return metric;
+	}
+
+	/**
+	 * Records a value.
+	 *
+	 * @param string
+	 *            name The metric.
+	 * @param long
+	 *            value The value, a duration or an amount.
+	 */
+	public static void record(String name, long value) {
+		get(name).record(value);
+	}
+
+	/**
+	 * Counts one occurrence.
+	 *
+	 * @param string
+	 *            name The metric.
+	 */
+	public static void increment(String name) {
+		get(name).record(1);
+	}
+
+	public static long getCount(String name) {
+		Metric metric = metrics.get(name);
+		return metric == null ? 0 : metric.count.get();
+	}
+
+	public static long getTotal(String name) {
+		Metric metric = metrics.get(name);
+		return metric == null ? 0 : metric.total.get();
+	}
+
+	public static long getMax(String name) {
+		Metric metric = metrics.get(name);
+		return metric == null ? 0 : metric.max.get();
+	}
+
+	public static long getLast(String name) {
+		Metric metric = metrics.get(name);
+		return metric == null ? 0 : metric.last.get();
+	}
+
+	/**
+	 * @return Map<String,Map<String,Long>> The count, total, max and last
+	 *         value of every metric, by name.
+	 */
+	public static Map<String, Map<String, Long>> snapshot() {
+		Map<String, Map<String, Long>> result = new TreeMap<String, Map<String, Long>>();
+		for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+			Map<String, Long> values = new LinkedHashMap<String, Long>();
+			values.put("count", entry.getValue().count.get());
+			values.put("total", entry.getValue().total.get());
+			values.put("max", entry.getValue().max.get());
+			values.put("last", entry.getValue().last.get());
+			result.put(entry.getKey(), values);
+		}
+		return result;
+	}
+
+	/**
+	 * Forgets all recorded values.
+	 */
+	public static void reset() {
+		metrics.clear();
+	}
+}
@@ -0,0 +1,50 @@
+package org.fartpig.jdjjob;
+
+/**
+ * Content addressed storage for handler payloads too large to keep in the
+ * jobs table. Equal payloads are stored once.
+ */
+public interface DJPayloadStoreInterface {
+
+	/**
+	 * Stores a payload, or refreshes it if it is already stored.
+	 *
+	 * @param string
+	 *            payload The serialized handler.
+	 *
+	 * @return string The hash the payload is stored under, or null if it
+	 *         could not be stored.
+	 */
+	public String put(String payload);
+
+	/**
+	 * @param string
+	 *            hash The hash returned by put.
+	 *
+	 * @return string The payload, or null if it is not stored.
+	 */
+	public String get(String hash);
+
+	/**
+	 * Adds a shard whose jobs use this store. Called by
+	 * DJShard.setPayloadStore.
+	 *
+	 * @param DJShard
+	 *            shard The shard.
+	 */
+	public void addShard(DJShard shard);
+
+	/**
+	 * Deletes the payloads no job of any shard using this store refers to
+	 * any more. Only payloads stored or refreshed more than minAge seconds
+	 * ago are deleted, so a payload whose job is being enqueued right now is
+	 * kept. Shards using the store in other processes must be added in this
+	 * one too.
+	 *
+	 * @param int
+	 *            minAge The minimum age in seconds.
+	 *
+	 * @return int How many payloads were deleted.
+	 */
+	public int collect(int minAge);
+}
@@ -0,0 +1,172 @@
+package org.fartpig.jdjjob;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a bounded buffer of locked jobs filled while the worker runs the
+ * current one, so the worker does not wait for a claim round trip between
+ * jobs.
+ *
+ * Each buffered claim keeps the connection it was claimed on, see
+ * {@link DJWorker#getPoolSize()}.
+ *
+ * Jobs that are never taken from the buffer are released when the prefetcher
+ * stops. If the worker dies instead, the lock lease (`lock_timeout`) lets
+ * other workers claim them again.
+ */
+public class DJPrefetcher extends DJBase implements Runnable {
+
+	private DJWorker worker;
+	private int lockTimeout;
+	private BlockingQueue<List<DJJob>> buffer;
+	// ids claimed by us but not done yet, the claim query would return them
+	// again since they are locked by this worker's name
+	private Set<String> held = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private volatile boolean running = false;
+	private Thread thread;
+
+	/**
+	 * @param DJWorker
+	 *            worker The worker to claim jobs for.
+	 * @param int
+	 *            size How many claims (single jobs or batches) to buffer.
+	 * @param int
+	 *            lockTimeout The lock lease in seconds, '0' if locks never
+	 *            expire.
+	 */
+	public DJPrefetcher(DJWorker worker, int size, int lockTimeout) {
+		this.worker = worker;
+		this.lockTimeout = lockTimeout;
+		this.buffer = new ArrayBlockingQueue<List<DJJob>>(size);
+	}
+
+	/**
+	 * Starts the claimer thread.
+	 */
+	public void start() {
+		this.running = true;
+		this.thread = new Thread(this, "djjob-prefetcher-" + this.worker.getName());
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Stops the claimer thread and releases the jobs that were never taken.
+	 */
+	public void stop() {
+		this.running = false;
+		if (this.thread != null) {
+			this.thread.interrupt();
+			try {
+				this.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		List<List<DJJob>> left = new ArrayList<List<DJJob>>();
+		this.buffer.drainTo(left);
+		for (List<DJJob> jobs : left) {
+			this.release(jobs);
+		}
+	}
+
+	/**
+	 * Takes the next prefetched claim, renewing its locks if they have been
+	 * buffered for more than half the lease.
+	 *
+	 * @param long
+	 *            timeoutMs How long to wait for a claim.
+	 *
+	 * @return List<DJJob> The locked jobs, or null if none came in time.
+	 */
+	public List<DJJob> take(long timeoutMs) throws InterruptedException {
+		List<DJJob> jobs = this.buffer.poll(timeoutMs, TimeUnit.MILLISECONDS);
+		if (jobs == null || this.lockTimeout <= 0) {
+			return jobs;
+		}
+
+		Iterator<DJJob> it = jobs.iterator();
+		while (it.hasNext()) {
+			DJJob job = it.next();
+			if (job.getLockHeldMs() > this.lockTimeout * 500L && !job.acquireLock()) {
+				// the lease ran out and another worker took it over
+				DJEventRing.record(DJEventRing.LOCK_LOST, job);
+				job.closeUnitOfWork();
+				this.held.remove(job.getKey());
+				it.remove();
+			}
+		}
+		return jobs.isEmpty() ? null : jobs;
+	}
+
+	/**
+	 * Marks taken jobs as done, so they may be claimed again if they are
+	 * retried.
+	 *
+	 * @param List<DJJob>
+	 *            jobs The jobs returned by take.
+	 */
+	public void done(List<DJJob> jobs) {
+		for (DJJob job : jobs) {
+			this.held.remove(job.getKey());
+		}
+	}
+
+	/**
+	 * Whether the given job is buffered or running.
+	 *
+	 * @param string
+	 *            jobKey The job key, see {@link DJJob#getKey()}.
+	 *
+	 * @return boolean
+	 */
+	public boolean isHeld(String jobKey) {
+		return this.held.contains(jobKey);
+	}
+
+	public void run() {
+		log(DJBase.INFO, "[PREFETCHER] Starting prefetcher for %s", this.worker.getName());
+
+		while (this.running) {
+			List<DJJob> jobs = null;
+			try {
+				DJJob job = this.worker.getNewJob();
+				if (job == null) {
+					this.worker.waitForJob();
+					continue;
+				}
+
+				jobs = this.worker.getBatch(job);
+				for (DJJob claimed : jobs) {
+					this.held.add(claimed.getKey());
+				}
+				this.buffer.put(jobs);
+			} catch (InterruptedException e) {
+				if (jobs != null) {
+					this.release(jobs);
+				}
+				break;
+			}
+		}
+
+		log(DJBase.INFO, "[PREFETCHER] prefetcher for %s stopped", this.worker.getName());
+	}
+
+	private void release(List<DJJob> jobs) {
+		for (DJJob job : jobs) {
+			job.releaseLock();
+			job.closeUnitOfWork();
+		}
+		this.done(jobs);
+	}
+}
@@ -0,0 +1,377 @@
+package org.fartpig.jdjjob;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Samples the CPU time and the heap allocated by jobs, per handler class,
+ * to find the expensive handlers without attaching a profiler.
+ *
+ * Every `sampleRate`-th job run by DJJob.run() in this process is measured
+ * on the thread running it, via the ThreadMXBean: loading its handler, i.e.
+ * fetching and deserializing the payload, and performing it. The values go
+ * into histograms of power of two buckets, readable here or over JMX, see
+ * DJProfilerMBean. Profiling is off until setSampleRate() is called. Batch
+ * jobs are not profiled. The allocated bytes are measured only on JVMs whose
+ * ThreadMXBean is a com.sun.management.ThreadMXBean, e.g. HotSpot.
+ */
+public final class DJProfiler {
+
+	// measures
+	public static final String PERFORM_CPU = "perform_cpu_ns";
+	public static final String PERFORM_ALLOCATED = "perform_allocated_bytes";
+	public static final String LOAD_CPU = "load_cpu_ns";
+	public static final String LOAD_ALLOCATED = "load_allocated_bytes";
+
+	private static final String[] MEASURES = { PERFORM_CPU, PERFORM_ALLOCATED, LOAD_CPU, LOAD_ALLOCATED };
+
+	public static final String OBJECT_NAME = "org.fartpig.jdjjob:type=Profiler";
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private static final boolean cpuSupported = threads.isCurrentThreadCpuTimeSupported();
+	private static final boolean allocatedSupported = isAllocatedSupported();
+
+	// histograms by handler class name, then measure
+	private static final Map<String, Map<String, Histogram>> histograms = new ConcurrentHashMap<String, Map<String, Histogram>>();
+	private static final AtomicLong jobs = new AtomicLong();
+	private static volatile int sampleRate = 0;
+	private static boolean registered = false;
+
+	private DJProfiler() {
+	}
+
+	/**
+	 * The allocation counters of the HotSpot ThreadMXBean, in a class of its
+	 * own that is loaded only once the JVM is known to have them.
+	 */
+	private static class Allocation {
+		static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) DJProfiler.threads;
+
+		static boolean isSupported() {
+			return threads.isThreadAllocatedMemorySupported();
+		}
+
+		static void enable() {
+			if (!threads.isThreadAllocatedMemoryEnabled()) {
+				threads.setThreadAllocatedMemoryEnabled(true);
+			}
+		}
+
+		static long allocatedBytes() {
+			return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+	}
+
+	private static boolean isAllocatedSupported() {
+		try {
+			return Class.forName("com.sun.management.ThreadMXBean").isInstance(threads) && Allocation.isSupported();
+		} catch (ClassNotFoundException e) {
+			return false;
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Counts values in power of two buckets.
+	 */
+	private static class Histogram {
+		final AtomicLongArray buckets = new AtomicLongArray(65);
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong total = new AtomicLong();
+		final AtomicLong max = new AtomicLong();
+
+		void record(long value) {
+			value = Math.max(value, 0);
+			this.buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+			this.count.incrementAndGet();
+			this.total.addAndGet(value);
+			long max;
+			while ((max = this.max.get()) < value && !this.max.compareAndSet(max, value)) {
+			}
+		}
+
+		long percentile(double percentile) {
+			long count = this.count.get();
+			long rank = (long) Math.ceil(count * percentile / 100.0);
+			long seen = 0;
+			for (int i = 0; i < this.buckets.length(); i++) {
+				seen += this.buckets.get(i);
+				if (seen >= Math.max(rank, 1)) {
+					long upper = i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : (1L << i) - 1;
+					return Math.min(upper, this.max.get());
+				}
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * The measurements of one job, taken on the thread running it.
+	 */
+	public static final class Sample {
+		private long cpu;
+		private long allocated;
+		private long loadCpu;
+		private long loadAllocated;
+
+		private Sample() {
+			this.cpu = cpuTime();
+			this.allocated = allocatedBytes();
+		}
+
+		/**
+		 * Marks the handler as loaded and the start of performing it.
+		 */
+		public void loaded() {
+			long cpu = cpuTime();
+			long allocated = allocatedBytes();
+			this.loadCpu = cpu - this.cpu;
+			this.loadAllocated = allocated - this.allocated;
+			this.cpu = cpu;
+			this.allocated = allocated;
+		}
+
+		/**
+		 * Records the sample once the handler performed.
+		 *
+		 * @param Class<?>
+		 *            handlerClass The handler class of the job.
+		 */
+		public void performed(Class<?> handlerClass) {
+			long cpu = cpuTime() - this.cpu;
+			long allocated = allocatedBytes() - this.allocated;
+			Map<String, Histogram> measures = get(handlerClass.getName());
+			if (cpuSupported) {
+				measures.get(LOAD_CPU).record(this.loadCpu);
+				measures.get(PERFORM_CPU).record(cpu);
+			}
+			if (allocatedSupported) {
+				measures.get(LOAD_ALLOCATED).record(this.loadAllocated);
+				measures.get(PERFORM_ALLOCATED).record(allocated);
+			}
+		}
+	}
+
+	private static long cpuTime() {
+		return cpuSupported ? threads.getCurrentThreadCpuTime() : 0;
+	}
+
+	private static long allocatedBytes() {
+		if (!allocatedSupported) {
+			return 0;
+		}
+		return Allocation.allocatedBytes();
+	}
+
+	private static Map<String, Histogram> get(String handler) {
+		Map<String, Histogram> measures = histograms.get(handler);
+		if (measures == null) {
+			synchronized (histograms) {
+				measures = histograms.get(handler);
+				if (measures == null) {
+					measures = new ConcurrentHashMap<String, Histogram>();
+					for (String measure : MEASURES) {
+						measures.put(measure, new Histogram());
+					}
+					histograms.put(handler, measures);
+				}
+			}
+		}
+		return measures;
+	}
+
+	private static Histogram find(String handler, String measure) {
+		Map<String, Histogram> measures = histograms.get(handler);
+		return measures == null ? null : measures.get(measure);
+	}
+
+	/**
+	 * Starts measuring a job if it is sampled.
+	 *
+	 * @return Sample The sample, or null if the job is not profiled.
+	 */
+	public static Sample start() {
+		int rate = sampleRate;
+		if (rate <= 0 || jobs.incrementAndGet() % rate != 0) {
+			return null;
+		}
+		return new Sample();
+	}
+
+	/**
+	 * Sets every how many jobs one is profiled and registers the MBean.
+	 *
+	 * @param int
+	 *            rate '1' to profile every job, '0' to stop profiling.
+	 */
+	public static void setSampleRate(int rate) {
+		if (rate > 0) {
+			if (!cpuSupported) {
+				DJBase.log(DJBase.WARN, "[PROFILER] thread CPU time is not supported by this JVM");
+			} else if (!threads.isThreadCpuTimeEnabled()) {
+				threads.setThreadCpuTimeEnabled(true);
+			}
+			if (allocatedSupported) {
+				Allocation.enable();
+			}
+			registerMBean();
+		}
+		sampleRate = Math.max(rate, 0);
+	}
+
+	public static int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Registers the profiler with the platform MBean server, once.
+	 */
+	public static synchronized void registerMBean() {
+		if (registered) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(new StandardMBean(new View(), DJProfilerMBean.class), new ObjectName(OBJECT_NAME));
+			registered = true;
+		} catch (Exception e) {
+			DJBase.log(DJBase.WARN, "[PROFILER] could not register %s: %s", OBJECT_NAME, e.getMessage());
+		}
+	}
+
+	public static List<String> getHandlers() {
+		return new ArrayList<String>(new TreeSet<String>(histograms.keySet()));
+	}
+
+	public static long getCount(String handler, String measure) {
+		Histogram histogram = find(handler, measure);
+		return histogram == null ? 0 : histogram.count.get();
+	}
+
+	public static long getTotal(String handler, String measure) {
+		Histogram histogram = find(handler, measure);
+		return histogram == null ? 0 : histogram.total.get();
+	}
+
+	public static long getMax(String handler, String measure) {
+		Histogram histogram = find(handler, measure);
+		return histogram == null ? 0 : histogram.max.get();
+	}
+
+	/**
+	 * @param double
+	 *            percentile From 0 to 100.
+	 *
+	 * @return long The upper bound of the bucket holding the percentile, at
+	 *         most the largest value.
+	 */
+	public static long getPercentile(String handler, String measure, double percentile) {
+		Histogram histogram = find(handler, measure);
+		return histogram == null ? 0 : histogram.percentile(percentile);
+	}
+
+	public static long[] getBuckets(String handler, String measure) {
+		Histogram histogram = find(handler, measure);
+		long[] buckets = new long[65];
+		for (int i = 0; histogram != null && i < buckets.length; i++) {
+			buckets[i] = histogram.buckets.get(i);
+		}
+		return buckets;
+	}
+
+	/**
+	 * @return List<String> A line per handler class with the count, total,
+	 *         mean, p50, p99 and max of the measure, the largest total first.
+	 */
+	public static List<String> top(final String measure, int limit) {
+		List<String> handlers = getHandlers();
+		Collections.sort(handlers, new Comparator<String>() {
+			public int compare(String a, String b) {
+				long ta = getTotal(a, measure);
+				long tb = getTotal(b, measure);
+				return ta < tb ? 1 : ta > tb ? -1 : 0;
+			}
+		});
+		List<String> lines = new ArrayList<String>();
+		for (String handler : handlers.subList(0, Math.min(Math.max(limit, 0), handlers.size()))) {
+			long count = getCount(handler, measure);
+			long total = getTotal(handler, measure);
+			lines.add(String.format("%s count=%d total=%d mean=%d p50=%d p99=%d max=%d", handler, count, total,
+					count == 0 ? 0 : total / count, getPercentile(handler, measure, 50),
+					getPercentile(handler, measure, 99), getMax(handler, measure)));
+		}
+		return lines;
+	}
+
+	/**
+	 * Forgets all samples.
+	 */
+	public static void reset() {
+		histograms.clear();
+		jobs.set(0);
+	}
+
+	/**
+	 * The MBean, forwarding to the static methods.
+	 */
+	private static class View implements DJProfilerMBean {
+
+		public int getSampleRate() {
+			return DJProfiler.getSampleRate();
+		}
+
+		public void setSampleRate(int sampleRate) {
+			DJProfiler.setSampleRate(sampleRate);
+		}
+
+		public String[] getHandlers() {
+			return DJProfiler.getHandlers().toArray(new String[0]);
+		}
+
+		public String[] getMeasures() {
+			return MEASURES.clone();
+		}
+
+		public long getCount(String handler, String measure) {
+			return DJProfiler.getCount(handler, measure);
+		}
+
+		public long getTotal(String handler, String measure) {
+			return DJProfiler.getTotal(handler, measure);
+		}
+
+		public long getMax(String handler, String measure) {
+			return DJProfiler.getMax(handler, measure);
+		}
+
+		public long getPercentile(String handler, String measure, double percentile) {
+			return DJProfiler.getPercentile(handler, measure, percentile);
+		}
+
+		public long[] getBuckets(String handler, String measure) {
+			return DJProfiler.getBuckets(handler, measure);
+		}
+
+		public String[] top(String measure, int limit) {
+			return DJProfiler.top(measure, limit).toArray(new String[0]);
+		}
+
+		public void reset() {
+			DJProfiler.reset();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package org.fartpig.jdjjob;
+
+/**
+ * The view of DJProfiler over JMX, registered as
+ * `org.fartpig.jdjjob:type=Profiler`.
+ *
+ * The measures are DJProfiler.PERFORM_CPU, PERFORM_ALLOCATED, LOAD_CPU and
+ * LOAD_ALLOCATED. Percentiles are read off power of two buckets, so they are
+ * upper bounds within a factor of two.
+ */
+public interface DJProfilerMBean {
+
+	/**
+	 * @return int Every how many jobs one is profiled, '0' while off.
+	 */
+	public int getSampleRate();
+
+	public void setSampleRate(int sampleRate);
+
+	/**
+	 * @return string[] The profiled handler classes.
+	 */
+	public String[] getHandlers();
+
+	/**
+	 * @return string[] The measures of each profiled handler class.
+	 */
+	public String[] getMeasures();
+
+	public long getCount(String handler, String measure);
+
+	public long getTotal(String handler, String measure);
+
+	public long getMax(String handler, String measure);
+
+	/**
+	 * @param double
+	 *            percentile From 0 to 100.
+	 */
+	public long getPercentile(String handler, String measure, double percentile);
+
+	/**
+	 * @return long[] The number of samples per bucket, bucket `i` holding
+	 *         values from 2^(i-1) up to 2^i - 1.
+	 */
+	public long[] getBuckets(String handler, String measure);
+
+	/**
+	 * @param string
+	 *            measure The measure to rank by.
+	 * @param int
+	 *            limit The number of handler classes.
+	 *
+	 * @return string[] A line per handler class with the count, total, mean,
+	 *         p50, p99 and max of the measure, the largest total first.
+	 */
+	public String[] top(String measure, int limit);
+
+	/**
+	 * Forgets all samples.
+	 */
+	public void reset();
+}
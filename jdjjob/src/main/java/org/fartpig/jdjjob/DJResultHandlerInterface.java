@@ -0,0 +1,15 @@
+package org.fartpig.jdjjob;
+
+/**
+ * Job handler interface for jobs whose outcome is kept for the caller, see
+ * DJJobResults.
+ */
+public interface DJResultHandlerInterface extends DJJobHandlerInterface {
+	/**
+	 * Called after perform succeeded. The result is stored as JSON, so it
+	 * should be small.
+	 *
+	 * @return Object The result of the job, may be null.
+	 */
+	public Object djjobResult();
+}
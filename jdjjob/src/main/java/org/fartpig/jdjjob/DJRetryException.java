@@ -14,12 +14,22 @@ public class DJRetryException extends DJException {
 	 */
 	private static final long serialVersionUID = -5445375484341819202L;
 	private long delaySeconds = 7200;
+	private boolean delaySet = false;
 
 	public void setDelay(long delay) {
 		this.delaySeconds = delay;
+		this.delaySet = true;
 	}
 
 	public long getDelay() {
 		return this.delaySeconds;
 	}
+
+	/**
+	 * Whether the delay was set explicitly, it then takes precedence over the
+	 * delay of a DJRetryPolicy.
+	 */
+	public boolean hasDelay() {
+		return this.delaySet;
+	}
 }
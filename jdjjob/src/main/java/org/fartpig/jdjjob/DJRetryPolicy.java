@@ -0,0 +1,194 @@
+package org.fartpig.jdjjob;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides whether and when a failed job is tried again.
+ *
+ * Policies are registered per handler class or per queue, the handler class
+ * one wins. Jobs without a policy keep the plain behaviour: retried right
+ * away until `max_attempts`, or after the delay of a DJRetryException.
+ */
+public class DJRetryPolicy {
+
+	// backoff strategies
+	public static final int FIXED = 0;
+	public static final int EXPONENTIAL = 1;
+	public static final int DECORRELATED_JITTER = 2;
+
+	private static final Random random = new Random();
+
+	private static final Map<Class<?>, DJRetryPolicy> handlerPolicies = new ConcurrentHashMap<Class<?>, DJRetryPolicy>();
+	private static final Map<String, DJRetryPolicy> queuePolicies = new ConcurrentHashMap<String, DJRetryPolicy>();
+	private static volatile DJRetryPolicy defaultPolicy = null;
+
+	private int backoff;
+	private long baseDelay;
+	private long maxDelay;
+	private int maxAttempts = 0;
+	private List<Class<? extends Exception>> retryOn = new ArrayList<Class<? extends Exception>>();
+
+	/**
+	 * @param int
+	 *            backoff One of FIXED, EXPONENTIAL or DECORRELATED_JITTER.
+	 * @param long
+	 *            baseDelay The delay before the first retry in seconds.
+	 * @param long
+	 *            maxDelay The longest delay in seconds.
+	 * @param int
+	 *            maxAttempts How many attempts before giving up, '0' to use the
+	 *            worker's `max_attempts`.
+	 */
+	public DJRetryPolicy(int backoff, long baseDelay, long maxDelay, int maxAttempts) {
+		this.backoff = backoff;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Restricts the retries to the given exception types and their subclasses.
+	 * Other exceptions fail the job right away. By default all are retried.
+	 *
+	 * @param List<Class<?
+	 *            extends Exception>> types The exception types to retry.
+	 *
+	 * @return DJRetryPolicy This policy.
+	 */
+	public DJRetryPolicy retryOn(List<Class<? extends Exception>> types) {
+		this.retryOn.addAll(types);
+		return this;
+	}
+
+	/**
+	 * Whether the given exception may be retried.
+	 *
+	 * @param Exception
+	 *            e The exception thrown by the handler.
+	 *
+	 * @return boolean
+	 */
+	public boolean isRetryable(Exception e) {
+		if (this.retryOn.isEmpty()) {
+			return true;
+		}
+		for (Class<? extends Exception> type : this.retryOn) {
+			if (type.isInstance(e)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the delay before the next attempt.
+	 *
+	 * Decorrelated jitter draws between the base delay and three times the
+	 * previous upper bound. The previous delay is not stored with the job, so
+	 * the bound grows with the attempt number instead.
+	 *
+	 * @param int
+	 *            attempt The number of the attempt that just failed, from 1.
+	 *
+	 * @return long The delay in seconds.
+	 */
+	public long getDelay(int attempt) {
+		double delay;
+		switch (this.backoff) {
+		case EXPONENTIAL:
+			delay = this.baseDelay * Math.pow(2, attempt - 1);
+			break;
+		case DECORRELATED_JITTER:
+			double upper = Math.min(this.maxDelay, this.baseDelay * Math.pow(3, attempt));
+			delay = this.baseDelay + random.nextDouble() * Math.max(0, upper - this.baseDelay);
+			break;
+		default:
+			delay = this.baseDelay;
+		}
+		return (long) Math.min(delay, this.maxDelay);
+	}
+
+	public long getMaxDelay() {
+		return this.maxDelay;
+	}
+
+	public int getMaxAttempts() {
+		return this.maxAttempts;
+	}
+
+	/**
+	 * Registers the policy for the jobs of a handler class.
+	 */
+	public static void register(Class<? extends DJJobHandlerInterface> handlerClass, DJRetryPolicy policy) {
+		handlerPolicies.put(handlerClass, policy);
+	}
+
+	/**
+	 * Registers the policy for the jobs of a queue.
+	 */
+	public static void register(String queue, DJRetryPolicy policy) {
+		queuePolicies.put(queue, policy);
+	}
+
+	/**
+	 * Sets the policy for jobs with neither a handler class nor a queue policy,
+	 * null for the plain behaviour.
+	 */
+	public static void setDefault(DJRetryPolicy policy) {
+		defaultPolicy = policy;
+	}
+
+	/**
+	 * Removes all registered policies.
+	 */
+	public static void clear() {
+		handlerPolicies.clear();
+		queuePolicies.clear();
+		defaultPolicy = null;
+	}
+
+	/**
+	 * Returns the policy that applies to a job.
+	 *
+	 * @param Class<?>
+	 *            handlerClass The handler class of the job.
+	 * @param string
+	 *            queue The queue of the job.
+	 *
+	 * @return DJRetryPolicy The policy, or null if none applies.
+	 */
+	public static DJRetryPolicy get(Class<?> handlerClass, String queue) {
+		DJRetryPolicy policy = handlerClass == null ? null : handlerPolicies.get(handlerClass);
+		if (policy == null && queue != null) {
+			policy = queuePolicies.get(queue);
+		}
+		return policy == null ? defaultPolicy : policy;
+	}
+
+	/**
+	 * Returns the highest attempt count any job may reach, so workers keep
+	 * claiming jobs whose policy allows more attempts than their own
+	 * `max_attempts`.
+	 *
+	 * @param int
+	 *            maxAttempts The worker's `max_attempts`.
+	 *
+	 * @return int
+	 */
+	public static int getMaxAttemptsCeiling(int maxAttempts) {
+		int ceiling = maxAttempts;
+		List<DJRetryPolicy> policies = new ArrayList<DJRetryPolicy>(handlerPolicies.values());
+		policies.addAll(queuePolicies.values());
+		if (defaultPolicy != null) {
+			policies.add(defaultPolicy);
+		}
+		for (DJRetryPolicy policy : policies) {
+			ceiling = Math.max(ceiling, policy.getMaxAttempts());
+		}
+		return ceiling;
+	}
+}
@@ -0,0 +1,136 @@
+package org.fartpig.jdjjob;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+
+import org.fartpig.jdjjob.dao.DJJobDao;
+
+/**
+ * Prefetches the delayed jobs of a queue that are due within a short horizon
+ * into a timing wheel, and hands each one to the worker at its run_at.
+ *
+ * The scheduler does not lock anything: the worker claims a handed out job
+ * with {@link DJJob#acquireLock()}, so when several workers prefetch the same
+ * window only one of them gets to run each job.
+ */
+public class DJScheduler extends DJBase implements Runnable {
+
+	private DJWorker worker;
+	private String queue;
+	private DJShard shard;
+	private int maxAttempts;
+	private long horizonMs;
+	private long tickMs;
+	private BlockingDeque<DJJob> ready;
+
+	private DJTimingWheel wheel;
+	private Set<Long> scheduled = new HashSet<Long>();
+	private volatile boolean running = false;
+	private Thread thread;
+
+	/**
+	 * @param DJWorker
+	 *            worker The worker the jobs are handed to.
+	 * @param string
+	 *            queue The queue to schedule the jobs of.
+	 * @param int
+	 *            maxAttempts Jobs with this many attempts are left alone.
+	 * @param int
+	 *            horizon How many seconds ahead to prefetch.
+	 * @param long
+	 *            tickMs The resolution of the timing wheel.
+	 * @param BlockingDeque<DJJob>
+	 *            ready Where due jobs are handed to the worker.
+	 */
+	public DJScheduler(DJWorker worker, String queue, int maxAttempts, int horizon, long tickMs,
+			BlockingDeque<DJJob> ready) {
+		this.worker = worker;
+		this.queue = queue;
+		this.shard = DJShardRouter.getShard(queue);
+		this.maxAttempts = maxAttempts;
+		this.horizonMs = horizon * 1000L;
+		this.tickMs = tickMs;
+		this.ready = ready;
+	}
+
+	/**
+	 * Starts the scheduler thread.
+	 */
+	public void start() {
+		this.wheel = new DJTimingWheel(this.tickMs, 64, System.currentTimeMillis());
+		this.running = true;
+		this.thread = new Thread(this, "djjob-scheduler-" + this.queue);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Stops the scheduler thread. Jobs still in the wheel are simply found
+	 * again by the regular polling.
+	 */
+	public void stop() {
+		this.running = false;
+		if (this.thread != null) {
+			this.thread.interrupt();
+		}
+	}
+
+	public void run() {
+		log(DJBase.INFO, "[SCHEDULER] Starting scheduler on queue::%s, horizon %d ms", this.queue, this.horizonMs);
+
+		long nextPrefetch = 0;
+		while (this.running) {
+			long now = System.currentTimeMillis();
+			if (now >= nextPrefetch) {
+				this.prefetch();
+				nextPrefetch = now + Math.max(this.horizonMs / 2, this.tickMs);
+			}
+
+			for (Long id : this.wheel.advance(System.currentTimeMillis())) {
+				this.scheduled.remove(id);
+				this.ready.offer(this.worker.createJob(this.queue, id));
+			}
+
+			try {
+				Thread.sleep(this.tickMs);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		log(DJBase.INFO, "[SCHEDULER] scheduler on queue::%s stopped", this.queue);
+	}
+
+	/**
+	 * Loads the jobs due within the horizon into the wheel.
+	 */
+	protected void prefetch() {
+		DJJobDao dao = this.shard.getDao();
+		List<Object> args = new ArrayList<Object>();
+		args.add(this.queue);
+		args.add(this.horizonMs / 1000);
+		args.add(this.maxAttempts);
+
+		long localNow = System.currentTimeMillis();
+		for (Object[] obj : dao.executeQuery(dao.getSql().schedule, args)) {
+			Long id = ((Number) obj[0]).longValue();
+			if (this.scheduled.contains(id)) {
+				continue;
+			}
+
+			// the database clock is truncated to the second, so this offset
+			// errs on the late side and the job is never handed out early
+			long offset = ((Number) obj[2]).longValue() * 1000 - localNow;
+			long expiration = ((Number) obj[1]).longValue() * 1000 - offset;
+
+			if (this.wheel.add(id, expiration)) {
+				this.scheduled.add(id);
+			} else {
+				this.ready.offer(this.worker.createJob(this.queue, id));
+			}
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package org.fartpig.jdjjob;
+
+import javax.sql.DataSource;
+
+import org.fartpig.jdjjob.dao.DBUtils;
+import org.fartpig.jdjjob.dao.DJJobDao;
+import org.fartpig.jdjjob.dao.DJUnitOfWork;
+
+/**
+ * A jobs table on a data source. Queues are mapped to shards by the
+ * DJShardRouter.
+ *
+ * A shard may have a read replica. Claims, locks and every write always go to
+ * the primary through {@link #getDao()}; status and inspection queries use
+ * {@link #getReadDao()}, which reads from the replica while it lags less than
+ * the configured bound and from the primary otherwise.
+ *
+ * The jobs themselves may also be kept outside the jobs table by another
+ * job store, see {@link #setJobStore(DJJobStoreInterface)}.
+ */
+public class DJShard {
+
+	private String name;
+	private String jobsTable;
+	private DataSource dataSource;
+	private DataSource replicaDataSource;
+	private int maxReplicaLag;
+	private DJPayloadStoreInterface payloadStore;
+	private int payloadThreshold;
+	private volatile DJJobStoreInterface jobStore;
+
+	// how often the replica lag is looked up, in milliseconds
+	private static final long LAG_CHECK_INTERVAL = 1000;
+	private volatile long lagCheckedAt = 0;
+	private volatile boolean replicaFresh = false;
+
+	/**
+	 * @param string
+	 *            name The name of the shard.
+	 * @param string
+	 *            jobsTable The jobs table, null for the configured
+	 *            DJBase.jobsTable.
+	 * @param DataSource
+	 *            dataSource The data source, null for the default one of
+	 *            DBUtils.
+	 */
+	public DJShard(String name, String jobsTable, DataSource dataSource) {
+		this.name = name;
+		this.jobsTable = jobsTable;
+		this.dataSource = dataSource;
+
+		// an embedded database starts empty
+		if (DBUtils.getDialect(this.getDataSource()).isEmbedded()) {
+			DBUtils.createTables(this.getDataSource(), this.getJobsTable());
+		}
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public String getJobsTable() {
+		return this.jobsTable != null ? this.jobsTable : DJBase.jobsTable;
+	}
+
+	public DataSource getDataSource() {
+		return this.dataSource != null ? this.dataSource : DBUtils.getDataSource();
+	}
+
+	/**
+	 * Sets a read replica of this shard's data source. The replica should be
+	 * connected with a read-only user, nothing but reads are routed to it.
+	 *
+	 * @param DataSource
+	 *            replicaDataSource The replica, null to read from the primary.
+	 * @param int
+	 *            maxLag How many seconds the replica may lag behind before
+	 *            reads go back to the primary.
+	 */
+	public void setReplica(DataSource replicaDataSource, int maxLag) {
+		this.replicaDataSource = replicaDataSource;
+		this.maxReplicaLag = maxLag;
+		this.lagCheckedAt = 0;
+	}
+
+	public DataSource getReplicaDataSource() {
+		return this.replicaDataSource;
+	}
+
+	/**
+	 * Keeps the jobs of this shard in another job store than the jobs table,
+	 * such as a DJMemoryJobStore for a non-durable high rate queue.
+	 *
+	 * @param DJJobStoreInterface
+	 *            jobStore The store, null for the jobs table.
+	 */
+	public void setJobStore(DJJobStoreInterface jobStore) {
+		this.jobStore = jobStore;
+	}
+
+	public DJJobStoreInterface getJobStore() {
+		if (this.jobStore == null) {
+			this.jobStore = new DJJdbcJobStore(this);
+		}
+		return this.jobStore;
+	}
+
+	/**
+	 * @return boolean Whether the jobs of this shard are in its jobs table,
+	 *         which the features beyond the job store need.
+	 */
+	public boolean hasJobsTable() {
+		return this.getJobStore() instanceof DJJdbcJobStore;
+	}
+
+	/**
+	 * Offloads the handler payloads of this shard larger than the threshold
+	 * to a payload store. The jobs rows then keep only the hash. A store may
+	 * be shared by several shards, it keeps the payloads of all of them.
+	 *
+	 * @param DJPayloadStoreInterface
+	 *            payloadStore The store, null to keep all payloads inline.
+	 * @param int
+	 *            threshold The largest payload kept inline, in characters.
+	 */
+	public void setPayloadStore(DJPayloadStoreInterface payloadStore, int threshold) {
+		this.payloadStore = payloadStore;
+		this.payloadThreshold = threshold;
+		if (payloadStore != null) {
+			payloadStore.addShard(this);
+		}
+	}
+
+	public DJPayloadStoreInterface getPayloadStore() {
+		return this.payloadStore;
+	}
+
+	/**
+	 * Stores a payload in the payload store if it is too large to keep
+	 * inline.
+	 *
+	 * @param string
+	 *            payload The serialized handler.
+	 *
+	 * @return string The hash it is stored under, or null to keep it inline.
+	 *         Payloads are always inline outside the jobs table.
+	 */
+	public String storePayload(String payload) {
+		if (this.payloadStore == null || !this.hasJobsTable() || payload == null || payload.length() <= this.payloadThreshold) {
+			return null;
+		}
+		return this.payloadStore.put(payload);
+	}
+
+	/**
+	 * @param string
+	 *            hash The hash returned by storePayload.
+	 *
+	 * @return string The payload, or null if it is not stored.
+	 */
+	public String loadPayload(String hash) {
+		return this.payloadStore == null ? null : this.payloadStore.get(hash);
+	}
+
+	/**
+	 * @return DJJobDao A dao on this shard.
+	 */
+	public DJJobDao getDao() {
+		return new DJJobDao(this.getDataSource(), this.getJobsTable());
+	}
+
+	/**
+	 * @return DJUnitOfWork A unit of work on the primary of this shard.
+	 */
+	public DJUnitOfWork openUnitOfWork() {
+		return new DJUnitOfWork(this.getDataSource());
+	}
+
+	/**
+	 * Returns a dao for status and inspection queries, which may see data up
+	 * to the replica lag bound old. Never use it for claims or writes.
+	 *
+	 * @return DJJobDao A dao on the replica if it is fresh enough, else on the
+	 *         primary.
+	 */
+	public DJJobDao getReadDao() {
+		if (this.replicaDataSource == null) {
+			return this.getDao();
+		}
+
+		long now = System.currentTimeMillis();
+		if (now - this.lagCheckedAt >= LAG_CHECK_INTERVAL) {
+			long lag = this.getReplicaLag();
+			boolean fresh = lag >= 0 && lag <= this.maxReplicaLag;
+			if (fresh != this.replicaFresh) {
+				DJBase.log(DJBase.INFO, "[SHARD] %s reads from the %s, replica lag %d s", this.name,
+						fresh ? "replica" : "primary", lag);
+			}
+			this.replicaFresh = fresh;
+			this.lagCheckedAt = now;
+		}
+
+		if (this.replicaFresh) {
+			return new DJJobDao(this.replicaDataSource, this.getJobsTable());
+		}
+		return this.getDao();
+	}
+
+	/**
+	 * @return long How many seconds the replica lags behind, -1 if unknown.
+	 */
+	protected long getReplicaLag() {
+		return new DJJobDao(this.replicaDataSource, this.getJobsTable()).getReplicationLag();
+	}
+
+	public String toString() {
+		return this.name;
+	}
+}
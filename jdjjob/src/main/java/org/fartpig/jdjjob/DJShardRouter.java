@@ -0,0 +1,117 @@
+package org.fartpig.jdjjob;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps queues to the shards holding their jobs.
+ *
+ * A queue goes to the shard it was routed to explicitly. Other queues go to
+ * the default shard, or, with hash routing, to a shard picked by the hash of
+ * the queue name. Without any configuration every queue is on the default
+ * shard, which is the configured jobs table on the default data source.
+ */
+public final class DJShardRouter {
+
+	public static final String DEFAULT_SHARD = "default";
+
+	private static Map<String, DJShard> shards = new LinkedHashMap<String, DJShard>();
+	private static Map<String, DJShard> routes = new ConcurrentHashMap<String, DJShard>();
+	private static volatile List<DJShard> hashShards = null;
+	// read on every unrouted queue, so without the lock
+	private static volatile DJShard defaultShard = null;
+
+	static {
+		reset();
+	}
+
+	private DJShardRouter() {
+	}
+
+	/**
+	 * Adds a shard, replacing any shard of the same name.
+	 *
+	 * @param DJShard
+	 *            shard The shard.
+	 */
+	public static synchronized void addShard(DJShard shard) {
+		shards.put(shard.getName(), shard);
+		if (DEFAULT_SHARD.equals(shard.getName())) {
+			defaultShard = shard;
+		}
+	}
+
+	/**
+	 * Routes a queue to a shard.
+	 *
+	 * @param string
+	 *            queue The queue.
+	 * @param string
+	 *            shardName The name of an added shard.
+	 */
+	public static synchronized void route(String queue, String shardName) {
+		DJShard shard = shards.get(shardName);
+		if (shard == null) {
+			throw new DJException("unknown shard " + shardName);
+		}
+		routes.put(queue, shard);
+	}
+
+	/**
+	 * Turns hash routing of the queues without an explicit route on or off.
+	 * Queues are then spread over all shards added so far, the default one
+	 * included, so add the shards first.
+	 *
+	 * @param boolean
+	 *            hashed Whether to hash route.
+	 */
+	public static synchronized void setHashRouting(boolean hashed) {
+		hashShards = hashed ? new ArrayList<DJShard>(shards.values()) : null;
+	}
+
+	/**
+	 * Returns the shard holding the jobs of a queue.
+	 *
+	 * @param string
+	 *            queue The queue.
+	 *
+	 * @return DJShard
+	 */
+	public static DJShard getShard(String queue) {
+		DJShard shard = routes.get(queue);
+		if (shard != null) {
+			return shard;
+		}
+
+		List<DJShard> hashed = hashShards;
+		if (hashed != null && !hashed.isEmpty()) {
+			return hashed.get((queue.hashCode() & 0x7fffffff) % hashed.size());
+		}
+		return getDefaultShard();
+	}
+
+	public static DJShard getDefaultShard() {
+		return defaultShard;
+	}
+
+	/**
+	 * @return List<DJShard> All shards, the default one first.
+	 */
+	public static synchronized List<DJShard> getShards() {
+		return new ArrayList<DJShard>(shards.values());
+	}
+
+	/**
+	 * Goes back to the single default shard.
+	 */
+	public static synchronized void reset() {
+		shards.clear();
+		routes.clear();
+		hashShards = null;
+		defaultShard = new DJShard(DEFAULT_SHARD, null, null);
+		shards.put(DEFAULT_SHARD, defaultShard);
+	}
+}
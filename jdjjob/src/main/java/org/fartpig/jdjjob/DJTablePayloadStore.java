@@ -0,0 +1,92 @@
+package org.fartpig.jdjjob;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import javax.sql.DataSource;
+
+import org.fartpig.jdjjob.dao.DJJobDao;
+
+/**
+ * Stores payloads in a table keyed by their SHA-256 hash, see
+ * `jobs_payloads` in jobs.sql. The table must be in the same database as the
+ * jobs tables of the shards using it.
+ */
+public class DJTablePayloadStore implements DJPayloadStoreInterface {
+
+	private DataSource dataSource;
+	private String table;
+	private Set<DJShard> shards = new CopyOnWriteArraySet<DJShard>();
+
+	private String insertSql;
+	private String selectSql;
+
+	/**
+	 * @param DataSource
+	 *            dataSource The data source, null for the default one.
+	 * @param string
+	 *            table The payload table.
+	 */
+	public DJTablePayloadStore(DataSource dataSource, String table) {
+		this.dataSource = dataSource;
+		this.table = table;
+		// a payload stored again is refreshed, so collect does not delete it
+		// under a job being enqueued
+		this.insertSql = "INSERT INTO " + table
+				+ " (hash, payload, created_at) VALUES (?, ?, NOW()) ON DUPLICATE KEY UPDATE created_at = NOW()";
+		this.selectSql = "SELECT payload FROM " + table + " WHERE hash = ?";
+	}
+
+	private DJJobDao getDao() {
+		return new DJJobDao(this.dataSource, this.table);
+	}
+
+	public String put(String payload) {
+		String hash = Utils.sha256(payload);
+		List<Object> args = new ArrayList<Object>();
+		args.add(hash);
+		args.add(payload);
+		return this.getDao().execute(this.insertSql, args) ? hash : null;
+	}
+
+	public String get(String hash) {
+		List<Object> args = new ArrayList<Object>();
+		args.add(hash);
+		List<Object[]> rs = this.getDao().executeQuery(this.selectSql, args);
+		return rs.isEmpty() ? null : (String) rs.get(0)[0];
+	}
+
+	public void addShard(DJShard shard) {
+		this.shards.add(shard);
+	}
+
+	public int collect(int minAge) {
+		Set<String> jobsTables = new LinkedHashSet<String>();
+		for (DJShard shard : this.shards) {
+			jobsTables.add(shard.getJobsTable());
+		}
+		if (jobsTables.isEmpty()) {
+			return 0;
+		}
+
+		DJJobDao dao = this.getDao();
+		StringBuilder sb = new StringBuilder();
+		sb.append(" DELETE FROM ");
+		sb.append(this.table);
+		sb.append(" WHERE created_at < ");
+		sb.append(dao.getDialect().subtractSeconds("NOW()", "?"));
+		for (String jobsTable : jobsTables) {
+			sb.append(" AND NOT EXISTS (SELECT 1 FROM ");
+			sb.append(jobsTable);
+			sb.append(" j WHERE j.payload_hash = ");
+			sb.append(this.table);
+			sb.append(".hash)");
+		}
+		List<Object> args = new ArrayList<Object>();
+		args.add(minAge);
+		return Math.max(dao.executeUpdate(sb.toString(), args), 0);
+	}
+}
@@ -0,0 +1,157 @@
+package org.fartpig.jdjjob;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel holding job ids until their run time.
+ *
+ * Each level has `wheelSize` buckets of `tickMs` each; times beyond the range
+ * of a level go to an overflow level whose tick is the whole range of the
+ * level below, and are cascaded down as the time gets near. Expiration times
+ * are rounded up to the tick, so a job is never handed out before its time.
+ *
+ * Not thread safe, it is meant to be driven by a single scheduler thread.
+ */
+public class DJTimingWheel {
+
+	private final long tickMs;
+	private final int wheelSize;
+	private final long interval;
+	private final List<List<long[]>> buckets;
+
+	// start of the current tick, everything before it has been handed out
+	private long currentTime;
+	private DJTimingWheel overflow;
+	private int size;
+
+	/**
+	 * @param long
+	 *            tickMs The duration of a bucket of the lowest level.
+	 * @param int
+	 *            wheelSize The number of buckets per level.
+	 * @param long
+	 *            startMs The current time.
+	 */
+	public DJTimingWheel(long tickMs, int wheelSize, long startMs) {
+		if (tickMs <= 0 || wheelSize <= 0) {
+			throw new DJException("tickMs and wheelSize must be positive");
+		}
+
+		this.tickMs = tickMs;
+		this.wheelSize = wheelSize;
+		this.interval = tickMs * wheelSize;
+		this.currentTime = startMs - (startMs % tickMs);
+		this.buckets = new ArrayList<List<long[]>>(wheelSize);
+		for (int i = 0; i < wheelSize; i++) {
+			this.buckets.add(new ArrayList<long[]>());
+		}
+	}
+
+	/**
+	 * Adds a job id to the wheel.
+	 *
+	 * @param long
+	 *            id The job id.
+	 * @param long
+	 *            expirationMs The time at which the job is due.
+	 *
+	 * @return boolean False if the job is already due, it is then not added.
+	 */
+	public boolean add(long id, long expirationMs) {
+		// round up to the tick so nothing fires early
+		long fireAt = expirationMs + tickMs - 1;
+		fireAt -= fireAt % tickMs;
+
+		if (!this.place(new long[] { id, fireAt })) {
+			return false;
+		}
+		this.size += 1;
+		return true;
+	}
+
+	/**
+	 * Moves the wheel to the given time.
+	 *
+	 * @param long
+	 *            nowMs The current time.
+	 *
+	 * @return List<Long> The ids of the jobs that became due, in order.
+	 */
+	public List<Long> advance(long nowMs) {
+		if (this.size == 0) {
+			// nothing to hand out, just jump ahead
+			if (nowMs - tickMs >= this.currentTime) {
+				this.resetTo(nowMs - (nowMs % tickMs));
+			}
+			return Collections.emptyList();
+		}
+
+		List<Long> due = new ArrayList<Long>();
+		while (this.currentTime + tickMs <= nowMs) {
+			for (long[] entry : this.moveTo(this.currentTime + tickMs)) {
+				due.add(entry[0]);
+			}
+		}
+		this.size -= due.size();
+		return due;
+	}
+
+	/**
+	 * @return int The number of job ids in the wheel.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	private boolean place(long[] entry) {
+		long fireAt = entry[1];
+		if (fireAt < this.currentTime + tickMs) {
+			// belongs to the current bucket
+			return false;
+		}
+
+		if (fireAt < this.currentTime + interval) {
+			this.buckets.get((int) ((fireAt / tickMs) % wheelSize)).add(entry);
+		} else {
+			if (this.overflow == null) {
+				this.overflow = new DJTimingWheel(interval, wheelSize, this.currentTime);
+			}
+			this.overflow.place(entry);
+		}
+		return true;
+	}
+
+	/**
+	 * Moves this level to the given time, a multiple of the tick of the level
+	 * below, and returns the entries of the bucket starting at that time.
+	 */
+	private List<long[]> moveTo(long time) {
+		if (time % tickMs != 0) {
+			return Collections.emptyList();
+		}
+
+		this.currentTime = time;
+		List<long[]> bucket = this.buckets.get((int) ((time / tickMs) % wheelSize));
+		List<long[]> fired = new ArrayList<long[]>(bucket);
+		bucket.clear();
+
+		if (this.overflow != null) {
+			// cascade the entries now within our range
+			for (long[] entry : this.overflow.moveTo(time)) {
+				if (!this.place(entry)) {
+					fired.add(entry);
+				}
+			}
+		}
+		return fired;
+	}
+
+	private void resetTo(long time) {
+		this.currentTime = time - (time % tickMs);
+		if (this.overflow != null) {
+			this.overflow.resetTo(time);
+		}
+	}
+}
@@ -3,39 +3,126 @@ package org.fartpig.jdjjob;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.sql.DataSource;
+
+import org.fartpig.jdjjob.dao.DBUtils;
 import org.fartpig.jdjjob.dao.DJJobDao;
+import org.fartpig.jdjjob.dao.DJUnitOfWork;
 
 /**
- * The worker class that can empty a queue.
+ * The worker class that can empty a queue, or several queues across shards.
  */
 public class DJWorker extends DJBase {
 
+	// how often the jobs that missed their deadline are swept from a queue
+	private static final long EXPIRE_INTERVAL = 1000;
+
 	// This is a singleton-ish thing. It wouldn't really make sense to
 	// instantiate more than one in a single request (or commandline task)
 
 	private String queue;
+	private List<String> queues;
+	private int nextQueue = 0;
 	private int count;
 	private int sleep;
 	private int maxAttempts;
+	private int batchSize;
+	private int schedulerHorizon;
+	private int schedulerTick;
+	private int prefetch;
+	private int lockTimeout;
+	private int gracePeriod;
+	private int resultTtl;
+	private int concurrency;
+	private int minConcurrency;
+	private int maxConcurrency;
+	private int[] scaleTimings;
 	private boolean failOnOutput = false;
+	private String claimOrder;
+	private List<String> affinity;
+	private boolean dropExpired;
 	private String hostName;
 
 	private String name;
 
+	private BlockingDeque<DJJob> ready = new LinkedBlockingDeque<DJJob>();
+	private List<DJScheduler> schedulers = new ArrayList<DJScheduler>();
+	// the last sweep of the expired jobs by queue
+	private Map<String, Long> expiredAt = new ConcurrentHashMap<String, Long>();
+	private volatile DJPrefetcher prefetcher;
+	private Thread heartbeat;
+	private DJAutoscaler autoscaler;
+	private ExecutorService slots;
+
+	// the drain state, see handleSignal
+	private volatile boolean draining = false;
+	private volatile Thread thread;
+	// the started jobs by key
+	private Map<String, DJJob> running = new ConcurrentHashMap<String, DJJob>();
+	private volatile CountDownLatch stopped;
+
 	/**
 	 * DJWorker constructor.
 	 *
 	 * The following options are available: `queue`: The queue to work on.
-	 * Default: 'default' `count`: How many jobs to execute before exiting. Use
+	 * Default: 'default' `queues`: Several queues to work on in turn, possibly
+	 * on different shards, as a List or a comma separated String. Default: the
+	 * `queue` `count`: How many jobs to execute before exiting. Use
 	 * '0' for no-limit. Default: '0' `sleep`: How long to sleep if no jobs are
 	 * found. Default: '5' `max_attempts`: How many times to try a job before
 	 * bailing out. Default: '5' `fail_on_output`: Whether to fail on output.
-	 * Default: 'false'
+	 * Default: 'false' `batch_size`: How many jobs of a batch handler class to
+	 * claim and perform in one call. Default: '1' `scheduler_horizon`: How many
+	 * seconds ahead to prefetch delayed jobs into a timing wheel, so they run
+	 * right at their run_at. Use '0' to only poll. Default: '0'
+	 * `scheduler_tick`: The timing wheel resolution in milliseconds. Default:
+	 * '100' `prefetch`: How many claims to keep locked in a local buffer while
+	 * the current job runs. Use '0' to claim one at a time. Default: '0'
+	 * `lock_timeout`: How many seconds a lock is leased for before other
+	 * workers may take the job over. The leases of running jobs are renewed
+	 * every third of it, so only a worker that stopped renewing loses its
+	 * jobs. Use '0' for no expiry. Default: '0'
+	 * `grace_period`: How many seconds a shutdown waits for the running job
+	 * to finish before recording a hard timeout for it. Default: '30'
+	 * `concurrency`: How many jobs to run at once, each on a slot thread.
+	 * Default: '1' `min_concurrency`, `max_concurrency`: The range the
+	 * autoscaler adjusts the concurrency in, see DJAutoscaler. Default: the
+	 * `concurrency` `scale_interval`: How many seconds between autoscaler
+	 * checks. Default: '10' `scale_up_cooldown`, `scale_down_cooldown`: How
+	 * many seconds after a change the autoscaler waits before scaling up or
+	 * down again. Default: '30', '120' `target_latency`: How many seconds the
+	 * oldest ready job may wait before scaling up. Default: '5'
+	 * `pool_wait_limit`: The average milliseconds to wait for a connection
+	 * above which the autoscaler scales down. Default: '50' `result_ttl`: How
+	 * many seconds the outcomes of result handlers are kept, see
+	 * DJJobResults. Default: '3600' `claim_order`: 'created' to try the 10
+	 * newest ready jobs in random order, 'deadline' to claim the jobs with a
+	 * deadline first, earliest deadline first, and the others only when none
+	 * of them is ready, 'fair' to claim the oldest jobs of one tenant after
+	 * the other, see DJJob.enqueueForTenant. Default: 'created'
+	 * `expired_jobs`: What to do with the jobs whose deadline passed before
+	 * they were started, 'dead_letter' to fail them for good or 'drop' to
+	 * delete them. Default: 'dead_letter' `affinity`: The handler class names
+	 * or affinity keys whose jobs this worker claims first, as a List or a
+	 * comma separated String, see DJAffinityHandlerInterface. They are
+	 * preferred within the `claim_order`: among the jobs with a deadline, or
+	 * of the tenant whose turn it is. It takes other jobs when none of them
+	 * is ready. Default: none
 	 *
 	 * @param Map<String,Object>
 	 *            options The settings for this worker.
@@ -49,14 +136,73 @@ public class DJWorker extends DJBase {
 		originalMap.put("sleep", 5);
 		originalMap.put("max_attempts", 5);
 		originalMap.put("fail_on_output", false);
+		originalMap.put("batch_size", 1);
+		originalMap.put("scheduler_horizon", 0);
+		originalMap.put("scheduler_tick", 100);
+		originalMap.put("prefetch", 0);
+		originalMap.put("lock_timeout", 0);
+		originalMap.put("grace_period", 30);
+		originalMap.put("concurrency", 1);
+		originalMap.put("scale_interval", 10);
+		originalMap.put("scale_up_cooldown", 30);
+		originalMap.put("scale_down_cooldown", 120);
+		originalMap.put("target_latency", 5);
+		originalMap.put("pool_wait_limit", 50);
+		originalMap.put("result_ttl", 3600);
+		originalMap.put("claim_order", DJJobStoreInterface.CREATED_ORDER);
+		originalMap.put("expired_jobs", "dead_letter");
 
 		options = Utils.mergeMaps(originalMap, options);
 
 		this.queue = (String) options.get("queue");
+		this.queues = new ArrayList<String>();
+		Object queues = options.get("queues");
+		if (queues instanceof String) {
+			for (String queue : ((String) queues).split(",")) {
+				this.queues.add(queue.trim());
+			}
+			this.queue = (String) queues;
+		} else if (queues instanceof List) {
+			for (Object queue : (List<?>) queues) {
+				this.queues.add((String) queue);
+			}
+			this.queue = this.queues.toString();
+		} else {
+			this.queues.add(this.queue);
+		}
 		this.count = (Integer) options.get("count");
 		this.sleep = ((Integer) options.get("sleep")) * 1000;
 		this.maxAttempts = (Integer) options.get("max_attempts");
 		this.failOnOutput = (Boolean) options.get("fail_on_output");
+		this.batchSize = (Integer) options.get("batch_size");
+		this.schedulerHorizon = (Integer) options.get("scheduler_horizon");
+		this.schedulerTick = (Integer) options.get("scheduler_tick");
+		this.prefetch = (Integer) options.get("prefetch");
+		this.lockTimeout = (Integer) options.get("lock_timeout");
+		this.gracePeriod = (Integer) options.get("grace_period");
+		this.resultTtl = (Integer) options.get("result_ttl");
+		this.claimOrder = (String) options.get("claim_order");
+		this.affinity = new ArrayList<String>();
+		Object affinity = options.get("affinity");
+		if (affinity instanceof String) {
+			for (String key : ((String) affinity).split(",")) {
+				this.affinity.add(key.trim());
+			}
+		} else if (affinity instanceof List) {
+			for (Object key : (List<?>) affinity) {
+				this.affinity.add((String) key);
+			}
+		}
+		this.dropExpired = "drop".equals(options.get("expired_jobs"));
+		this.concurrency = (Integer) options.get("concurrency");
+		this.minConcurrency = options.containsKey("min_concurrency") ? (Integer) options.get("min_concurrency")
+				: this.concurrency;
+		this.maxConcurrency = options.containsKey("max_concurrency") ? (Integer) options.get("max_concurrency")
+				: this.concurrency;
+		this.maxConcurrency = Math.max(Math.max(1, this.minConcurrency), this.maxConcurrency);
+		this.scaleTimings = new int[] { (Integer) options.get("scale_interval"),
+				(Integer) options.get("scale_up_cooldown"), (Integer) options.get("scale_down_cooldown"),
+				(Integer) options.get("target_latency"), (Integer) options.get("pool_wait_limit") };
 
 		String hostname = "Unknown";
 
@@ -81,28 +227,85 @@ public class DJWorker extends DJBase {
 	}
 
 	/**
-	 * Handles a signal from the operating system.
+	 * @return string The name this worker locks jobs with.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Handles a signal from the operating system by draining the worker.
 	 *
+	 * The worker stops claiming, and the prefetched jobs that have not started
+	 * are released right away. The running jobs get `grace_period` seconds
+	 * to finish. If one is still running after that, a hard timeout is
+	 * recorded for it, which counts as a failed attempt. The locks of running
+	 * jobs are never released, so no other worker runs them twice: a job
+	 * whose handler stops later completes as usual, else its lock is given up
+	 * when its lease expires, see `lock_timeout`, or by releaseLocks().
 	 */
 	public void handleSignal() {
 		log("[WORKER] Received received signal ... Shutting down", DJBase.INFO);
-		this.releaseLocks();
+		CountDownLatch stopped = this.stopped;
+		if (stopped == null) {
+			// never started
+			return;
+		}
+
+		this.draining = true;
+		DJPrefetcher prefetcher = this.prefetcher;
+		if (prefetcher != null) {
+			prefetcher.stop();
+		}
+		synchronized (this.running) {
+			// decided under the lock the worker starts its claimed jobs with,
+			// so the interrupt only ever wakes it up from waiting for a job or
+			// a slot, and never hits a job it runs itself without slots
+			Thread thread = this.thread;
+			if ((this.slots != null || this.running.isEmpty()) && thread != null) {
+				thread.interrupt();
+			}
+		}
+
+		try {
+			if (stopped.await(this.gracePeriod, TimeUnit.SECONDS)) {
+				log(DJBase.INFO, "[WORKER] %s drained", this.name);
+				return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (!this.running.isEmpty()) {
+			String error = String.format("[WORKER] hard timeout, still running after the grace period of %d seconds",
+					this.gracePeriod);
+			for (DJJob job : this.running.values()) {
+				job.timeout(error);
+			}
+		}
 	}
 
 	/**
-	 * Releases all locks this worker has on the jobs table.
+	 * @return boolean Whether the worker is draining and claims no more jobs.
+	 */
+	public boolean isDraining() {
+		return this.draining;
+	}
+
+	/**
+	 * Releases all locks this worker's name has on the jobs tables of its
+	 * queues, including those of running jobs. Only use it when no worker of
+	 * that name is running.
 	 */
 	public void releaseLocks() {
+		Set<DJShard> shards = new LinkedHashSet<DJShard>();
+		for (String queue : this.queues) {
+			shards.add(DJShardRouter.getShard(queue));
+		}
 
-		DJJobDao dao = new DJJobDao();
-		StringBuilder sb = new StringBuilder();
-		sb.append(" UPDATE ");
-		sb.append(DJBase.jobsTable);
-		sb.append(" SET locked_at = NULL, locked_by = NULL ");
-		sb.append(" WHERE locked_by = ? ");
-		List<Object> args = new ArrayList<Object>();
-		args.add(this.name);
-		dao.execute(sb.toString(), args);
+		for (DJShard shard : shards) {
+			shard.getJobStore().releaseLocks(this.name);
+		}
 	}
 
 	/**
@@ -114,41 +317,217 @@ public class DJWorker extends DJBase {
 	 *         false.
 	 */
 	public DJJob getNewJob() {
-		// we can grab a locked job if we own the lock
-		DJJobDao dao = new DJJobDao();
-
-		StringBuilder sb = new StringBuilder();
-		sb.append(" SELECT id FROM ");
-		sb.append(DJBase.jobsTable);
-		sb.append(" WHERE  queue = ? ");
-		sb.append(" AND    (run_at IS NULL OR NOW() >= run_at) ");
-		sb.append(" AND    (locked_at IS NULL OR locked_by = ?) ");
-		sb.append(" AND    failed_at IS NULL");
-		sb.append(" AND    attempts < ? ");
-		sb.append(" ORDER BY created_at DESC ");
-		sb.append(" LIMIT  10 ");
+		// delayed jobs handed out by the schedulers come first
+		DJJob readyJob;
+		while ((readyJob = this.ready.poll()) != null) {
+			if (this.isHeld(readyJob)) {
+				continue;
+			}
+			readyJob.openUnitOfWork();
+			if (readyJob.acquireLock()) {
+				return readyJob;
+			}
+			readyJob.closeUnitOfWork();
+		}
+
+		// then the queues in turn, so none of them starves the others
+		for (int i = 0; i < this.queues.size(); i++) {
+			int index = (this.nextQueue + i) % this.queues.size();
+			DJJob job = this.getNewJob(this.queues.get(index));
+			if (job != null) {
+				this.nextQueue = (index + 1) % this.queues.size();
+				return job;
+			}
+		}
+		return null;
+	}
+
+	private DJJob getNewJob(String queue) {
+		Map<String, Object> options = this.getJobOptions(queue);
+		DJShard shard = (DJShard) options.get("shard");
+
+		// the connection of the claim stays with the claimed job until it is
+		// done, see DJJob#closeUnitOfWork()
+		DJUnitOfWork unitOfWork = shard.openUnitOfWork();
+		if (shard.hasJobsTable()) {
+			this.expire(queue, unitOfWork, shard.getJobsTable());
+		}
+
+		List<Long> ids = shard.getJobStore().claim(queue, this.name, this.lockTimeout,
+				DJRetryPolicy.getMaxAttemptsCeiling(this.maxAttempts), this.claimOrder, this.affinity, unitOfWork);
+		for (Long id : ids) {
+			DJJob job = new DJJob(this.name, id, options);
+			job.setUnitOfWork(unitOfWork);
+			if (this.isHeld(job)) {
+				continue;
+			}
+			if (job.acquireLock()) {
+				return job;
+			}
+			// another worker locked it since the claim
+			DJMetrics.increment(DJMetrics.CLAIM_LOST);
+		}
+
+		unitOfWork.close();
+		return null;
+	}
+
+	/**
+	 * Sweeps the jobs that missed their deadline from a queue, at most once
+	 * per EXPIRE_INTERVAL. They are never locked, so without the sweep they
+	 * would stay in the queue.
+	 */
+	private void expire(String queue, DJUnitOfWork unitOfWork, String jobsTable) {
+		long now = System.currentTimeMillis();
+		Long last = this.expiredAt.get(queue);
+		if (last != null && now - last < EXPIRE_INTERVAL) {
+			return;
+		}
+		this.expiredAt.put(queue, now);
+		DJJob.expire(unitOfWork, jobsTable, queue, this.dropExpired);
+	}
+
+	/**
+	 * Returns the given job together with more jobs of the same handler class,
+	 * up to `batch_size` jobs, if that class is a batch handler.
+	 *
+	 * @param DJJob
+	 *            job A job this worker has locked.
+	 *
+	 * @return List<DJJob> The locked jobs of the batch, starting with job.
+	 */
+	public List<DJJob> getBatch(DJJob job) {
+		List<DJJob> batch = new ArrayList<DJJob>();
+		batch.add(job);
+
+		if (this.batchSize <= 1) {
+			return batch;
+		}
+
+		DJShard shard = job.getShard();
+		if (!shard.hasJobsTable()) {
+			return batch;
+		}
+
+		String className = job.getHandlerClassName();
+		if (className == null || !DJJob.isBatchHandlerClass(className)) {
+			return batch;
+		}
+
+		DJJobDao dao = job.getDao();
 		List<Object> args = new ArrayList<Object>();
-		args.add(this.queue);
+		args.add(job.getQueue());
+		args.add(className.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + ":%");
+		args.add(DJRetryPolicy.getMaxAttemptsCeiling(this.maxAttempts));
+		args.add(this.batchSize - 1);
+		List<Object[]> rs = dao.executeQuery(dao.getSql().selectBatch, args);
+		if (rs.isEmpty()) {
+			return batch;
+		}
+
+		// lock the candidates in one statement, then see which ones we got
+		StringBuilder ids = new StringBuilder("(");
+		List<Object> idArgs = new ArrayList<Object>();
+		for (Object[] obj : rs) {
+			ids.append(idArgs.isEmpty() ? "?" : ", ?");
+			idArgs.add(obj[0]);
+		}
+		ids.append(")");
+
+		args = new ArrayList<Object>();
 		args.add(this.name);
-		args.add(this.maxAttempts);
+		args.addAll(idArgs);
+		dao.execute(dao.getSql().lockBatch + ids, args);
+
+		Map<String, Object> options = this.getJobOptions(job.getQueue());
+		for (Object[] obj : dao.executeQuery(dao.getSql().selectLockedBy + ids, args)) {
+			DJJob batchJob = new DJJob(this.name, ((Number) obj[0]).longValue(), options);
+			batchJob.setUnitOfWork(job.getUnitOfWork());
+			DJEventRing.record(DJEventRing.CLAIMED, batchJob);
+			batch.add(batchJob);
+		}
 
-		List<Object[]> rs = dao.executeQuery(sb.toString(), args);
+		log(DJBase.INFO, "[JOB] claimed a batch of %d %s jobs", batch.size(), className);
+		return batch;
+	}
+
+	private boolean isHeld(DJJob job) {
+		// the claim query returns the jobs locked by this worker too
+		return this.running.containsKey(job.getKey())
+				|| (this.prefetcher != null && this.prefetcher.isHeld(job.getKey()));
+	}
 
-		// randomly order the 10 to prevent lock contention among workers
-		Collections.shuffle(rs);
+	/**
+	 * @return DJAutoscaler The concurrency limit of this worker, once started.
+	 */
+	public DJAutoscaler getAutoscaler() {
+		return this.autoscaler;
+	}
 
+	/**
+	 * Returns an unlocked job of one of this worker's queues.
+	 *
+	 * @param string
+	 *            queue The queue of the job.
+	 * @param long
+	 *            jobId The job id.
+	 *
+	 * @return DJJob
+	 */
+	protected DJJob createJob(String queue, long jobId) {
+		return new DJJob(this.name, jobId, this.getJobOptions(queue));
+	}
+
+	private Map<String, Object> getJobOptions(String queue) {
 		Map<String, Object> options = new HashMap<String, Object>();
 		options.put("max_attempts", this.maxAttempts);
 		options.put("fail_on_output", this.failOnOutput);
+		options.put("lock_timeout", this.lockTimeout);
+		options.put("result_ttl", this.resultTtl);
+		options.put("queue", queue);
+		options.put("shard", DJShardRouter.getShard(queue));
+		return options;
+	}
 
-		for (Object[] obj : rs) {
-			DJJob job = new DJJob(this.name, (Long) obj[0], options);
-			if (job.acquireLock()) {
-				return job;
-			}
+	/**
+	 * Returns how many connections this worker may use at once: one pinned to
+	 * each running job, one per prefetched claim plus one for the claimer, one
+	 * per scheduler, one for the autoscaler, one for renewing the leases and
+	 * one spare for enqueues and status calls.
+	 *
+	 * @return int
+	 */
+	public int getPoolSize() {
+		int size = 1 + this.maxConcurrency;
+		if (this.maxConcurrency > this.minConcurrency) {
+			size += 1;
+		}
+		if (this.prefetch > 0) {
+			size += this.prefetch + 1;
+		}
+		if (this.schedulerHorizon > 0) {
+			size += this.queues.size();
+		}
+		if (this.lockTimeout > 0) {
+			size += 1;
 		}
+		return size;
+	}
 
-		return null;
+	/**
+	 * Makes sure the pools of this worker's shards can serve it.
+	 */
+	private void sizePools() {
+		Set<DataSource> dataSources = new LinkedHashSet<DataSource>();
+		for (String queue : this.queues) {
+			dataSources.add(DJShardRouter.getShard(queue).getDataSource());
+		}
+
+		int size = this.getPoolSize();
+		for (DataSource dataSource : dataSources) {
+			int maxPoolSize = DBUtils.ensurePoolSize(dataSource, size);
+			log(DJBase.DEBUG, "[JOB] worker %s needs %d connections, pool max %d", this.name, size, maxPoolSize);
+		}
 	}
 
 	/**
@@ -157,29 +536,251 @@ public class DJWorker extends DJBase {
 	public void start() {
 		log(DJBase.INFO, "[JOB] Starting worker %s on queue::%s", this.name, this.queue);
 
+		this.thread = Thread.currentThread();
+		this.stopped = new CountDownLatch(1);
+		this.sizePools();
+
+		if (this.schedulerHorizon > 0) {
+			for (String queue : this.queues) {
+				if (!DJShardRouter.getShard(queue).hasJobsTable()) {
+					// the other stores keep their own delayed jobs
+					continue;
+				}
+				DJScheduler scheduler = new DJScheduler(this, queue,
+						DJRetryPolicy.getMaxAttemptsCeiling(this.maxAttempts), this.schedulerHorizon,
+						this.schedulerTick, this.ready);
+				scheduler.start();
+				this.schedulers.add(scheduler);
+			}
+		}
+
+		if (this.prefetch > 0) {
+			this.prefetcher = new DJPrefetcher(this, this.prefetch, this.lockTimeout);
+			this.prefetcher.start();
+		}
+
+		if (this.lockTimeout > 0) {
+			this.heartbeat = new Thread(new Runnable() {
+
+				public void run() {
+					DJWorker.this.renewLocks();
+				}
+
+			}, "djjob-heartbeat-" + this.name);
+			this.heartbeat.setDaemon(true);
+			this.heartbeat.start();
+		}
+
+		this.autoscaler = new DJAutoscaler(this.name, this.queues, this.concurrency, this.minConcurrency,
+				this.maxConcurrency);
+		this.autoscaler.setTimings(this.scaleTimings[0] * 1000L, this.scaleTimings[1] * 1000L,
+				this.scaleTimings[2] * 1000L, this.scaleTimings[3] * 1000L, this.scaleTimings[4] * 1000L);
+		this.autoscaler.start();
+		if (this.maxConcurrency > 1) {
+			this.slots = Executors.newCachedThreadPool(new ThreadFactory() {
+
+				private AtomicInteger next = new AtomicInteger();
+
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable,
+							"djjob-slot-" + DJWorker.this.name + "-" + this.next.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+
+			});
+		}
+
 		int count = 0;
 		int jobCount = 0;
 		try {
-			while (this.count == 0 || count < this.count) {
+			while (!this.draining && (this.count == 0 || count < this.count)) {
 
 				count += 1;
-				DJJob job = this.getNewJob();
+				this.autoscaler.acquire();
+				final List<DJJob> batch;
+				try {
+					batch = this.claim();
+				} catch (InterruptedException e) {
+					this.autoscaler.release();
+					throw e;
+				}
+				if (batch == null) {
+					this.autoscaler.release();
+					continue;
+				}
 
-				if (job == null) {
-					log(DJBase.DEBUG, "[JOB] Failed to get a job, queue::%s may be empty", this.queue);
-					Thread.sleep(this.sleep);
+				boolean drained;
+				synchronized (this.running) {
+					drained = this.draining;
+					if (!drained) {
+						for (DJJob job : batch) {
+							this.running.put(job.getKey(), job);
+						}
+					}
+				}
+				if (drained) {
+					// claimed while the drain began, never started
+					for (DJJob job : batch) {
+						job.releaseLock();
+						job.closeUnitOfWork();
+					}
+					this.autoscaler.release();
+					break;
+				}
+
+				jobCount += batch.size();
+				if (this.slots == null) {
+					this.runClaimed(batch);
 					continue;
 				}
+				this.slots.execute(new Runnable() {
+
+					public void run() {
+						try {
+							DJWorker.this.runClaimed(batch);
+						} catch (Exception e) {
+							log(DJBase.ERROR, "[JOB] unhandled exception::\"%s\"", e.getMessage());
+							e.printStackTrace();
+						}
+					}
 
-				jobCount += 1;
-				job.run();
+				});
+			}
+		} catch (InterruptedException e) {
+			if (!this.draining) {
+				log(DJBase.ERROR, "[JOB] worker %s interrupted", this.name);
 			}
 		} catch (Exception e) {
 			log(DJBase.ERROR, "[JOB] unhandled exception::\"%s\"", e.getMessage());
 			e.printStackTrace();
 		}
 
+		if (this.prefetcher != null) {
+			this.prefetcher.stop();
+		}
+		this.autoscaler.stop();
+		if (this.slots != null) {
+			// the running jobs finish, or time out in the drain
+			this.slots.shutdown();
+			boolean interrupted = false;
+			while (true) {
+				try {
+					if (this.slots.awaitTermination(1, TimeUnit.SECONDS)) {
+						break;
+					}
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			this.slots = null;
+		}
+		if (this.heartbeat != null) {
+			// the jobs stopped running, their leases need no renewing
+			this.heartbeat.interrupt();
+			try {
+				this.heartbeat.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			this.heartbeat = null;
+		}
+		for (DJScheduler scheduler : this.schedulers) {
+			scheduler.stop();
+		}
+		this.schedulers.clear();
+
 		log(DJBase.INFO, "[JOB] worker shutting down after running %d jobs, over %d polling iterations", jobCount,
 				count);
+		this.thread = null;
+		this.stopped.countDown();
+	}
+
+	/**
+	 * Renews the lock leases of the running jobs every third of
+	 * `lock_timeout`, so a job running longer than the lease is not claimed
+	 * by another worker meanwhile.
+	 */
+	private void renewLocks() {
+		long intervalMs = Math.max(this.lockTimeout * 1000L / 3, 1);
+		while (true) {
+			try {
+				Thread.sleep(intervalMs);
+			} catch (InterruptedException e) {
+				break;
+			}
+			for (DJJob job : this.running.values()) {
+				// a job that completed meanwhile no longer has a lock to renew
+				if (!job.renewLock() && this.running.containsKey(job.getKey())) {
+					DJEventRing.record(DJEventRing.LOCK_LOST, job);
+					log(DJBase.WARN, "[JOB] job::%d lost its lock while running", job.getJobId());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Claims a job, with the other jobs of its batch.
+	 *
+	 * @return List<DJJob> The locked jobs, or null if there were none.
+	 */
+	private List<DJJob> claim() throws InterruptedException {
+		if (this.prefetcher != null) {
+			List<DJJob> batch = this.prefetcher.take(this.sleep);
+			if (batch == null && isLogEnabled(DJBase.DEBUG)) {
+				log(DJBase.DEBUG, "[JOB] Failed to get a job, queue::%s may be empty", this.queue);
+			}
+			return batch;
+		}
+
+		DJJob job = this.getNewJob();
+		if (job == null) {
+			if (isLogEnabled(DJBase.DEBUG)) {
+				log(DJBase.DEBUG, "[JOB] Failed to get a job, queue::%s may be empty", this.queue);
+			}
+			this.waitForJob();
+			return null;
+		}
+		return this.getBatch(job);
+	}
+
+	/**
+	 * Runs claimed jobs and gives their slot back.
+	 */
+	private void runClaimed(List<DJJob> batch) {
+		try {
+			if (batch.size() > 1) {
+				DJJob.runBatch(batch);
+			} else {
+				batch.get(0).run();
+			}
+		} finally {
+			for (DJJob job : batch) {
+				this.running.remove(job.getKey());
+				job.closeUnitOfWork();
+			}
+			if (this.prefetcher != null) {
+				this.prefetcher.done(batch);
+			}
+			this.autoscaler.release();
+		}
+	}
+
+	/**
+	 * Sleeps until the next poll, or until the scheduler hands out a job.
+	 */
+	protected void waitForJob() throws InterruptedException {
+		if (this.schedulers.isEmpty()) {
+			Thread.sleep(this.sleep);
+			return;
+		}
+
+		DJJob readyJob = this.ready.pollFirst(this.sleep, TimeUnit.MILLISECONDS);
+		if (readyJob != null) {
+			this.ready.offerFirst(readyJob);
+		}
 	}
 }
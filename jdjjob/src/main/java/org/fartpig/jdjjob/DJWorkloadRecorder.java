@@ -0,0 +1,197 @@
+package org.fartpig.jdjjob;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records an anonymized trace of the workload of this process, to replay
+ * its shape offline with DJWorkloadReplay.
+ *
+ * While recording, each enqueue and each job run by DJJob.run() appends a
+ * line to the trace file. Queues and handler classes are written as salted
+ * hashes, the salt being new for each recording, and of the payload only
+ * its size is kept. The lines are tab separated:
+ *
+ * `E <ms> <queue> <handler> <payload chars>` for an enqueue, and
+ * `R <ms> <queue> <handler> <run ms>` for a job that ran, `ms` being the
+ * time since the recording started.
+ *
+ * The recorded threads only format their line and queue it, one writer
+ * thread appends the lines to the file, so recording takes no lock on the
+ * enqueue and run paths. Lines that find the queue full are dropped and
+ * counted rather than slowing the jobs down.
+ */
+public final class DJWorkloadRecorder {
+
+	public static final String HEADER = "# djjob workload v1";
+	public static final String ENQUEUED = "E";
+	public static final String RAN = "R";
+
+	// the lines waiting for the writer thread
+	private static final int QUEUED_LINES = 65536;
+	// marks the end of a recording to the writer thread
+	private static final String END = "";
+
+	private static volatile Recording recording = null;
+
+	private DJWorkloadRecorder() {
+	}
+
+	private static class Recording implements Runnable {
+		final Writer out;
+		final long startMs = System.currentTimeMillis();
+		final String salt = UUID.randomUUID().toString();
+		final Map<String, String> labels = new ConcurrentHashMap<String, String>();
+		final BlockingQueue<String> lines = new LinkedBlockingQueue<String>(QUEUED_LINES);
+		final AtomicLong dropped = new AtomicLong();
+		final Thread writer = new Thread(this, "djjob-recorder");
+
+		Recording(Writer out) {
+			this.out = out;
+		}
+
+		public void run() {
+			try {
+				String line;
+				while ((line = this.lines.take()) != END) {
+					this.out.write(line);
+				}
+			} catch (IOException e) {
+				DJBase.log(DJBase.ERROR, "[RECORDER] could not write the trace, stopping: %s", e.getMessage());
+				stopped(this);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			try {
+				this.out.close();
+			} catch (IOException e) {
+				DJBase.log(DJBase.WARN, "[RECORDER] could not close the trace: %s", e.getMessage());
+			}
+		}
+
+		String label(String prefix, String name) {
+			String label = this.labels.get(prefix + name);
+			if (label == null) {
+				label = prefix + Utils.sha256(this.salt + name).substring(0, 12);
+				this.labels.put(prefix + name, label);
+			}
+			return label;
+		}
+	}
+
+	/**
+	 * Starts recording to a file, replacing a recording in progress.
+	 *
+	 * @param File
+	 *            file The trace file, overwritten.
+	 */
+	public static void start(File file) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		out.write(HEADER + "\n");
+		Recording started = new Recording(out);
+		started.writer.setDaemon(true);
+		started.writer.start();
+		Recording replaced;
+		synchronized (DJWorkloadRecorder.class) {
+			replaced = recording;
+			recording = started;
+		}
+		finish(replaced);
+		DJBase.log(DJBase.INFO, "[RECORDER] recording the workload to %s", file);
+	}
+
+	/**
+	 * Stops recording and closes the trace file once the queued lines are
+	 * written.
+	 */
+	public static void stop() {
+		Recording stopped;
+		synchronized (DJWorkloadRecorder.class) {
+			stopped = recording;
+			recording = null;
+		}
+		finish(stopped);
+	}
+
+	private static void finish(Recording stopped) {
+		if (stopped == null) {
+			return;
+		}
+		try {
+			// the writer may have given up on a failed trace meanwhile
+			while (!stopped.lines.offer(END, 100, TimeUnit.MILLISECONDS) && stopped.writer.isAlive()) {
+			}
+			stopped.writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (stopped.dropped.get() > 0) {
+			DJBase.log(DJBase.WARN, "[RECORDER] dropped %d lines the trace could not keep up with",
+					stopped.dropped.get());
+		}
+	}
+
+	/**
+	 * Ends a recording whose writer failed, unless another one replaced it.
+	 */
+	private static synchronized void stopped(Recording failed) {
+		if (recording == failed) {
+			recording = null;
+		}
+	}
+
+	public static synchronized boolean isRecording() {
+		return recording != null;
+	}
+
+	/**
+	 * Records an enqueue.
+	 *
+	 * @param string
+	 *            queue The queue of the job.
+	 * @param Class<?>
+	 *            handlerClass The handler class of the job.
+	 * @param long
+	 *            payloadSize The size of the serialized handler.
+	 */
+	static void enqueued(String queue, Class<?> handlerClass, long payloadSize) {
+		if (recording != null) {
+			write(ENQUEUED, queue, handlerClass, payloadSize);
+		}
+	}
+
+	/**
+	 * Records a job that ran.
+	 *
+	 * @param long
+	 *            runMs How long its handler performed.
+	 */
+	static void ran(String queue, Class<?> handlerClass, long runMs) {
+		if (recording != null) {
+			write(RAN, queue, handlerClass, runMs);
+		}
+	}
+
+	private static void write(String type, String queue, Class<?> handlerClass, long value) {
+		Recording recording = DJWorkloadRecorder.recording;
+		if (recording == null) {
+			return;
+		}
+		String line = String.format("%s\t%d\t%s\t%s\t%d\n", type, System.currentTimeMillis() - recording.startMs,
+				recording.label("q", queue), recording.label("h", handlerClass.getName()), value);
+		if (!recording.lines.offer(line)) {
+			recording.dropped.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,401 @@
+package org.fartpig.jdjjob;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays a trace recorded by DJWorkloadRecorder against the configured
+ * database, to see how the claim path copes with a given load before it
+ * happens in production.
+ *
+ * Each recorded enqueue becomes a synthetic job with a payload of the same
+ * size, enqueued at the recorded time divided by the `load_factor`, to a
+ * queue named after the recorded one with the `queue_prefix`. A synthetic
+ * job sleeps for a run time recorded for its queue and handler class, taken
+ * in turn, or not at all if none was. The jobs are enqueued by `enqueuers`
+ * threads, so a slow insert delays only the jobs of its thread, and how late
+ * each enqueue was is measured. Meanwhile `workers` workers run the
+ * replayed queues, and once all jobs ran the throughput, the percentiles of
+ * the enqueue lag, of the wait until a job started and of its time until it
+ * finished, and the lock contention are reported.
+ *
+ * Run it by hand on a database nothing else uses:
+ * java -cp ... org.fartpig.jdjjob.DJWorkloadReplay trace [workers]
+ * [load_factor]
+ */
+public class DJWorkloadReplay {
+
+	// what the synthetic jobs measured, one replay runs at a time
+	private static final List<Long> waits = Collections.synchronizedList(new ArrayList<Long>());
+	private static final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+	private static final AtomicInteger performed = new AtomicInteger();
+
+	/**
+	 * A synthetic job of the replayed workload.
+	 */
+	public static class ReplayJob implements DJJobHandlerInterface {
+
+		private String padding;
+		private long runMs;
+		private long enqueuedAtMs;
+
+		public ReplayJob(String padding, long runMs, long enqueuedAtMs) {
+			this.padding = padding;
+			this.runMs = runMs;
+			this.enqueuedAtMs = enqueuedAtMs;
+		}
+
+		public ReplayJob() {
+		}
+
+		public String getPadding() {
+			return padding;
+		}
+
+		public void setPadding(String padding) {
+			this.padding = padding;
+		}
+
+		public long getRunMs() {
+			return runMs;
+		}
+
+		public void setRunMs(long runMs) {
+			this.runMs = runMs;
+		}
+
+		public long getEnqueuedAtMs() {
+			return enqueuedAtMs;
+		}
+
+		public void setEnqueuedAtMs(long enqueuedAtMs) {
+			this.enqueuedAtMs = enqueuedAtMs;
+		}
+
+		public void perform() throws Exception {
+			waits.add(System.currentTimeMillis() - this.enqueuedAtMs);
+			if (this.runMs > 0) {
+				Thread.sleep(this.runMs);
+			}
+			latencies.add(System.currentTimeMillis() - this.enqueuedAtMs);
+			performed.incrementAndGet();
+		}
+
+		public void onDjjobRetryError(String error) {
+		}
+	}
+
+	private static class Enqueue {
+		final long atMs;
+		final String queue;
+		final String handler;
+		final long size;
+
+		Enqueue(long atMs, String queue, String handler, long size) {
+			this.atMs = atMs;
+			this.queue = queue;
+			this.handler = handler;
+			this.size = size;
+		}
+	}
+
+	private final List<Enqueue> enqueues = new ArrayList<Enqueue>();
+	// the recorded run times by queue and handler class
+	private final Map<String, List<Long>> runTimes = new HashMap<String, List<Long>>();
+
+	// how late each enqueue finished, and the enqueues that failed
+	private final List<Long> enqueueLags = Collections.synchronizedList(new ArrayList<Long>());
+	private final AtomicInteger enqueueFailures = new AtomicInteger();
+
+	private int workers;
+	private int enqueuers;
+	private Map<String, Object> workerOptions;
+	private double loadFactor;
+	private String queuePrefix;
+	private int timeout;
+
+	/**
+	 * Reads a trace.
+	 *
+	 * Possible options: `workers`: How many workers run the replayed queues.
+	 * Default: '4' `worker_options`: The options of those workers, see
+	 * DJWorker, their `queues` being the replayed ones. Default: `sleep` '1'
+	 * `enqueuers`: How many threads enqueue the jobs, each taking every
+	 * `enqueuers`-th of them. Default: '4' `load_factor`: How many times
+	 * faster than recorded the jobs
+	 * are enqueued, e.g. '3' for three times the load. Default: '1'
+	 * `queue_prefix`: Prepended to the recorded queues, to keep the synthetic
+	 * jobs apart. Default: 'replay_' `timeout`: How many seconds to wait for
+	 * the jobs to run before reporting on the ones that did. Default: '600'
+	 *
+	 * @param File
+	 *            trace The trace written by DJWorkloadRecorder.
+	 * @param Map<String,Object>
+	 *            options The options.
+	 */
+	public DJWorkloadReplay(File trace, Map<String, Object> options) throws IOException {
+		Map<String, Object> originalMap = new HashMap<String, Object>();
+		originalMap.put("workers", 4);
+		originalMap.put("worker_options", new HashMap<String, Object>());
+		originalMap.put("enqueuers", 4);
+		originalMap.put("load_factor", 1.0);
+		originalMap.put("queue_prefix", "replay_");
+		originalMap.put("timeout", 600);
+
+		options = Utils.mergeMaps(originalMap, options);
+
+		this.workers = (Integer) options.get("workers");
+		@SuppressWarnings("unchecked")
+		Map<String, Object> workerOptions = (Map<String, Object>) options.get("worker_options");
+		this.workerOptions = workerOptions;
+		this.enqueuers = (Integer) options.get("enqueuers");
+		this.loadFactor = ((Number) options.get("load_factor")).doubleValue();
+		this.queuePrefix = (String) options.get("queue_prefix");
+		this.timeout = (Integer) options.get("timeout");
+		if (this.workers < 1 || this.enqueuers < 1 || this.loadFactor <= 0) {
+			throw new DJException("workers, enqueuers and load_factor must be positive");
+		}
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(trace), "UTF-8"));
+		try {
+			String line;
+			int number = 0;
+			while ((line = in.readLine()) != null) {
+				number += 1;
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\t");
+				if (fields.length != 5) {
+					throw new DJException(String.format("%s:%d is not a trace line", trace, number));
+				}
+				long atMs = Long.parseLong(fields[1]);
+				long value = Long.parseLong(fields[4]);
+				if (DJWorkloadRecorder.ENQUEUED.equals(fields[0])) {
+					this.enqueues.add(new Enqueue(atMs, fields[2], fields[3], value));
+				} else if (DJWorkloadRecorder.RAN.equals(fields[0])) {
+					String key = fields[2] + "\t" + fields[3];
+					List<Long> times = this.runTimes.get(key);
+					if (times == null) {
+						times = new ArrayList<Long>();
+						this.runTimes.put(key, times);
+					}
+					times.add(value);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return int The number of jobs the replay enqueues.
+	 */
+	public int getJobCount() {
+		return this.enqueues.size();
+	}
+
+	/**
+	 * Replays the trace.
+	 *
+	 * @return Map<String,Long> `jobs` that ran, `elapsed_ms`,
+	 *         `jobs_per_second`, the 50th, 90th and 99th percentile and the
+	 *         max of `enqueue_lag_*_ms`, `wait_*_ms` and `latency_*_ms`,
+	 *         `enqueue_failed` as the jobs that could not be enqueued,
+	 *         `claim_lost` as the claims another worker locked first, and
+	 *         `pool_wait_us` as the mean wait for a pooled connection.
+	 */
+	public Map<String, Long> run() throws InterruptedException {
+		synchronized (DJWorkloadReplay.class) {
+			waits.clear();
+			latencies.clear();
+			performed.set(0);
+			this.enqueueLags.clear();
+			this.enqueueFailures.set(0);
+
+			Set<String> queues = new LinkedHashSet<String>();
+			for (Enqueue enqueue : this.enqueues) {
+				queues.add(this.queuePrefix + enqueue.queue);
+			}
+			long claimsLost = DJMetrics.getTotal(DJMetrics.CLAIM_LOST);
+			long poolWaits = DJMetrics.getCount(DJMetrics.POOL_WAIT);
+			long poolWait = DJMetrics.getTotal(DJMetrics.POOL_WAIT);
+
+			List<DJWorker> workers = new ArrayList<DJWorker>();
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 0; i < this.workers && !queues.isEmpty(); i++) {
+				Map<String, Object> options = new HashMap<String, Object>();
+				options.put("sleep", 1);
+				options = Utils.mergeMaps(options, this.workerOptions);
+				options.put("queues", new ArrayList<String>(queues));
+				final DJWorker worker = new DJWorker(options, "replay" + i + ":");
+				Thread thread = new Thread(new Runnable() {
+
+					public void run() {
+						worker.start();
+					}
+
+				}, "djjob-replay-" + i);
+				thread.setDaemon(true);
+				thread.start();
+				workers.add(worker);
+				threads.add(thread);
+			}
+
+			long start = System.currentTimeMillis();
+			this.enqueue(start);
+			int enqueued = this.enqueues.size() - this.enqueueFailures.get();
+			if (enqueued < this.enqueues.size()) {
+				DJBase.log(DJBase.WARN, "[REPLAY] %d of %d jobs could not be enqueued", this.enqueueFailures.get(),
+						this.enqueues.size());
+			}
+			long deadline = start + this.timeout * 1000L;
+			while (performed.get() < enqueued && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			if (performed.get() < enqueued) {
+				DJBase.log(DJBase.WARN, "[REPLAY] only %d of %d jobs ran within %d seconds", performed.get(),
+						enqueued, this.timeout);
+			}
+
+			for (DJWorker worker : workers) {
+				worker.handleSignal();
+			}
+			for (Thread thread : threads) {
+				thread.join(1000);
+			}
+
+			Map<String, Long> report = new LinkedHashMap<String, Long>();
+			report.put("jobs", (long) performed.get());
+			report.put("elapsed_ms", elapsed);
+			report.put("jobs_per_second", performed.get() * 1000L / Math.max(elapsed, 1));
+			percentiles(report, "enqueue_lag", this.enqueueLags);
+			report.put("enqueue_failed", (long) this.enqueueFailures.get());
+			percentiles(report, "wait", waits);
+			percentiles(report, "latency", latencies);
+			report.put("claim_lost", DJMetrics.getTotal(DJMetrics.CLAIM_LOST) - claimsLost);
+			poolWaits = DJMetrics.getCount(DJMetrics.POOL_WAIT) - poolWaits;
+			poolWait = DJMetrics.getTotal(DJMetrics.POOL_WAIT) - poolWait;
+			report.put("pool_wait_us", poolWaits == 0 ? 0 : poolWait / poolWaits);
+			return report;
+		}
+	}
+
+	/**
+	 * Enqueues the synthetic jobs at their recorded times, scaled by the load
+	 * factor, from `enqueuers` threads, and waits for them to finish.
+	 */
+	private void enqueue(final long start) throws InterruptedException {
+		// the run times are handed out in trace order, whichever thread
+		// enqueues the job
+		final long[] runMs = new long[this.enqueues.size()];
+		Map<String, Integer> nextRunTime = new HashMap<String, Integer>();
+		for (int i = 0; i < runMs.length; i++) {
+			Enqueue enqueue = this.enqueues.get(i);
+			String key = enqueue.queue + "\t" + enqueue.handler;
+			List<Long> times = this.runTimes.get(key);
+			if (times != null) {
+				Integer next = nextRunTime.get(key);
+				next = next == null ? 0 : next;
+				runMs[i] = times.get(next % times.size());
+				nextRunTime.put(key, next + 1);
+			}
+		}
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < this.enqueuers; i++) {
+			final int first = i;
+			Thread thread = new Thread(new Runnable() {
+
+				public void run() {
+					try {
+						DJWorkloadReplay.this.enqueue(start, runMs, first);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+
+			}, "djjob-replay-enqueuer-" + i);
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	/**
+	 * Enqueues every `enqueuers`-th job, from the first given.
+	 */
+	private void enqueue(long start, long[] runMs, int first) throws InterruptedException {
+		int base = Utils.serializationObj(new ReplayJob("", 0, 0)).length();
+		for (int i = first; i < this.enqueues.size(); i += this.enqueuers) {
+			Enqueue enqueue = this.enqueues.get(i);
+			long atMs = start + (long) (enqueue.atMs / this.loadFactor);
+			long wait = atMs - System.currentTimeMillis();
+			if (wait > 0) {
+				Thread.sleep(wait);
+			}
+
+			StringBuilder padding = new StringBuilder();
+			for (long j = base; j < enqueue.size; j++) {
+				padding.append('x');
+			}
+			if (!DJJob.enqueue(new ReplayJob(padding.toString(), runMs[i], System.currentTimeMillis()),
+					this.queuePrefix + enqueue.queue, null)) {
+				this.enqueueFailures.incrementAndGet();
+			}
+			this.enqueueLags.add(System.currentTimeMillis() - atMs);
+		}
+	}
+
+	private static void percentiles(Map<String, Long> report, String name, List<Long> values) {
+		List<Long> sorted;
+		synchronized (values) {
+			sorted = new ArrayList<Long>(values);
+		}
+		Collections.sort(sorted);
+		int[] percentiles = { 50, 90, 99 };
+		for (int percentile : percentiles) {
+			int index = (int) Math.ceil(sorted.size() * percentile / 100.0) - 1;
+			report.put(String.format("%s_p%d_ms", name, percentile),
+					sorted.isEmpty() ? 0 : sorted.get(Math.max(index, 0)));
+		}
+		report.put(name + "_max_ms", sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1));
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("usage: DJWorkloadReplay trace [workers] [load_factor]");
+			System.exit(1);
+		}
+		Map<String, Object> options = new HashMap<String, Object>();
+		if (args.length > 1) {
+			options.put("workers", Integer.parseInt(args[1]));
+		}
+		if (args.length > 2) {
+			options.put("load_factor", Double.parseDouble(args[2]));
+		}
+
+		DJWorkloadReplay replay = new DJWorkloadReplay(new File(args[0]), options);
+		System.out.println(String.format("replaying %d jobs", replay.getJobCount()));
+		for (Map.Entry<String, Long> entry : replay.run().entrySet()) {
+			System.out.println(String.format("%-18s %d", entry.getKey(), entry.getValue()));
+		}
+		System.exit(0);
+	}
+}
@@ -15,6 +15,12 @@ public class Job {
 	private Date failedAt;
 	private String error;
 	private Date createdAt;
+	private String uniqueKey;
+	private String payloadHash;
+	private int pendingParents;
+	private Date deadline;
+	private String tenant;
+	private String affinity;
 
 	public Long getId() {
 		return id;
@@ -95,4 +101,52 @@ public class Job {
 	public void setCreatedAt(Date createdAt) {
 		this.createdAt = createdAt;
 	}
+
+	public String getUniqueKey() {
+		return uniqueKey;
+	}
+
+	public void setUniqueKey(String uniqueKey) {
+		this.uniqueKey = uniqueKey;
+	}
+
+	public String getPayloadHash() {
+		return payloadHash;
+	}
+
+	public void setPayloadHash(String payloadHash) {
+		this.payloadHash = payloadHash;
+	}
+
+	public int getPendingParents() {
+		return pendingParents;
+	}
+
+	public void setPendingParents(int pendingParents) {
+		this.pendingParents = pendingParents;
+	}
+
+	public Date getDeadline() {
+		return deadline;
+	}
+
+	public void setDeadline(Date deadline) {
+		this.deadline = deadline;
+	}
+
+	public String getTenant() {
+		return tenant;
+	}
+
+	public void setTenant(String tenant) {
+		this.tenant = tenant;
+	}
+
+	public String getAffinity() {
+		return affinity;
+	}
+
+	public void setAffinity(String affinity) {
+		this.affinity = affinity;
+	}
 }
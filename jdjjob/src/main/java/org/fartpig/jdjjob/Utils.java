@@ -1,6 +1,9 @@
 package org.fartpig.jdjjob;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.HashMap;
 import java.util.Map;
@@ -41,6 +44,27 @@ public class Utils {
 		return result;
 	}
 
+	/**
+	 * the hex SHA-256 hash of the UTF-8 bytes of a string
+	 * 
+	 * @param str
+	 * @return
+	 */
+	public static String sha256(String str) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(str.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest) {
+				sb.append(String.format("%02x", b & 0xff));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
 	public static <T> T deserializationObj(String jsonStr, Class<T> clazz) {
 		try {
 			return objectMapper.readValue(jsonStr, clazz);
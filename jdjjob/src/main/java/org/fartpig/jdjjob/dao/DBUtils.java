@@ -1,18 +1,33 @@
 package org.fartpig.jdjjob.dao;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.sql.DataSource;
 
+import org.fartpig.jdjjob.DJMetrics;
+
 import com.mchange.v2.c3p0.ComboPooledDataSource;
 
 public final class DBUtils {
 
 	private static DataSource dataSource = null;
+	private static Map<String, DataSource> namedDataSources = new ConcurrentHashMap<String, DataSource>();
+	private static Map<DataSource, DJDialectInterface> dialects = new ConcurrentHashMap<DataSource, DJDialectInterface>();
+
+	public static final DJDialectInterface MYSQL = new DJMySqlDialect();
+	public static final DJDialectInterface H2 = new DJH2Dialect();
 
 	static {
-		dataSource = new ComboPooledDataSource("mysql");
+		// 默认使用c3p0-config.xml中的mysql配置，系统属性djjob.config可以换成其他配置，如内嵌的h2
+		dataSource = new ComboPooledDataSource(System.getProperty("djjob.config", "mysql"));
 	}
 
 	private DBUtils() {
@@ -22,6 +37,21 @@ public final class DBUtils {
 		return dataSource;
 	}
 
+	/**
+	 * 获取c3p0-config.xml中指定名称的数据源
+	 * 
+	 * @param configName
+	 * @return
+	 */
+	public static synchronized DataSource getDataSource(String configName) {
+		DataSource named = namedDataSources.get(configName);
+		if (named == null) {
+			named = new ComboPooledDataSource(configName);
+			namedDataSources.put(configName, named);
+		}
+		return named;
+	}
+
 	/**
 	 * 获取数据库连接
 	 * 
@@ -30,13 +60,147 @@ public final class DBUtils {
 	public static Connection getConnection() {
 		Connection conn = null;
 		try {
-			conn = dataSource.getConnection();
+			conn = getConnection(dataSource);
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
 		return conn;
 	}
 
+	/**
+	 * 从指定的数据源获取数据库连接，等待连接池的时间记录在DJMetrics.POOL_WAIT
+	 * 
+	 * @param ds
+	 * @return
+	 * @throws SQLException
+	 */
+	public static Connection getConnection(DataSource ds) throws SQLException {
+		long start = System.nanoTime();
+		try {
+			return ds.getConnection();
+		} finally {
+			DJMetrics.record(DJMetrics.POOL_WAIT, (System.nanoTime() - start) / 1000);
+		}
+	}
+
+	/**
+	 * 保证c3p0连接池的最大连接数不小于size，连接池可能还被其他代码共用，所以只增不减
+	 * 
+	 * @param ds
+	 * @param size
+	 * @return 调整后的最大连接数，不是c3p0数据源时返回-1
+	 */
+	public static int ensurePoolSize(DataSource ds, int size) {
+		if (!(ds instanceof ComboPooledDataSource)) {
+			return -1;
+		}
+		ComboPooledDataSource pooled = (ComboPooledDataSource) ds;
+		synchronized (pooled) {
+			if (pooled.getMaxPoolSize() < size) {
+				pooled.setMaxPoolSize(size);
+			}
+			return pooled.getMaxPoolSize();
+		}
+	}
+
+	/**
+	 * 获取数据源的SQL方言，按JDBC URL判断，结果会缓存
+	 * 
+	 * @param ds
+	 * @return
+	 */
+	public static DJDialectInterface getDialect(DataSource ds) {
+		DJDialectInterface dialect = dialects.get(ds);
+		if (dialect != null) {
+			return dialect;
+		}
+
+		String url = null;
+		if (ds instanceof ComboPooledDataSource) {
+			url = ((ComboPooledDataSource) ds).getJdbcUrl();
+		} else {
+			Connection conn = null;
+			try {
+				conn = ds.getConnection();
+				url = conn.getMetaData().getURL();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			} finally {
+				closeConn(conn);
+			}
+		}
+		dialect = url != null && url.startsWith("jdbc:h2:") ? H2 : MYSQL;
+		dialects.put(ds, dialect);
+		return dialect;
+	}
+
+	/**
+	 * 按classpath中的jobs.sql建表，已存在的表不变，表名以jobsTable代替jobs
+	 * 
+	 * @param ds
+	 * @param jobsTable
+	 * @return 是否成功
+	 */
+	public static boolean createTables(DataSource ds, String jobsTable) {
+		String ddl;
+		try {
+			ddl = readResource("/jobs.sql");
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+
+		Connection conn = null;
+		Statement stmt = null;
+		try {
+			conn = ds.getConnection();
+			stmt = conn.createStatement();
+			for (String sql : ddl.split(";")) {
+				if (sql.trim().length() == 0) {
+					continue;
+				}
+				sql = sql.replace("CREATE TABLE `jobs", "CREATE TABLE IF NOT EXISTS `" + jobsTable);
+				if (!"jobs".equals(jobsTable)) {
+					// 内嵌数据库的索引名在整个schema内唯一
+					sql = sql.replace("KEY `", "KEY `" + jobsTable + "_");
+				}
+				stmt.execute(sql);
+			}
+			return true;
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} finally {
+			if (stmt != null) {
+				try {
+					stmt.close();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			}
+			closeConn(conn);
+		}
+		return false;
+	}
+
+	private static String readResource(String name) throws IOException {
+		InputStream in = DBUtils.class.getResourceAsStream(name);
+		if (in == null) {
+			throw new IOException(name + " not found on the classpath");
+		}
+		Reader reader = new InputStreamReader(in, "UTF-8");
+		try {
+			StringBuilder sb = new StringBuilder();
+			char[] buffer = new char[4096];
+			int read;
+			while ((read = reader.read(buffer)) > 0) {
+				sb.append(buffer, 0, read);
+			}
+			return sb.toString();
+		} finally {
+			reader.close();
+		}
+	}
+
 	/**
 	 * 关闭数据库连接
 	 * 
@@ -44,7 +208,7 @@ public final class DBUtils {
 	 */
 	public static void closeConn(Connection conn) {
 		try {
-			if (conn != null && conn.isClosed()) {
+			if (conn != null && !conn.isClosed()) {
 				conn.close();
 			}
 		} catch (SQLException e) {
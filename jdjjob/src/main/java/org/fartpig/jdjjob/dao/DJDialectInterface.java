@@ -0,0 +1,50 @@
+package org.fartpig.jdjjob.dao;
+
+/**
+ * The parts of the job statements that differ between databases.
+ *
+ * Everything else is written in SQL that MySQL and H2 in MySQL mode both
+ * understand: CASE instead of IF, subqueries instead of multi-table updates
+ * and deletes, LOCATE instead of SUBSTRING_INDEX.
+ */
+public interface DJDialectInterface {
+
+	/**
+	 * @return string The name of the dialect, also telling the statement
+	 *         catalogs apart.
+	 */
+	public String getName();
+
+	/**
+	 * @param string
+	 *            expr A DATETIME expression.
+	 * @param string
+	 *            seconds A number of seconds, usually a parameter.
+	 *
+	 * @return string An expression for expr plus the seconds.
+	 */
+	public String addSeconds(String expr, String seconds);
+
+	/**
+	 * @param string
+	 *            expr A DATETIME expression.
+	 * @param string
+	 *            seconds A number of seconds, usually a parameter.
+	 *
+	 * @return string An expression for expr minus the seconds.
+	 */
+	public String subtractSeconds(String expr, String seconds);
+
+	/**
+	 * @return string A statement returning the replication lag in a
+	 *         Seconds_Behind_Master column, or null if the database does not
+	 *         replicate.
+	 */
+	public String getReplicationLagQuery();
+
+	/**
+	 * @return boolean Whether the database runs in this process and starts
+	 *         empty, so the tables are created when DJJob is configured.
+	 */
+	public boolean isEmbedded();
+}
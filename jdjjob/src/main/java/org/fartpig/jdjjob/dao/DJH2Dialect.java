@@ -0,0 +1,28 @@
+package org.fartpig.jdjjob.dao;
+
+/**
+ * H2 in MySQL mode, embedded in the process, for small deployments and
+ * tests without a database server. See the `h2` config in c3p0-config.xml.
+ */
+public class DJH2Dialect implements DJDialectInterface {
+
+	public String getName() {
+		return "h2";
+	}
+
+	public String addSeconds(String expr, String seconds) {
+		return "DATEADD('SECOND', " + seconds + ", " + expr + ")";
+	}
+
+	public String subtractSeconds(String expr, String seconds) {
+		return "DATEADD('SECOND', -(" + seconds + "), " + expr + ")";
+	}
+
+	public String getReplicationLagQuery() {
+		return null;
+	}
+
+	public boolean isEmbedded() {
+		return true;
+	}
+}
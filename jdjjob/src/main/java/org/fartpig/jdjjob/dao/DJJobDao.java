@@ -1,40 +1,131 @@
 package org.fartpig.jdjjob.dao;
 
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import javax.sql.DataSource;
+
+import org.apache.commons.dbutils.BasicRowProcessor;
 import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.ResultSetHandler;
 import org.apache.commons.dbutils.handlers.ArrayListHandler;
-import org.apache.commons.dbutils.handlers.BeanListHandler;
+import org.apache.commons.dbutils.handlers.MapHandler;
+import org.apache.commons.dbutils.handlers.ScalarHandler;
 import org.fartpig.jdjjob.DJBase;
 import org.fartpig.jdjjob.Job;
 
 public class DJJobDao {
 
-	private static String ID_COLUMN = "`id`";
-	private static String COLUMNS = "`handler`, `queue`, `attempts`, `run_at`, `locked_at`, `locked_by`, `failed_at`, `error`, `created_at`";
+	private static final String ID_COLUMN = "`id`";
+	static final String COLUMNS = "`handler`, `queue`, `attempts`, `run_at`, `locked_at`, `locked_by`, `failed_at`, `error`, `created_at`, `unique_key`, `payload_hash`, `pending_parents`, `deadline`, `tenant`, `affinity`";
+	// all but the large handler and error columns
+	public static final String SUMMARY_COLUMNS = "`queue`, `attempts`, `run_at`, `locked_at`, `locked_by`, `failed_at`, `created_at`, `unique_key`, `payload_hash`, `pending_parents`, `deadline`, `tenant`, `affinity`";
+
+	// maps the selected columns onto the Job properties
+	private static final ResultSetHandler<List<Job>> JOB_ROWS = new JobListHandler();
+	// rows of plain values, reading text columns as strings on every database
+	private static final ResultSetHandler<List<Object[]>> OBJECT_ROWS = new ArrayListHandler(new TextRowProcessor());
+
+	private DataSource dataSource;
+	private String jobsTable;
+	private DJUnitOfWork unitOfWork;
+
+	/**
+	 * A dao on the default data source and jobs table.
+	 */
+	public DJJobDao() {
+	}
+
+	/**
+	 * A dao on the given data source and jobs table, as used by a shard.
+	 */
+	public DJJobDao(DataSource dataSource, String jobsTable) {
+		this.dataSource = dataSource;
+		this.jobsTable = jobsTable;
+	}
+
+	/**
+	 * A dao running its statements on the connection of a unit of work.
+	 */
+	public DJJobDao(DJUnitOfWork unitOfWork, String jobsTable) {
+		this.unitOfWork = unitOfWork;
+		this.jobsTable = jobsTable;
+	}
+
+	public DataSource getDataSource() {
+		if (this.unitOfWork != null) {
+			return this.unitOfWork.getDataSource();
+		}
+		return this.dataSource != null ? this.dataSource : DBUtils.getDataSource();
+	}
+
+	public String getJobsTable() {
+		return this.jobsTable != null ? this.jobsTable : DJBase.jobsTable;
+	}
+
+	/**
+	 * @return DJSqlCatalog The statements on the jobs table of this dao.
+	 */
+	public DJSqlCatalog getSql() {
+		return DJSqlCatalog.forTable(this.getDialect(), this.getJobsTable());
+	}
+
+	/**
+	 * @return DJDialectInterface The dialect of the data source of this dao.
+	 */
+	public DJDialectInterface getDialect() {
+		return DBUtils.getDialect(this.getDataSource());
+	}
+
+	private Connection checkout() throws SQLException {
+		if (this.unitOfWork != null) {
+			return this.unitOfWork.getConnection();
+		}
+		return DBUtils.getConnection(this.getDataSource());
+	}
+
+	private void checkin(Connection conn) {
+		if (this.unitOfWork == null) {
+			DBUtils.closeConn(conn);
+		}
+	}
 
 	public boolean save(Job job) {
-		QueryRunner qr = new QueryRunner(DBUtils.getDataSource());
+		QueryRunner qr = new QueryRunner();
+		Connection conn = null;
 
 		StringBuilder sb = new StringBuilder();
 		sb.append("INSERT INTO ");
-		sb.append(DJBase.jobsTable);
+		sb.append(this.getJobsTable());
 		sb.append(" (");
 		sb.append(COLUMNS);
-		sb.append(") VALUE (? , ? ,? ,? ,? ,? ,? ,? , NOW())");
+		sb.append(") VALUE (? , ? ,? ,? ,? ,? ,? ,? , NOW(), ?, ?, ?, ?, ?, ?)");
 
 		int num = 0;
 		try {
-			num = qr.update(sb.toString(), job.getHandler(), job.getQueue(), job.getAttempts(), job.getRunAt(),
-					job.getLockedAt(), job.getLockedBy(), job.getFailedAt(), job.getError());
+			conn = this.checkout();
+			num = qr.update(conn, sb.toString(), job.getHandler(), job.getQueue(), job.getAttempts(), job.getRunAt(),
+					job.getLockedAt(), job.getLockedBy(), job.getFailedAt(), job.getError(), job.getUniqueKey(),
+					job.getPayloadHash(), job.getPendingParents(), job.getDeadline(), job.getTenant(),
+					job.getAffinity());
 			if (num != 0) {
 				return true;
 			}
 		} catch (SQLException e) {
 			e.printStackTrace();
+		} finally {
+			this.checkin(conn);
 		}
 
 		return false;
@@ -42,57 +133,110 @@ public class DJJobDao {
 
 	public boolean delete(Job job) {
 
-		QueryRunner qr = new QueryRunner(DBUtils.getDataSource());
-
-		StringBuilder sb = new StringBuilder();
-		sb.append("DELETE FROM ");
-		sb.append(DJBase.jobsTable);
-		sb.append("  WHERE ");
-		sb.append(ID_COLUMN);
-		sb.append("=?");
+		QueryRunner qr = new QueryRunner();
+		Connection conn = null;
 
 		int num = 0;
 		try {
-			num = qr.update(sb.toString(), job.getId().longValue());
+			conn = this.checkout();
+			num = qr.update(conn, this.getSql().delete, job.getId().longValue());
 			if (num != 0) {
 				return true;
 			}
 		} catch (SQLException e) {
 			e.printStackTrace();
+		} finally {
+			this.checkin(conn);
 		}
 
 		return false;
 	}
 
 	public List<Object[]> executeQuery(String sql, List<Object> args) {
-		QueryRunner qr = new QueryRunner(DBUtils.getDataSource());
+		List<Object[]> rows = this.executeQueryOrNull(sql, args);
+		return rows == null ? Collections.<Object[]>emptyList() : rows;
+	}
+
+	/**
+	 * Executes a query and returns its rows, or null if it failed, to tell a
+	 * failure from no rows.
+	 */
+	public List<Object[]> executeQueryOrNull(String sql, List<Object> args) {
+		QueryRunner qr = new QueryRunner();
+		Connection conn = null;
 		try {
-			return qr.query(sql, new ArrayListHandler(), args.toArray());
+			conn = this.checkout();
+			return qr.query(conn, sql, OBJECT_ROWS, args.toArray());
 		} catch (SQLException e) {
 			e.printStackTrace();
+		} finally {
+			this.checkin(conn);
 		}
-		return Collections.<Object[]>emptyList();
+		return null;
 	}
 
 	public boolean execute(String updateSql, List<Object> args) {
 
-		QueryRunner qr = new QueryRunner(DBUtils.getDataSource());
+		QueryRunner qr = new QueryRunner();
+		Connection conn = null;
 		try {
-			qr.update(updateSql, args.toArray());
+			conn = this.checkout();
+			qr.update(conn, updateSql, args.toArray());
 			return true;
 		} catch (SQLException e) {
 			e.printStackTrace();
+		} finally {
+			this.checkin(conn);
 		}
 		return false;
 	}
 
+	/**
+	 * Executes an update and returns the number of rows it matched, or -1 if
+	 * it failed.
+	 */
+	public int executeUpdate(String updateSql, List<Object> args) {
+
+		QueryRunner qr = new QueryRunner();
+		Connection conn = null;
+		try {
+			conn = this.checkout();
+			return qr.update(conn, updateSql, args.toArray());
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} finally {
+			this.checkin(conn);
+		}
+		return -1;
+	}
+
+	/**
+	 * Executes an insert and returns the generated id, or -1 if it failed.
+	 */
+	public long executeInsert(String insertSql, List<Object> args) {
+
+		QueryRunner qr = new QueryRunner();
+		Connection conn = null;
+		try {
+			conn = this.checkout();
+			Object id = qr.insert(conn, insertSql, new ScalarHandler<Object>(), args.toArray());
+			return id == null ? -1 : ((Number) id).longValue();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} finally {
+			this.checkin(conn);
+		}
+		return -1;
+	}
+
 	public boolean update(Job job) {
 
-		QueryRunner qr = new QueryRunner(DBUtils.getDataSource());
+		QueryRunner qr = new QueryRunner();
+		Connection conn = null;
 
 		StringBuilder sb = new StringBuilder();
 		sb.append("UPDATE ");
-		sb.append(DJBase.jobsTable);
+		sb.append(this.getJobsTable());
 		sb.append(" SET  `handler` = ? ,");
 		sb.append(" `queue` = ? ,");
 		sb.append(" `attempts` = ? ,");
@@ -100,33 +244,71 @@ public class DJJobDao {
 		sb.append(" `locked_at` = ? ,");
 		sb.append(" `locked_by` = ? ,");
 		sb.append(" `failed_at` = ? ,");
-		sb.append(" `error` = ? ");
+		sb.append(" `error` = ? ,");
+		sb.append(" `unique_key` = ? ,");
+		sb.append(" `payload_hash` = ? ,");
+		sb.append(" `pending_parents` = ? ,");
+		sb.append(" `deadline` = ? ,");
+		sb.append(" `tenant` = ? ,");
+		sb.append(" `affinity` = ? ");
 		sb.append(" WHERE ");
 		sb.append(ID_COLUMN);
 		sb.append("=?");
 
 		int num = 0;
 		try {
-			num = qr.update(sb.toString(), job.getHandler(), job.getQueue(), job.getAttempts(), job.getRunAt(),
-					job.getLockedAt(), job.getLockedBy(), job.getFailedAt(), job.getError(), job.getId().longValue());
+			conn = this.checkout();
+			num = qr.update(conn, sb.toString(), job.getHandler(), job.getQueue(), job.getAttempts(), job.getRunAt(),
+					job.getLockedAt(), job.getLockedBy(), job.getFailedAt(), job.getError(), job.getUniqueKey(),
+					job.getPayloadHash(), job.getPendingParents(), job.getDeadline(), job.getTenant(),
+					job.getAffinity(), job.getId().longValue());
 			if (num != 0) {
 				return true;
 			}
 		} catch (SQLException e) {
 			e.printStackTrace();
+		} finally {
+			this.checkin(conn);
 		}
 		return false;
 	}
 
+	/**
+	 * Loads the jobs matching a condition from the data source of this dao.
+	 * For inspection and reporting take the dao from DJShard.getReadDao(), or
+	 * use DJJobQuery, so the reads go to the replica of the shard.
+	 */
 	public List<Job> findByCondition(String whereSql, String orderSql, List<Object> args) {
-		QueryRunner qr = new QueryRunner(DBUtils.getDataSource());
+		return this.findByCondition(COLUMNS, whereSql, orderSql, args);
+	}
+
+	/**
+	 * Like findByCondition, loading only the given columns besides the id.
+	 * The other properties of the jobs are left null.
+	 */
+	public List<Job> findByCondition(String columns, String whereSql, String orderSql, List<Object> args) {
+		List<Job> jobs = this.findByConditionOrNull(columns, whereSql, orderSql, args);
+		return jobs == null ? Collections.<Job>emptyList() : jobs;
+	}
+
+	/**
+	 * Like findByCondition, returning null if the query failed, to tell a
+	 * failure from no jobs.
+	 */
+	public List<Job> findByConditionOrNull(String whereSql, String orderSql, List<Object> args) {
+		return this.findByConditionOrNull(COLUMNS, whereSql, orderSql, args);
+	}
+
+	public List<Job> findByConditionOrNull(String columns, String whereSql, String orderSql, List<Object> args) {
+		QueryRunner qr = new QueryRunner();
+		Connection conn = null;
 		StringBuilder sb = new StringBuilder();
 		sb.append("SELECT ");
 		sb.append(ID_COLUMN);
 		sb.append(" ,");
-		sb.append(COLUMNS);
+		sb.append(columns);
 		sb.append(" FROM ");
-		sb.append(DJBase.jobsTable);
+		sb.append(this.getJobsTable());
 		sb.append(" WHERE ");
 		sb.append(whereSql);
 		if (orderSql != null) {
@@ -135,18 +317,153 @@ public class DJJobDao {
 		}
 
 		try {
-			return qr.query(sb.toString(), new BeanListHandler<Job>(Job.class), args.toArray());
+			conn = this.checkout();
+			return qr.query(conn, sb.toString(), JOB_ROWS, args.toArray());
 		} catch (SQLException e) {
 			e.printStackTrace();
+		} finally {
+			this.checkin(conn);
 		}
-		return Collections.<Job>emptyList();
+		return null;
 	}
 
+	/**
+	 * Loads a job from the data source of this dao. The workers load the
+	 * handler of a claimed job with it, which has to read the primary; for
+	 * inspection see DJJobQuery.find().
+	 */
 	public Job loadByJobId(long jobId) {
-		List<Object> args = new ArrayList<Object>();
-		args.add(jobId);
-		List<Job> jobs = findByCondition("id = ? ", null, args);
-		return jobs.size() > 0 ? jobs.get(0) : null;
+		QueryRunner qr = new QueryRunner();
+		Connection conn = null;
+		try {
+			conn = this.checkout();
+			List<Job> jobs = qr.query(conn, this.getSql().selectById, JOB_ROWS,
+					jobId);
+			return jobs.size() > 0 ? jobs.get(0) : null;
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} finally {
+			this.checkin(conn);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns how far the data source lags behind its master, from the lag
+	 * query of its dialect.
+	 *
+	 * @return long The lag in seconds, or -1 if it is not a running replica.
+	 */
+	public long getReplicationLag() {
+		String sql = this.getDialect().getReplicationLagQuery();
+		if (sql == null) {
+			return -1;
+		}
+		QueryRunner qr = new QueryRunner();
+		Connection conn = null;
+		try {
+			conn = this.checkout();
+			Map<String, Object> status = qr.query(conn, sql, new MapHandler());
+			if (status != null && status.get("Seconds_Behind_Master") != null) {
+				return ((Number) status.get("Seconds_Behind_Master")).longValue();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} finally {
+			this.checkin(conn);
+		}
+		return -1;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Reads the values of a row, with CLOB columns, which is what the embedded
+	 * database returns for TEXT, read into strings.
+	 */
+	private static class TextRowProcessor extends BasicRowProcessor {
+
+		public Object[] toArray(ResultSet rs) throws SQLException {
+			Object[] row = super.toArray(rs);
+			for (int i = 0; i < row.length; i++) {
+				if (row[i] instanceof Clob) {
+					Clob clob = (Clob) row[i];
+					row[i] = clob.getSubString(1, (int) clob.length());
+				}
+			}
+			return row;
+		}
+	}
+
+	/**
+	 * Reads the jobs of a result set by column name, leaving the properties of
+	 * columns that were not selected unset. Used instead of a bean processor,
+	 * whose column handler lookup is not safe for jobs loaded from several
+	 * threads at once.
+	 */
+	private static class JobListHandler implements ResultSetHandler<List<Job>> {
+
+		public List<Job> handle(ResultSet rs) throws SQLException {
+			ResultSetMetaData meta = rs.getMetaData();
+			Set<String> columns = new HashSet<String>();
+			for (int i = 1; i <= meta.getColumnCount(); i++) {
+				columns.add(meta.getColumnLabel(i).toLowerCase());
+			}
+
+			List<Job> jobs = new ArrayList<Job>();
+			while (rs.next()) {
+				Job job = new Job();
+				job.setId(rs.getLong("id"));
+				if (columns.contains("handler")) {
+					job.setHandler(rs.getString("handler"));
+				}
+				if (columns.contains("queue")) {
+					job.setQueue(rs.getString("queue"));
+				}
+				if (columns.contains("attempts")) {
+					job.setAttempts(rs.getInt("attempts"));
+				}
+				if (columns.contains("run_at")) {
+					job.setRunAt(toDate(rs.getTimestamp("run_at")));
+				}
+				if (columns.contains("locked_at")) {
+					job.setLockedAt(toDate(rs.getTimestamp("locked_at")));
+				}
+				if (columns.contains("locked_by")) {
+					job.setLockedBy(rs.getString("locked_by"));
+				}
+				if (columns.contains("failed_at")) {
+					job.setFailedAt(toDate(rs.getTimestamp("failed_at")));
+				}
+				if (columns.contains("error")) {
+					job.setError(rs.getString("error"));
+				}
+				if (columns.contains("created_at")) {
+					job.setCreatedAt(toDate(rs.getTimestamp("created_at")));
+				}
+				if (columns.contains("unique_key")) {
+					job.setUniqueKey(rs.getString("unique_key"));
+				}
+				if (columns.contains("payload_hash")) {
+					job.setPayloadHash(rs.getString("payload_hash"));
+				}
+				if (columns.contains("pending_parents")) {
+					job.setPendingParents(rs.getInt("pending_parents"));
+				}
+				if (columns.contains("deadline")) {
+					job.setDeadline(toDate(rs.getTimestamp("deadline")));
+				}
+				if (columns.contains("tenant")) {
+					job.setTenant(rs.getString("tenant"));
+				}
+				if (columns.contains("affinity")) {
+					job.setAffinity(rs.getString("affinity"));
+				}
+				jobs.add(job);
+			}
+			return jobs;
+		}
+
+		private static Date toDate(Timestamp timestamp) {
+			return timestamp == null ? null : new Date(timestamp.getTime());
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package org.fartpig.jdjjob.dao;
+
+/**
+ * MySQL and MariaDB.
+ */
+public class DJMySqlDialect implements DJDialectInterface {
+
+	public String getName() {
+		return "mysql";
+	}
+
+	public String addSeconds(String expr, String seconds) {
+		return "DATE_ADD(" + expr + ", INTERVAL " + seconds + " SECOND)";
+	}
+
+	public String subtractSeconds(String expr, String seconds) {
+		return "DATE_SUB(" + expr + ", INTERVAL " + seconds + " SECOND)";
+	}
+
+	public String getReplicationLagQuery() {
+		return "SHOW SLAVE STATUS";
+	}
+
+	public boolean isEmbedded() {
+		return false;
+	}
+}
@@ -0,0 +1,385 @@
+package org.fartpig.jdjjob.dao;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The fixed statements on a jobs table, built once per table name.
+ *
+ * Every statement a job runs on its way through the queue is here, so each
+ * one is the same string on every call and the prepared statement cache of
+ * the pool (see c3p0-config.xml) reuses the server side prepared statement
+ * instead of having the server parse it again. Statements whose shape
+ * depends on the call, like the IN lists of batches, are still built where
+ * they are used.
+ *
+ * The statements stick to SQL that MySQL and the embedded H2 in MySQL mode
+ * both run, and leave the date arithmetic to the DJDialectInterface of the
+ * data source.
+ */
+public class DJSqlCatalog {
+
+	// the duplicate handling of inserts with a unique key
+	public static final String ON_DUPLICATE_REJECT = " ON DUPLICATE KEY UPDATE id = id";
+	// only a job no worker has picked up yet can be replaced
+	public static final String ON_DUPLICATE_REPLACE = " ON DUPLICATE KEY UPDATE "
+			+ " handler = CASE WHEN locked_at IS NULL THEN VALUES(handler) ELSE handler END, "
+			+ " run_at = CASE WHEN locked_at IS NULL THEN VALUES(run_at) ELSE run_at END, "
+			+ " payload_hash = CASE WHEN locked_at IS NULL THEN VALUES(payload_hash) ELSE payload_hash END, "
+			+ " affinity = CASE WHEN locked_at IS NULL THEN VALUES(affinity) ELSE affinity END";
+
+	private static final Map<String, DJSqlCatalog> catalogs = new ConcurrentHashMap<String, DJSqlCatalog>();
+
+	private final DJDialectInterface dialect;
+	private final String table;
+	// the affinity claims by the claim they restrict and the number of keys
+	private final Map<String, String> affinityClaims = new ConcurrentHashMap<String, String>();
+
+	// claim candidates: queue, worker name, [lock timeout,] max attempts
+	public final String claim;
+	public final String claimLeased;
+
+	// the candidates with a deadline, earliest first, same arguments
+	public final String claimByDeadline;
+	public final String claimByDeadlineLeased;
+
+	// the candidates of one tenant, oldest first: queue, worker name, [lock
+	// timeout,] max attempts, tenant
+	public final String claimByTenant;
+	public final String claimByTenantLeased;
+
+	// the candidates without a tenant, oldest first, as claim
+	public final String claimWithoutTenant;
+	public final String claimWithoutTenantLeased;
+
+	// the tenant with claimable jobs in a queue that comes first, or after a
+	// tenant: queue, worker name, [lock timeout,] max attempts[, tenant]
+	public final String selectFirstTenant;
+	public final String selectFirstTenantLeased;
+	public final String selectNextTenant;
+	public final String selectNextTenantLeased;
+
+	// the other ready jobs of a batch handler class, newest first: queue,
+	// handler class pattern, max attempts, limit
+	public final String selectBatch;
+
+	// lock the jobs of a batch: worker name, followed by the IN list of the
+	// ids
+	public final String lockBatch;
+
+	// worker name, followed by the IN list of the ids
+	public final String selectLockedBy;
+
+	// lock a job: worker name, id, worker name, [lock timeout]
+	public final String lock;
+	public final String lockLeased;
+
+	// id, worker name
+	public final String releaseLock;
+
+	// id, worker name
+	public final String renewLock;
+
+	// worker name
+	public final String releaseLocks;
+
+	// id
+	public final String delete;
+
+	// followed by the IN list of the ids
+	public final String deleteIn;
+
+	// max attempts, max attempts, error, max attempts, id
+	public final String fail;
+
+	// max attempts, error, max attempts, id, worker name
+	public final String timeout;
+
+	// delay, id
+	public final String retryLater;
+
+	// delay, id, worker name
+	public final String defer;
+
+	// id
+	public final String selectById;
+	public final String selectHandlerClass;
+	public final String selectAttempts;
+
+	// handler, queue, run_at, unique_key, payload_hash, affinity
+	public final String insert;
+	public final String insertUnique;
+	public final String insertReplacing;
+
+	// handler, queue, run_at, unique_key, payload_hash, affinity, pending
+	// parents
+	public final String insertWaiting;
+
+	// handler, queue, run_at, payload_hash, affinity, seconds to the deadline
+	public final String insertWithDeadline;
+
+	// handler, queue, run_at, payload_hash, affinity, tenant
+	public final String insertForTenant;
+
+	// queue, the ids of the jobs whose deadline passed before a worker
+	// locked them, locking them to delete them
+	public final String selectExpired;
+
+	// error, queue
+	public final String failExpired;
+
+	// the parent and child ids of the jobs waiting for other jobs
+	public final String dependenciesTable;
+
+	// pending parents, id
+	public final String setPendingParents;
+
+	// followed by the IN list of the parent ids
+	public final String selectChildren;
+	public final String deleteDependencies;
+
+	// how many parents are gone, followed by the IN list of the child ids
+	public final String releaseChildren;
+
+	// the outcomes of the jobs of result handlers
+	public final String resultsTable;
+
+	// job id, status, result, ttl
+	public final String insertResult;
+
+	// ttl, id
+	public final String insertFailureResult;
+
+	// queue
+	public final String status;
+
+	// queue, horizon, max attempts
+	public final String schedule;
+
+	private DJSqlCatalog(DJDialectInterface dialect, String table) {
+		this.dialect = dialect;
+		this.table = table;
+
+		String onTime = "(deadline IS NULL OR deadline >= NOW())";
+		this.claim = claim(dialect, table, false, onTime, "created_at DESC");
+		this.claimLeased = claim(dialect, table, true, onTime, "created_at DESC");
+		this.claimByDeadline = claim(dialect, table, false, "deadline >= NOW()", "deadline");
+		this.claimByDeadlineLeased = claim(dialect, table, true, "deadline >= NOW()", "deadline");
+		this.claimByTenant = claim(dialect, table, false, onTime + " AND tenant = ?", "created_at");
+		this.claimByTenantLeased = claim(dialect, table, true, onTime + " AND tenant = ?", "created_at");
+		this.claimWithoutTenant = claim(dialect, table, false, onTime + " AND tenant IS NULL", "created_at");
+		this.claimWithoutTenantLeased = claim(dialect, table, true, onTime + " AND tenant IS NULL", "created_at");
+
+		// walks the queue, failed_at and tenant index, skipping the failed
+		// jobs; the delayed and locked jobs of a tenant are checked row by row
+		this.selectFirstTenant = tenant(dialect, table, false, onTime + " AND tenant IS NOT NULL");
+		this.selectFirstTenantLeased = tenant(dialect, table, true, onTime + " AND tenant IS NOT NULL");
+		this.selectNextTenant = tenant(dialect, table, false, onTime + " AND tenant > ?");
+		this.selectNextTenantLeased = tenant(dialect, table, true, onTime + " AND tenant > ?");
+		this.lock = lock(dialect, table, false);
+		this.lockLeased = lock(dialect, table, true);
+
+		// the batch takes unlocked jobs only, ready the same way as a claim
+		String ready = "(run_at IS NULL OR NOW() >= run_at) AND locked_at IS NULL AND failed_at IS NULL"
+				+ " AND pending_parents = 0 AND " + onTime;
+		this.selectBatch = "SELECT id FROM " + table + " WHERE queue = ? AND handler LIKE ? AND " + ready
+				+ " AND attempts < ? ORDER BY created_at DESC LIMIT ?";
+		this.lockBatch = "UPDATE " + table + " SET locked_at = NOW(), locked_by = ? WHERE " + ready + " AND id IN ";
+		this.selectLockedBy = "SELECT id FROM " + table + " WHERE locked_by = ? AND id IN ";
+
+		this.releaseLock = "UPDATE " + table + " SET locked_at = NULL, locked_by = NULL WHERE id = ? AND locked_by = ?";
+		this.releaseLocks = "UPDATE " + table + " SET locked_at = NULL, locked_by = NULL WHERE locked_by = ?";
+		this.renewLock = "UPDATE " + table + " SET locked_at = NOW() WHERE id = ? AND locked_by = ?";
+		this.delete = "DELETE FROM " + table + " WHERE `id` = ?";
+		this.deleteIn = "DELETE FROM " + table + " WHERE `id` IN ";
+
+		// attempts is counted up last: MySQL reads the columns assigned before
+		// in the same SET, H2 always reads the old values
+		StringBuilder sb = new StringBuilder();
+		sb.append("UPDATE ");
+		sb.append(table);
+		sb.append(" SET failed_at = CASE WHEN attempts + 1 >= ? THEN NOW() ELSE NULL END, ");
+		sb.append(" error = CASE WHEN attempts + 1 >= ? THEN ? ELSE NULL END, ");
+		sb.append(" unique_key = CASE WHEN attempts + 1 >= ? THEN NULL ELSE unique_key END, ");
+		sb.append(" attempts = attempts + 1 ");
+		sb.append(" WHERE id = ?");
+		this.fail = sb.toString();
+
+		// a failed attempt of a job still locked by the worker, which keeps
+		// the lock: the handler may still be running
+		sb = new StringBuilder();
+		sb.append("UPDATE ");
+		sb.append(table);
+		sb.append(" SET failed_at = CASE WHEN attempts + 1 >= ? THEN NOW() ELSE NULL END, ");
+		sb.append(" error = ?, ");
+		sb.append(" unique_key = CASE WHEN attempts + 1 >= ? THEN NULL ELSE unique_key END, ");
+		sb.append(" attempts = attempts + 1 ");
+		sb.append(" WHERE id = ? AND locked_by = ?");
+		this.timeout = sb.toString();
+
+		sb = new StringBuilder();
+		sb.append("UPDATE ");
+		sb.append(table);
+		sb.append(" SET run_at = " + dialect.addSeconds("NOW()", "?") + ", ");
+		sb.append(" attempts = attempts + 1 ");
+		sb.append(" WHERE id = ?");
+		this.retryLater = sb.toString();
+
+		this.defer = "UPDATE " + table + " SET run_at = " + dialect.addSeconds("NOW()", "?")
+				+ ", locked_at = NULL, locked_by = NULL WHERE id = ? AND locked_by = ?";
+
+		this.selectById = "SELECT `id`, " + DJJobDao.COLUMNS + " FROM " + table + " WHERE `id` = ?";
+		this.selectHandlerClass = "SELECT SUBSTRING(handler, 1, LOCATE(':', handler) - 1) FROM " + table + " WHERE id = ?";
+		this.selectAttempts = "SELECT attempts FROM " + table + " WHERE id = ?";
+
+		this.insert = "INSERT INTO " + table + " (handler, queue, run_at, created_at, unique_key, payload_hash,"
+				+ " affinity) VALUES (?, ?, ?, NOW(), ?, ?, ?)";
+		this.insertUnique = this.insert + ON_DUPLICATE_REJECT;
+		this.insertReplacing = this.insert + ON_DUPLICATE_REPLACE;
+		this.insertWaiting = "INSERT INTO " + table + " (handler, queue, run_at, created_at, unique_key, payload_hash,"
+				+ " affinity, pending_parents) VALUES (?, ?, ?, NOW(), ?, ?, ?, ?)";
+		this.insertWithDeadline = "INSERT INTO " + table + " (handler, queue, run_at, created_at, payload_hash,"
+				+ " affinity, deadline) VALUES (?, ?, ?, NOW(), ?, ?, " + dialect.addSeconds("NOW()", "?") + ")";
+		this.insertForTenant = "INSERT INTO " + table + " (handler, queue, run_at, created_at, payload_hash,"
+				+ " affinity, tenant) VALUES (?, ?, ?, NOW(), ?, ?, ?)";
+
+		// a range of the queue and deadline index, jobs without one are not in it
+		String expired = " WHERE queue = ? AND deadline < NOW() AND locked_at IS NULL AND failed_at IS NULL";
+		this.selectExpired = "SELECT id FROM " + table + expired + " FOR UPDATE";
+		this.failExpired = "UPDATE " + table + " SET failed_at = NOW(), error = ?, unique_key = NULL" + expired;
+
+		this.dependenciesTable = table + "_dependencies";
+		this.setPendingParents = "UPDATE " + table + " SET pending_parents = ? WHERE id = ?";
+
+		this.selectChildren = "SELECT child_id FROM " + this.dependenciesTable + " WHERE parent_id IN ";
+		// by id, an update with a subquery on the dependencies would lock
+		// every job it scans
+		this.releaseChildren = "UPDATE " + table + " SET pending_parents = pending_parents - ? WHERE id IN ";
+		this.deleteDependencies = "DELETE FROM " + this.dependenciesTable + " WHERE parent_id IN ";
+
+		this.resultsTable = table + "_results";
+		String expiresAt = dialect.addSeconds("NOW()", "?");
+		String onDuplicateResult = " ON DUPLICATE KEY UPDATE status = VALUES(status), result = VALUES(result), "
+				+ " expires_at = VALUES(expires_at)";
+		this.insertResult = "INSERT INTO " + this.resultsTable + " (job_id, status, result, expires_at) "
+				+ " VALUES (?, ?, ?, " + expiresAt + ")" + onDuplicateResult;
+		// status 1 is failed, only once the job failed for good
+		this.insertFailureResult = "INSERT INTO " + this.resultsTable + " (job_id, status, result, expires_at) "
+				+ " SELECT id, 1, error, " + expiresAt + " FROM " + table
+				+ " WHERE id = ? AND failed_at IS NOT NULL" + onDuplicateResult;
+
+		this.status = "SELECT COUNT(*) as total, COUNT(failed_at) as failed, COUNT(locked_at) as locked FROM "
+				+ table + " WHERE queue = ?";
+
+		sb = new StringBuilder();
+		sb.append("SELECT id, UNIX_TIMESTAMP(run_at), UNIX_TIMESTAMP() FROM ");
+		sb.append(table);
+		sb.append(" WHERE  queue = ? ");
+		sb.append(" AND    run_at > NOW() ");
+		sb.append(" AND    run_at <= " + dialect.addSeconds("NOW()", "?") + " ");
+		sb.append(" AND    locked_at IS NULL ");
+		sb.append(" AND    failed_at IS NULL");
+		sb.append(" AND    pending_parents = 0");
+		sb.append(" AND    attempts < ? ");
+		this.schedule = sb.toString();
+	}
+
+	/**
+	 * Restricts one of the claims of this catalog to the candidates with one
+	 * of the given affinity keys, keeping its order. Built once per claim and
+	 * number of keys.
+	 *
+	 * @param string
+	 *            claim The claim, e.g. claimByDeadline.
+	 * @param int
+	 *            keys How many affinity keys the IN list has.
+	 *
+	 * @return string The arguments of the claim, then the affinity keys.
+	 */
+	public String withAffinity(String claim, int keys) {
+		String key = keys + ":" + claim;
+		String sql = this.affinityClaims.get(key);
+		if (sql == null) {
+			StringBuilder sb = new StringBuilder(" AND affinity IN (");
+			for (int i = 0; i < keys; i++) {
+				sb.append(i == 0 ? "?" : ", ?");
+			}
+			sb.append(") ");
+			int orderBy = claim.lastIndexOf(" ORDER BY ");
+			sql = claim.substring(0, orderBy) + sb + claim.substring(orderBy);
+			this.affinityClaims.put(key, sql);
+		}
+		return sql;
+	}
+
+	private static String claim(DJDialectInterface dialect, String table, boolean leased, String where,
+			String orderBy) {
+		return candidates(dialect, table, "id", leased, where) + " ORDER BY " + orderBy + "  LIMIT  10 ";
+	}
+
+	private static String tenant(DJDialectInterface dialect, String table, boolean leased, String where) {
+		return candidates(dialect, table, "tenant", leased, where) + " ORDER BY tenant  LIMIT  1 ";
+	}
+
+	private static String candidates(DJDialectInterface dialect, String table, String column, boolean leased,
+			String where) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("SELECT " + column + " FROM ");
+		sb.append(table);
+		sb.append(" WHERE  queue = ? ");
+		sb.append(" AND    (run_at IS NULL OR NOW() >= run_at) ");
+		sb.append(" AND    (locked_at IS NULL OR locked_by = ?");
+		if (leased) {
+			sb.append(" OR locked_at < " + dialect.subtractSeconds("NOW()", "?"));
+		}
+		sb.append(") ");
+		sb.append(" AND    failed_at IS NULL");
+		sb.append(" AND    pending_parents = 0");
+		sb.append(" AND    attempts < ? ");
+		sb.append(" AND    " + where);
+		return sb.toString();
+	}
+
+	private static String lock(DJDialectInterface dialect, String table, boolean leased) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("UPDATE ");
+		sb.append(table);
+		sb.append(" SET locked_at=NOW(), locked_by=? ");
+		sb.append(" WHERE id=? AND (locked_at IS NULL OR locked_by=?");
+		if (leased) {
+			sb.append(" OR locked_at < " + dialect.subtractSeconds("NOW()", "?"));
+		}
+		sb.append(") AND failed_at IS NULL AND pending_parents = 0");
+		sb.append(" AND (run_at IS NULL OR NOW() >= run_at)");
+		sb.append(" AND (deadline IS NULL OR deadline >= NOW())");
+		return sb.toString();
+	}
+
+	/**
+	 * @param string
+	 *            table The jobs table.
+	 *
+	 * @return DJSqlCatalog The statements on that table, in MySQL.
+	 */
+	public static DJSqlCatalog forTable(String table) {
+		return forTable(DBUtils.MYSQL, table);
+	}
+
+	/**
+	 * @param DJDialectInterface
+	 *            dialect The dialect of the data source.
+	 * @param string
+	 *            table The jobs table.
+	 *
+	 * @return DJSqlCatalog The statements on that table.
+	 */
+	public static DJSqlCatalog forTable(DJDialectInterface dialect, String table) {
+		String key = dialect.getName() + ":" + table;
+		DJSqlCatalog catalog = catalogs.get(key);
+		if (catalog == null) {
+			catalog = new DJSqlCatalog(dialect, table);
+			catalogs.put(key, catalog);
+		}
+		return catalog;
+	}
+}
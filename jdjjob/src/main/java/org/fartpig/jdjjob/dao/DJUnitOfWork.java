@@ -0,0 +1,118 @@
+package org.fartpig.jdjjob.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+/**
+ * One pooled connection pinned to a job from its claim to its completion, so
+ * the statements of the job do not check a connection out of the pool each.
+ *
+ * The connection is checked out on first use and returned by close. Not
+ * thread safe, a unit of work belongs to the thread handling its job.
+ */
+public class DJUnitOfWork {
+
+	private DataSource dataSource;
+	private Connection connection;
+	private boolean inTransaction = false;
+
+	public DJUnitOfWork(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	public DataSource getDataSource() {
+		return this.dataSource;
+	}
+
+	/**
+	 * @return Connection The pinned connection, checked out if needed.
+	 */
+	public Connection getConnection() throws SQLException {
+		if (this.connection == null) {
+			this.connection = DBUtils.getConnection(this.dataSource);
+		}
+		return this.connection;
+	}
+
+	/**
+	 * @return DJJobDao A dao running its statements on the pinned connection.
+	 */
+	public DJJobDao getDao(String jobsTable) {
+		return new DJJobDao(this, jobsTable);
+	}
+
+	/**
+	 * Starts a transaction, ended by commit or rollback.
+	 *
+	 * @return boolean Whether the transaction started.
+	 */
+	public boolean begin() {
+		try {
+			this.getConnection().setAutoCommit(false);
+			this.inTransaction = true;
+			return true;
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	/**
+	 * Commits the transaction, rolling it back if that fails.
+	 *
+	 * @return boolean Whether the transaction was committed.
+	 */
+	public boolean commit() {
+		if (!this.inTransaction) {
+			return true;
+		}
+		try {
+			this.connection.commit();
+			this.endTransaction();
+			return true;
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		this.rollback();
+		return false;
+	}
+
+	/**
+	 * Rolls the transaction back.
+	 */
+	public void rollback() {
+		if (!this.inTransaction) {
+			return;
+		}
+		try {
+			this.connection.rollback();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		this.endTransaction();
+	}
+
+	private void endTransaction() {
+		this.inTransaction = false;
+		try {
+			this.connection.setAutoCommit(true);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Rolls back an unfinished transaction and returns the connection to the
+	 * pool. The unit of work may be used again afterwards.
+	 */
+	public void close() {
+		if (this.connection == null) {
+			return;
+		}
+		this.rollback();
+		DBUtils.closeConn(this.connection);
+		this.connection = null;
+	}
+}
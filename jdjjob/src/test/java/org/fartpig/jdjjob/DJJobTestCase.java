@@ -0,0 +1,49 @@
+package org.fartpig.jdjjob;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.fartpig.jdjjob.dao.DJJobDao;
+
+import junit.framework.TestCase;
+
+/**
+ * The fixture of the tests on the default jobs table: configures jdjjob and
+ * empties the table before each test.
+ */
+public abstract class DJJobTestCase extends TestCase {
+
+	protected DJJobDao dao = new DJJobDao();
+
+	protected void setUp() throws Exception {
+		DJJob.configure(new Object[] { new HashMap<String, Object>(), "jobs" });
+		dao.execute("DELETE FROM " + DJBase.jobsTable, Collections.<Object>emptyList());
+	}
+
+	/**
+	 * @return long The number in the first column of the first row of a
+	 *         query, e.g. a COUNT(*).
+	 */
+	protected long count(String sql) {
+		return ((Number) dao.executeQuery(sql, Collections.<Object>emptyList()).get(0)[0]).longValue();
+	}
+
+	/**
+	 * Runs a worker in this thread until it went round `count` times.
+	 */
+	protected void runJobs(int count) {
+		runJobs(count, new HashMap<String, Object>());
+	}
+
+	/**
+	 * @param Map<String,Object>
+	 *            options More options of the worker.
+	 */
+	protected void runJobs(int count, Map<String, Object> options) {
+		Map<String, Object> defaults = new HashMap<String, Object>();
+		defaults.put("count", count);
+		defaults.put("sleep", 1);
+		new DJWorker(Utils.mergeMaps(defaults, options), "fartpig:").start();
+	}
+}
@@ -0,0 +1,66 @@
+package org.fartpig.jdjjob;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.fartpig.jdjjob.StatementReuseBenchmark.NoopJob;
+import org.fartpig.jdjjob.dao.DBUtils;
+
+/**
+ * Enqueues no-op jobs and runs them through a worker on the jobs table, the
+ * memory store and the journal store, then prints the jobs per second of
+ * each.
+ *
+ * Not a unit test, run it by hand against an otherwise idle database:
+ * java -cp ... org.fartpig.jdjjob.JobStoreBenchmark [jobs]
+ */
+public class JobStoreBenchmark {
+
+	private static void run(String label, DJJobStoreInterface store, int jobs) {
+		DJShardRouter.reset();
+		DJShard shard = new DJShard(DJShardRouter.DEFAULT_SHARD, null, DBUtils.getDataSource());
+		if (store != null) {
+			shard.setJobStore(store);
+		} else {
+			shard.getDao().execute("DELETE FROM " + DJBase.jobsTable, Collections.<Object>emptyList());
+		}
+		DJShardRouter.addShard(shard);
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < jobs; i++) {
+			DJJob.enqueue(new NoopJob(), "default", null);
+		}
+		long enqueued = System.currentTimeMillis() - start;
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("count", jobs);
+		options.put("sleep", 1);
+		start = System.currentTimeMillis();
+		new DJWorker(options, "benchmark:").start();
+		long ran = System.currentTimeMillis() - start;
+
+		System.out.println(String.format("%-10s %6d jobs  enqueue: %8.0f jobs/s  claim and finish: %8.0f jobs/s",
+				label, jobs, jobs * 1000.0 / Math.max(enqueued, 1), jobs * 1000.0 / Math.max(ran, 1)));
+	}
+
+	public static void main(String[] args) throws IOException {
+		int jobs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+		File file = File.createTempFile("djjob", ".journal");
+		file.delete();
+
+		run("warmup", null, 10);
+		run("jdbc", null, jobs);
+		run("memory", new DJMemoryJobStore(), jobs);
+		DJJournalJobStore journal = new DJJournalJobStore(file, new HashMap<String, Object>());
+		run("journal", journal, jobs);
+		journal.close();
+
+		DJShardRouter.reset();
+		file.delete();
+		System.exit(0);
+	}
+}
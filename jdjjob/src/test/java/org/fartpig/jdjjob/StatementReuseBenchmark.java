@@ -0,0 +1,101 @@
+package org.fartpig.jdjjob;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.fartpig.jdjjob.dao.DBUtils;
+import org.fartpig.jdjjob.dao.DJJobDao;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+
+/**
+ * Runs the same jobs through a worker on a pool without statement caching
+ * and client side prepares, then on the configured pool, and prints how
+ * often the server parsed and executed statements for each.
+ *
+ * Not a unit test, run it by hand against an otherwise idle database:
+ * java -cp ... org.fartpig.jdjjob.StatementReuseBenchmark [jobs]
+ */
+public class StatementReuseBenchmark {
+
+	public static class NoopJob implements DJJobHandlerInterface {
+
+		public void perform() throws Exception {
+		}
+
+		public void onDjjobRetryError(String error) {
+		}
+	}
+
+	private static final String[] COUNTERS = { "Com_stmt_prepare", "Com_stmt_execute", "Questions" };
+
+	// reads the counters as a text query, whichever pool is measured
+	private static DJJobDao statusDao;
+
+	private static long[] counters() {
+		long[] values = new long[COUNTERS.length];
+		List<Object[]> rs = statusDao.executeQuery("SHOW GLOBAL STATUS", Collections.<Object>emptyList());
+		for (Object[] row : rs) {
+			for (int i = 0; i < COUNTERS.length; i++) {
+				if (COUNTERS[i].equalsIgnoreCase((String) row[0])) {
+					values[i] = Long.parseLong(String.valueOf(row[1]));
+				}
+			}
+		}
+		return values;
+	}
+
+	private static void run(String label, DataSource dataSource, int jobs) {
+		DJShardRouter.reset();
+		DJShardRouter.addShard(new DJShard(DJShardRouter.DEFAULT_SHARD, null, dataSource));
+		DJJobDao dao = DJShardRouter.getDefaultShard().getDao();
+		dao.execute("DELETE FROM " + DJBase.jobsTable, Collections.<Object>emptyList());
+		for (int i = 0; i < jobs; i++) {
+			DJJob.enqueue(new NoopJob(), "default", null);
+		}
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("count", jobs);
+		options.put("sleep", 1);
+		DJWorker worker = new DJWorker(options, "benchmark:");
+
+		long[] before = counters();
+		long start = System.currentTimeMillis();
+		worker.start();
+		long elapsed = System.currentTimeMillis() - start;
+		long[] after = counters();
+
+		long prepares = after[0] - before[0];
+		long executes = after[1] - before[1];
+		// Questions counts text queries and prepared executions, one of them
+		// is the SHOW GLOBAL STATUS above
+		long queries = after[2] - before[2] - executes - 1;
+		System.out.println(String.format(
+				"%-10s %5d jobs %6d ms  parsed: %5d (%d prepares + %d text queries)  prepared executions: %5d",
+				label, jobs, elapsed, prepares + queries, prepares, queries, executes));
+	}
+
+	public static void main(String[] args) {
+		int jobs = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+
+		ComboPooledDataSource uncached = new ComboPooledDataSource("mysql");
+		uncached.setJdbcUrl(uncached.getJdbcUrl().replace("&useServerPrepStmts=true", ""));
+		uncached.setMaxStatements(0);
+		uncached.setMaxStatementsPerConnection(0);
+		statusDao = new DJJobDao(uncached, null);
+
+		// warm both pools up so connection setup is not counted
+		run("warmup", uncached, 10);
+		run("uncached", uncached, jobs);
+		run("warmup", DBUtils.getDataSource(), 10);
+		run("cached", DBUtils.getDataSource(), jobs);
+
+		DJShardRouter.reset();
+		uncached.close();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,110 @@
+package org.fartpig.jdjjob;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestAffinity extends DJJobTestCase {
+
+	private static List<String> performed = new ArrayList<String>();
+
+	public static class PartnerJob implements DJAffinityHandlerInterface {
+
+		private String partner;
+
+		public String getPartner() {
+			return partner;
+		}
+
+		public void setPartner(String partner) {
+			this.partner = partner;
+		}
+
+		public PartnerJob(String partner) {
+			this.partner = partner;
+		}
+
+		public PartnerJob() {
+		}
+
+		public String djjobAffinityKey() {
+			return "partner:" + this.partner;
+		}
+
+		public void perform() throws Exception {
+			performed.add(this.partner);
+		}
+
+		public void onDjjobRetryError(String error) {
+		}
+	}
+
+	public static class ReportJob implements DJJobHandlerInterface {
+
+		public void perform() throws Exception {
+			performed.add("report");
+		}
+
+		public void onDjjobRetryError(String error) {
+		}
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		performed.clear();
+	}
+
+	private void runJobs(int count, Object affinity) {
+		runJobs(count, affinity, DJJobStoreInterface.CREATED_ORDER);
+	}
+
+	private void runJobs(int count, Object affinity, String order) {
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("claim_order", order);
+		options.put("affinity", affinity);
+		runJobs(count, options);
+	}
+
+	public void testPreferredJobsFirst() {
+		DJJob.enqueue(new PartnerJob("acme"), "default", null);
+		DJJob.enqueue(new PartnerJob("initech"), "default", null);
+		List<DJJobHandlerInterface> reports = new ArrayList<DJJobHandlerInterface>();
+		for (int i = 0; i < 5; i++) {
+			reports.add(new ReportJob());
+		}
+		DJJob.bulkEnqueue(reports, "default", null);
+
+		// the key of the handler, or its class
+		assertEquals(1L, count("SELECT COUNT(*) FROM jobs WHERE affinity = 'partner:acme'"));
+		assertEquals(5L, count("SELECT COUNT(*) FROM jobs WHERE affinity = '" + ReportJob.class.getName() + "'"));
+
+		runJobs(1, "partner:initech");
+		runJobs(1, "partner:initech, partner:acme");
+		assertEquals("[initech, acme]", performed.toString());
+
+		List<String> classes = new ArrayList<String>();
+		classes.add(ReportJob.class.getName());
+		runJobs(5, classes);
+		assertEquals(0L, count("SELECT COUNT(*) FROM jobs"));
+	}
+
+	public void testOtherJobsWhenIdle() {
+		DJJob.enqueue(new ReportJob(), "default", null);
+
+		runJobs(1, "partner:acme");
+		assertEquals("[report]", performed.toString());
+	}
+
+	public void testWithinClaimOrder() {
+		DJJob.enqueueWithDeadline(new ReportJob(), "default", null, 30);
+		DJJob.enqueue(new PartnerJob("a"), "default", null);
+		DJJob.enqueueWithDeadline(new PartnerJob("b"), "default", null, 600);
+		DJJob.enqueueWithDeadline(new PartnerJob("c"), "default", null, 300);
+
+		// the preferred jobs with a deadline by deadline, then the others
+		// with a deadline, and only then the jobs without one
+		runJobs(4, "partner:a, partner:b, partner:c", DJJobStoreInterface.DEADLINE_ORDER);
+		assertEquals("[c, b, report, a]", performed.toString());
+	}
+}
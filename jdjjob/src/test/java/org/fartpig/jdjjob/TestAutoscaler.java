@@ -0,0 +1,99 @@
+package org.fartpig.jdjjob;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.fartpig.jdjjob.TestDatabase.HelloWorldJob;
+import org.fartpig.jdjjob.dao.DJJobDao;
+
+import junit.framework.TestCase;
+
+public class TestAutoscaler extends TestCase {
+
+	protected void setUp() {
+		DJMetrics.reset();
+	}
+
+	public void testDecisions() {
+		DJAutoscaler autoscaler = new DJAutoscaler("test", Collections.singletonList("default"), 1, 1, 6);
+		autoscaler.setTimings(1000, 1000, 5000, 2000, 50000);
+		assertEquals(1, autoscaler.getLimit());
+
+		// an old backlog doubles the limit, once per up cooldown
+		assertEquals(2, autoscaler.adjust(10000, 100, 5000, 0));
+		assertEquals(2, autoscaler.adjust(10500, 100, 5000, 0));
+		assertEquals(4, autoscaler.adjust(11000, 100, 5000, 0));
+		assertEquals(6, autoscaler.adjust(12000, 100, 5000, 0));
+		assertEquals(6, autoscaler.adjust(13000, 100, 5000, 0));
+
+		// a fresh backlog with idle slots is fine as it is
+		assertEquals(6, autoscaler.adjust(20000, 3, 0, 0));
+
+		// no backlog scales down one at a time, once per down cooldown
+		assertEquals(5, autoscaler.adjust(20000, 0, 0, 0));
+		assertEquals(5, autoscaler.adjust(24000, 0, 0, 0));
+		assertEquals(4, autoscaler.adjust(25000, 0, 0, 0));
+
+		// a saturated pool scales down even with a backlog
+		assertEquals(3, autoscaler.adjust(30000, 100, 5000, 80000));
+
+		assertEquals(3L, DJMetrics.getCount(DJMetrics.SCALE_UP));
+		assertEquals(3L, DJMetrics.getCount(DJMetrics.SCALE_DOWN));
+		assertEquals(3L, DJMetrics.getLast(DJMetrics.CONCURRENCY));
+		assertEquals(6L, DJMetrics.getMax(DJMetrics.CONCURRENCY));
+		assertEquals(100L, DJMetrics.getLast(DJMetrics.BACKLOG));
+	}
+
+	public void testSlots() throws Exception {
+		final DJAutoscaler autoscaler = new DJAutoscaler("test", Collections.singletonList("default"), 1, 1, 2);
+		autoscaler.setTimings(1000, 0, 0, 0, 50000);
+		autoscaler.acquire();
+		assertEquals(1, autoscaler.getBusy());
+
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					autoscaler.acquire();
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		waiter.start();
+		waiter.join(200);
+		assertTrue(waiter.isAlive());
+
+		// raising the limit lets the waiting claim through
+		assertEquals(2, autoscaler.adjust(1000, 10, 1000, 0));
+		waiter.join(1000);
+		assertFalse(waiter.isAlive());
+		assertEquals(2, autoscaler.getBusy());
+	}
+
+	public void testConcurrentWorker() {
+		DJJob.configure(new Object[] { new HashMap<String, Object>(), "jobs" });
+		DJJobDao dao = new DJJobDao();
+		dao.execute("DELETE FROM " + DJBase.jobsTable, Collections.<Object>emptyList());
+		for (int i = 0; i < 6; i++) {
+			DJJob.enqueue(new HelloWorldJob("slot" + i), "default", null);
+		}
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("count", 6);
+		options.put("sleep", 1);
+		options.put("concurrency", 3);
+		DJWorker worker = new DJWorker(options, "fartpig:");
+		assertEquals(1 + 3, worker.getPoolSize());
+
+		long started = System.currentTimeMillis();
+		worker.start();
+		long elapsed = System.currentTimeMillis() - started;
+
+		// six one second jobs on three slots, each run once
+		assertTrue("took " + elapsed + " ms", elapsed < 4500);
+		assertEquals(0L, ((Number) dao.executeQuery("SELECT COUNT(*) FROM jobs", Collections.<Object>emptyList())
+				.get(0)[0]).longValue());
+		assertEquals(3, worker.getAutoscaler().getLimit());
+		assertEquals(0, worker.getAutoscaler().getBusy());
+	}
+}
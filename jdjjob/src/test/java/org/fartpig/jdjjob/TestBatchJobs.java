@@ -0,0 +1,95 @@
+package org.fartpig.jdjjob;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fartpig.jdjjob.dao.DJJobDao;
+
+import junit.framework.TestCase;
+
+public class TestBatchJobs extends TestCase {
+
+	public static class EmailJob implements DJBatchJobHandlerInterface {
+
+		static int batches = 0;
+		static int sent = 0;
+
+		private String recipient;
+
+		public String getRecipient() {
+			return recipient;
+		}
+
+		public void setRecipient(String recipient) {
+			this.recipient = recipient;
+		}
+
+		public EmailJob(String recipient) {
+			this.recipient = recipient;
+		}
+
+		public EmailJob() {
+
+		}
+
+		public void perform() throws Exception {
+			performBatch(Arrays.<DJJobHandlerInterface>asList(this));
+		}
+
+		public List<Exception> performBatch(List<DJJobHandlerInterface> handlers) throws Exception {
+			batches += 1;
+			List<Exception> results = new ArrayList<Exception>();
+			for (DJJobHandlerInterface handler : handlers) {
+				String recipient = ((EmailJob) handler).getRecipient();
+				if (recipient.startsWith("bounce")) {
+					results.add(new Exception("Bounced " + recipient));
+				} else {
+					sent += 1;
+					results.add(null);
+				}
+			}
+			return results;
+		}
+
+		public void onDjjobRetryError(String error) {
+			System.out.println(String.format("error in EmailJob: %s!\n", error));
+		}
+	}
+
+	public void testBatch() {
+		DJJob.configure(new Object[] { new HashMap<String, Object>(), "jobs" });
+		EmailJob.batches = 0;
+		EmailJob.sent = 0;
+
+		DJJobDao dao = new DJJobDao();
+		StringBuilder sb = new StringBuilder();
+		sb.append("DELETE FROM ");
+		sb.append(DJBase.jobsTable);
+		dao.execute(sb.toString(), Collections.<Object>emptyList());
+
+		DJJob.bulkEnqueue(Arrays.<DJJobHandlerInterface>asList(new EmailJob("a@example.com"),
+				new EmailJob("b@example.com"), new EmailJob("bounce@example.com"), new EmailJob("c@example.com")),
+				"default", null);
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("count", 1);
+		options.put("max_attempts", 1);
+		options.put("batch_size", 10);
+
+		DJWorker worker = new DJWorker(options, "fartpig:");
+		worker.start();
+
+		assertEquals(1, EmailJob.batches);
+		assertEquals(3, EmailJob.sent);
+
+		Map<String, Object> status = DJJob.status("default");
+		assertEquals(0L, ((Long) status.get("outstanding")).longValue());
+		assertEquals(0L, ((Long) status.get("locked")).longValue());
+		assertEquals(1L, ((Long) status.get("failed")).longValue());
+		assertEquals(1L, ((Long) status.get("total")).longValue());
+	}
+}
@@ -0,0 +1,100 @@
+package org.fartpig.jdjjob;
+
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.fartpig.jdjjob.TestDatabase.FailingJob;
+
+public class TestCircuitBreaker extends DJJobTestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		DJMetrics.reset();
+	}
+
+	protected void tearDown() {
+		DJCircuitBreaker.clear();
+	}
+
+	public void testStates() {
+		DJCircuitBreaker breaker = new DJCircuitBreaker(0.5, 4, 4, 10);
+		assertFalse(breaker.record(false, 0));
+		assertFalse(breaker.record(true, 0));
+		assertFalse(breaker.record(true, 0));
+		assertEquals(0, breaker.acquire(0));
+
+		// too few jobs ran yet, then three of four failed
+		assertTrue(breaker.record(true, 1000));
+		assertEquals(DJCircuitBreaker.OPEN, breaker.getState());
+		assertEquals(10, breaker.acquire(1000));
+		assertEquals(4, breaker.acquire(7000));
+
+		// a single probe once the breaker half-opens
+		assertEquals(0, breaker.acquire(11000));
+		assertEquals(DJCircuitBreaker.HALF_OPEN, breaker.getState());
+		assertEquals(1, breaker.acquire(11000));
+		assertFalse(breaker.record(false, 12000));
+		assertEquals(DJCircuitBreaker.CLOSED, breaker.getState());
+		assertEquals(0, breaker.acquire(12000));
+		assertEquals(1L, DJMetrics.getTotal(DJMetrics.CIRCUIT_OPENED));
+	}
+
+	public void testLostProbe() {
+		DJCircuitBreaker breaker = new DJCircuitBreaker(0.5, 2, 2, 10);
+		breaker.record(true, 0);
+		assertTrue(breaker.record(true, 0));
+
+		// the probe never reports back, another job probes once it times out
+		assertEquals(0, breaker.acquire(10000));
+		assertEquals(1, breaker.acquire(15000));
+		assertEquals(0, breaker.acquire(20000));
+		assertFalse(breaker.record(false, 20000));
+		assertEquals(DJCircuitBreaker.CLOSED, breaker.getState());
+	}
+
+	public static class CrashingJob implements DJJobHandlerInterface {
+
+		public void perform() throws Exception {
+			throw new AssertionError("crashed");
+		}
+
+		public void onDjjobRetryError(String error) {
+		}
+	}
+
+	public void testProbeThrowingError() {
+		DJCircuitBreaker breaker = new DJCircuitBreaker(0.5, 2, 2, 60);
+		DJCircuitBreaker.register(CrashingJob.class, breaker);
+		breaker.record(true, 0);
+		breaker.record(true, 0);
+		DJJob.enqueue(new CrashingJob(), "default", null);
+		long id = ((Number) dao.executeQuery("SELECT MAX(id) FROM jobs", Collections.<Object>emptyList()).get(0)[0])
+				.longValue();
+
+		// the error escapes the job, but ends the probe as a failure
+		try {
+			new DJJob("fartpig:", id, new HashMap<String, Object>()).run();
+			fail();
+		} catch (AssertionError e) {
+			assertEquals("crashed", e.getMessage());
+		}
+		assertEquals(DJCircuitBreaker.OPEN, breaker.getState());
+		assertEquals(0, breaker.acquire(System.currentTimeMillis() + 60000));
+	}
+
+	public void testOpenCircuitDefersJobs() {
+		DJCircuitBreaker.register(FailingJob.class, new DJCircuitBreaker(0.5, 2, 2, 60));
+		for (int i = 0; i < 4; i++) {
+			DJJob.enqueue(new FailingJob(), "default", null);
+		}
+
+		runJobs(6);
+
+		// two jobs failed, then all four were deferred without using an attempt
+		assertEquals(2L, count("SELECT SUM(attempts) FROM jobs"));
+		assertEquals(4L, count("SELECT COUNT(*) FROM jobs WHERE run_at > NOW() AND locked_at IS NULL"));
+		assertEquals(0L, count("SELECT COUNT(*) FROM jobs WHERE failed_at IS NOT NULL"));
+		assertEquals(4L, DJMetrics.getTotal(DJMetrics.CIRCUIT_DEFERRED));
+		assertEquals(DJCircuitBreaker.OPEN, DJCircuitBreaker.get(FailingJob.class).getState());
+	}
+}
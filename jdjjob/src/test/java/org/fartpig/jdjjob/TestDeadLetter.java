@@ -0,0 +1,76 @@
+package org.fartpig.jdjjob;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fartpig.jdjjob.TestDatabase.FailingJob;
+import org.fartpig.jdjjob.TestDatabase.HelloWorldJob;
+
+public class TestDeadLetter extends DJJobTestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+	}
+
+	private DJDeadLetter deadLetter() {
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("chunk_size", 3);
+		options.put("throttle", 1);
+		return new DJDeadLetter("default", options);
+	}
+
+	/**
+	 * Enqueues jobs and marks them failed, as a worker giving up on them would.
+	 */
+	private void failJobs(DJJobHandlerInterface handler, int count, String error) {
+		for (int i = 0; i < count; i++) {
+			DJJob.enqueue(handler, "default", null);
+		}
+		List<Object> args = new ArrayList<Object>();
+		args.add(error);
+		args.add(handler.getClass().getName() + ":%");
+		dao.execute("UPDATE jobs SET attempts = 5, failed_at = NOW(), error = ? "
+				+ "WHERE failed_at IS NULL AND handler LIKE ?", args);
+	}
+
+	public void testListAndCount() {
+		failJobs(new FailingJob(), 5, "Uh oh");
+		failJobs(new HelloWorldJob("x"), 2, "Timed out");
+		DJJob.enqueue(new HelloWorldJob("pending"), "default", null);
+
+		assertEquals(7L, deadLetter().count());
+		assertEquals(5L, deadLetter().handlerClass(FailingJob.class.getName()).count());
+		assertEquals(2L, deadLetter().errorContains("Timed").count());
+		assertEquals(0L, deadLetter().failedBetween(null, new Date(System.currentTimeMillis() - 60000)).count());
+
+		// keyset pages
+		List<Job> page = deadLetter().list(0, 4);
+		assertEquals(4, page.size());
+		assertNotNull(page.get(0).getFailedAt());
+		assertEquals("Uh oh", page.get(0).getError());
+		List<Job> next = deadLetter().list(page.get(3).getId(), 4);
+		assertEquals(3, next.size());
+		assertTrue(next.get(0).getId() > page.get(3).getId());
+	}
+
+	public void testRequeue() {
+		failJobs(new FailingJob(), 7, "Uh oh");
+		failJobs(new HelloWorldJob("x"), 2, "Timed out");
+
+		assertEquals(7, deadLetter().handlerClass(FailingJob.class.getName()).requeue(null));
+		assertEquals(0L, count("SELECT COUNT(*) FROM jobs WHERE handler LIKE '%FailingJob%' AND "
+				+ "(failed_at IS NOT NULL OR error IS NOT NULL OR attempts <> 0)"));
+		assertEquals(2L, deadLetter().count());
+	}
+
+	public void testPurge() {
+		failJobs(new FailingJob(), 8, "Uh oh");
+		DJJob.enqueue(new HelloWorldJob("pending"), "default", null);
+
+		assertEquals(8, deadLetter().purge());
+		assertEquals(1L, count("SELECT COUNT(*) FROM jobs"));
+	}
+}
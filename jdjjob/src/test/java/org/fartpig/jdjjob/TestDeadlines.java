@@ -0,0 +1,83 @@
+package org.fartpig.jdjjob;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fartpig.jdjjob.TestBatchJobs.EmailJob;
+import org.fartpig.jdjjob.TestDatabase.HelloWorldJob;
+
+public class TestDeadlines extends DJJobTestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		DJMetrics.reset();
+	}
+
+	private void runJobs(int count, String expiredJobs) {
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("claim_order", "deadline");
+		options.put("expired_jobs", expiredJobs);
+		runJobs(count, options);
+	}
+
+	public void testEarliestDeadlineFirst() {
+		long plain = DJJob.enqueueAndGetId(new HelloWorldJob("plain"), "default", null);
+		long late = DJJob.enqueueWithDeadline(new HelloWorldJob("late"), "default", null, 3600);
+		long soon = DJJob.enqueueWithDeadline(new HelloWorldJob("soon"), "default", null, 600);
+		assertTrue(plain > 0 && late > plain && soon > late);
+
+		runJobs(1, "dead_letter");
+		assertEquals(0L, count("SELECT COUNT(*) FROM jobs WHERE id = " + soon));
+		assertEquals(2L, count("SELECT COUNT(*) FROM jobs"));
+
+		runJobs(1, "dead_letter");
+		assertEquals(0L, count("SELECT COUNT(*) FROM jobs WHERE id = " + late));
+
+		// jobs without a deadline come once none with one is ready
+		runJobs(1, "dead_letter");
+		assertEquals(0L, count("SELECT COUNT(*) FROM jobs"));
+		assertEquals(0L, DJMetrics.getTotal(DJMetrics.DEADLINE_MISSED));
+	}
+
+	public void testExpiredJobsAreFailed() {
+		// a deadline in the past has been missed already
+		long expired = DJJob.enqueueWithDeadline(new HelloWorldJob("expired"), "default", null, -60);
+		DJJob.enqueueWithDeadline(new HelloWorldJob("expired too"), "default", null, -60);
+		DJJob job = new DJJob("fartpig:", expired, new HashMap<String, Object>());
+		assertFalse(job.acquireLock());
+
+		runJobs(1, "dead_letter");
+		assertEquals(2L, count("SELECT COUNT(*) FROM jobs WHERE failed_at IS NOT NULL AND locked_at IS NULL"));
+		assertEquals(2L, new DJDeadLetter("default", new HashMap<String, Object>()).errorContains("Deadline").count());
+		assertEquals(2L, DJMetrics.getTotal(DJMetrics.DEADLINE_MISSED));
+	}
+
+	public void testBatchSkipsExpiredJobs() {
+		long first = DJJob.enqueueAndGetId(new EmailJob("first@example.com"), "default", null);
+		long expired = DJJob.enqueueWithDeadline(new EmailJob("expired@example.com"), "default", null, -60);
+		long onTime = DJJob.enqueueWithDeadline(new EmailJob("on-time@example.com"), "default", null, 600);
+
+		// the batch does not wait for the expire sweep to leave out the
+		// expired job
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("batch_size", 10);
+		DJWorker worker = new DJWorker(options, "fartpig:");
+		DJJob job = new DJJob(worker.getName(), first, new HashMap<String, Object>());
+		assertTrue(job.acquireLock());
+		List<DJJob> batch = worker.getBatch(job);
+		assertEquals(2, batch.size());
+		assertEquals(onTime, batch.get(1).getJobId());
+		assertEquals(1L, count("SELECT COUNT(*) FROM jobs WHERE id = " + expired + " AND locked_at IS NULL"));
+	}
+
+	public void testExpiredJobsAreDropped() {
+		DJJob.enqueueWithDeadline(new HelloWorldJob("expired"), "default", null, -60);
+		DJJob.enqueueWithDeadline(new HelloWorldJob("on time"), "default", null, 600);
+
+		runJobs(1, "drop");
+		assertEquals(0L, count("SELECT COUNT(*) FROM jobs"));
+		assertEquals(1L, DJMetrics.getTotal(DJMetrics.DEADLINE_MISSED));
+		assertEquals(0, DJJob.expire("default", true));
+	}
+}
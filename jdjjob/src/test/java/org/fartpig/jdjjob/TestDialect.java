@@ -0,0 +1,52 @@
+package org.fartpig.jdjjob;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import javax.sql.DataSource;
+
+import org.fartpig.jdjjob.dao.DBUtils;
+import org.fartpig.jdjjob.dao.DJDialectInterface;
+import org.fartpig.jdjjob.dao.DJJobDao;
+import org.fartpig.jdjjob.dao.DJSqlCatalog;
+
+import junit.framework.TestCase;
+
+public class TestDialect extends TestCase {
+
+	protected void setUp() {
+		DJJob.configure(new Object[] { new HashMap<String, Object>(), "jobs" });
+	}
+
+	public void testDialectOfConfig() {
+		DataSource dataSource = DBUtils.getDataSource();
+		DJDialectInterface dialect = DBUtils.getDialect(dataSource);
+		assertEquals("h2".equals(System.getProperty("djjob.config")) ? "h2" : "mysql", dialect.getName());
+		assertSame(dialect, DBUtils.getDialect(dataSource));
+
+		DJJobDao dao = new DJJobDao();
+		assertSame(DJSqlCatalog.forTable(dialect, "jobs"), dao.getSql());
+		assertNotSame(DJSqlCatalog.forTable(DBUtils.MYSQL, "jobs"), DJSqlCatalog.forTable(DBUtils.H2, "jobs"));
+		if (dialect.isEmbedded()) {
+			assertEquals(-1, dao.getReplicationLag());
+		}
+	}
+
+	public void testDateArithmetic() {
+		DJJobDao dao = new DJJobDao();
+		DJDialectInterface dialect = dao.getDialect();
+		String sql = "SELECT TIMESTAMPDIFF(SECOND, NOW(), " + dialect.addSeconds("NOW()", "?") + "), "
+				+ "TIMESTAMPDIFF(SECOND, NOW(), " + dialect.subtractSeconds("NOW()", "?") + ")";
+		Object[] row = dao.executeQuery(sql, Arrays.<Object>asList(90, 30)).get(0);
+		assertEquals(90L, ((Number) row[0]).longValue());
+		assertEquals(-30L, ((Number) row[1]).longValue());
+	}
+
+	public void testCreateTablesTwice() {
+		// the tables exist already, creating them again leaves them be
+		assertTrue(DBUtils.createTables(DBUtils.getDataSource(), "jobs"));
+		DJJobDao dao = new DJJobDao();
+		assertNotNull(dao.executeQuery("SELECT COUNT(*) FROM jobs_results", Collections.<Object>emptyList()));
+	}
+}
@@ -0,0 +1,122 @@
+package org.fartpig.jdjjob;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fartpig.jdjjob.TestDatabase.FailingJob;
+import org.fartpig.jdjjob.TestDatabase.HelloWorldJob;
+import org.fartpig.jdjjob.dao.DJJobDao;
+
+import junit.framework.TestCase;
+
+public class TestEventRing extends TestCase {
+
+	static class Collector implements DJEventRing.Listener {
+		List<String> events = new ArrayList<String>();
+		List<Long> seqs = new ArrayList<Long>();
+
+		public void onEvent(long seq, long timeMs, int type, String shard, long jobId) {
+			seqs.add(seq);
+			events.add(DJEventRing.getTypeName(type) + " " + shard + ":" + jobId);
+		}
+	}
+
+	public void testRingOverwritesOldest() throws Exception {
+		DJEventRing ring = new DJEventRing(5);
+		assertEquals(8, ring.getCapacity());
+
+		for (int i = 0; i < 12; i++) {
+			ring.add(DJEventRing.CLAIMED, "default", i);
+		}
+
+		Collector collector = new Collector();
+		long cursor = ring.read(0, collector);
+		assertEquals(12L, cursor);
+		assertEquals(8, collector.events.size());
+		assertEquals(4L, collector.seqs.get(0).longValue());
+		assertEquals("claimed default:4", collector.events.get(0));
+
+		// streaming goes on from the cursor
+		ring.add(DJEventRing.FINISHED, "default", 4);
+		collector = new Collector();
+		assertEquals(13L, ring.read(cursor, collector));
+		assertEquals(Collections.singletonList("finished default:4"), collector.events);
+
+		StringBuilder sb = new StringBuilder();
+		ring.dump(sb);
+		assertEquals(8, sb.toString().split("\n").length);
+		assertTrue(sb.toString().trim().endsWith("finished default:4"));
+	}
+
+	public void testConcurrentWriters() throws Exception {
+		final DJEventRing ring = new DJEventRing(16);
+		List<Thread> writers = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final int type = t;
+			Thread writer = new Thread() {
+
+				public void run() {
+					for (int i = 0; i < 20000; i++) {
+						ring.add(type, "shard" + type, type * 1000000L + i);
+					}
+				}
+
+			};
+			writer.start();
+			writers.add(writer);
+		}
+		final List<String> torn = new ArrayList<String>();
+		DJEventRing.Listener check = new DJEventRing.Listener() {
+
+			public void onEvent(long seq, long timeMs, int type, String shard, long jobId) {
+				if (jobId / 1000000L != type || !shard.equals("shard" + type)) {
+					torn.add(seq + " " + type + " " + shard + ":" + jobId);
+				}
+			}
+
+		};
+		long cursor = 0;
+		for (Thread writer : writers) {
+			while (writer.isAlive()) {
+				cursor = ring.read(cursor, check);
+			}
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+
+		// every event read is whole, and the last ones are all there
+		assertEquals(Collections.<String>emptyList(), torn);
+		Collector collector = new Collector();
+		assertEquals(80000L, ring.read(0, collector));
+		assertEquals(16, collector.events.size());
+		assertEquals(80000L - 16, collector.seqs.get(0).longValue());
+	}
+
+	public void testJobLifecycle() {
+		DJJob.configure(new Object[] { new HashMap<String, Object>(), "jobs" });
+		DJJobDao dao = new DJJobDao();
+		dao.execute("DELETE FROM " + DJBase.jobsTable, Collections.<Object>emptyList());
+		DJJob.enqueue(new HelloWorldJob("traced"), "default", null);
+		DJJob.enqueue(new FailingJob(), "default", null);
+
+		long cursor = DJEventRing.getDefault().getNextSeq();
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("count", 2);
+		options.put("sleep", 1);
+		options.put("max_attempts", 1);
+		new DJWorker(options, "fartpig:").start();
+
+		Collector collector = new Collector();
+		DJEventRing.getDefault().read(cursor, collector);
+		List<String> types = new ArrayList<String>();
+		for (String event : collector.events) {
+			types.add(event.substring(0, event.indexOf(' ')));
+		}
+		Collections.sort(types);
+		assertEquals("[claimed, claimed, failed, finished, started, started]", types.toString());
+	}
+}
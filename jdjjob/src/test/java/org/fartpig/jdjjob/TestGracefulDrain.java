@@ -0,0 +1,129 @@
+package org.fartpig.jdjjob;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fartpig.jdjjob.TestDatabase.HelloWorldJob;
+
+public class TestGracefulDrain extends DJJobTestCase {
+
+	public static class SlowJob implements DJJobHandlerInterface {
+
+		public void perform() throws Exception {
+			Thread.sleep(3000L);
+		}
+
+		public void onDjjobRetryError(String error) {
+		}
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+	}
+
+	private Thread startWorker(final DJWorker worker) {
+		Thread thread = new Thread() {
+
+			public void run() {
+				worker.start();
+			}
+
+		};
+		thread.start();
+		return thread;
+	}
+
+	private void waitForStart(long cursor) throws InterruptedException {
+		final boolean[] started = new boolean[1];
+		for (int i = 0; i < 100 && !started[0]; i++) {
+			Thread.sleep(50);
+			DJEventRing.getDefault().read(cursor, new DJEventRing.Listener() {
+
+				public void onEvent(long seq, long timeMs, int type, String shard, long jobId) {
+					started[0] |= type == DJEventRing.STARTED;
+				}
+
+			});
+		}
+		assertTrue(started[0]);
+	}
+
+	private List<Object[]> rows() {
+		return dao.executeQuery("SELECT attempts, error, locked_by FROM " + DJBase.jobsTable,
+				Collections.<Object>emptyList());
+	}
+
+	public void testDrainLetsRunningJobFinish() throws Exception {
+		DJJob.enqueue(new HelloWorldJob("drained"), "default", null);
+		DJJob.enqueue(new HelloWorldJob("drained"), "default", null);
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("sleep", 1);
+		options.put("prefetch", 1);
+		options.put("grace_period", 10);
+		DJWorker worker = new DJWorker(options, "drain:");
+		long cursor = DJEventRing.getDefault().getNextSeq();
+		Thread thread = startWorker(worker);
+		waitForStart(cursor);
+
+		worker.handleSignal();
+		thread.join(1000);
+		assertFalse(thread.isAlive());
+
+		// the running job finished, the prefetched one was released untouched
+		List<Object[]> rows = rows();
+		assertEquals(1, rows.size());
+		assertEquals(0, ((Number) rows.get(0)[0]).intValue());
+		assertNull(rows.get(0)[1]);
+		assertNull(rows.get(0)[2]);
+	}
+
+	public void testLeaseRenewedWhileRunning() throws Exception {
+		long id = DJJob.enqueueAndGetId(new SlowJob(), "default", null);
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("sleep", 1);
+		options.put("count", 1);
+		options.put("lock_timeout", 1);
+		DJWorker worker = new DJWorker(options, "drain:");
+		long cursor = DJEventRing.getDefault().getNextSeq();
+		Thread thread = startWorker(worker);
+		waitForStart(cursor);
+
+		// the job runs longer than the lease, which is renewed meanwhile
+		Thread.sleep(2500);
+		Map<String, Object> jobOptions = new HashMap<String, Object>();
+		jobOptions.put("lock_timeout", 1);
+		assertFalse(new DJJob("other:", id, jobOptions).acquireLock());
+
+		thread.join();
+		assertEquals(0, rows().size());
+	}
+
+	public void testHardTimeout() throws Exception {
+		DJJob.enqueue(new SlowJob(), "default", null);
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("sleep", 1);
+		options.put("grace_period", 1);
+		DJWorker worker = new DJWorker(options, "drain:");
+		long cursor = DJEventRing.getDefault().getNextSeq();
+		Thread thread = startWorker(worker);
+		waitForStart(cursor);
+
+		worker.handleSignal();
+		assertTrue(worker.isDraining());
+
+		List<Object[]> rows = rows();
+		assertEquals(1, rows.size());
+		assertEquals(1, ((Number) rows.get(0)[0]).intValue());
+		assertTrue(((String) rows.get(0)[1]).contains("hard timeout"));
+		// still locked while the handler runs
+		assertEquals(worker.getName(), rows.get(0)[2]);
+
+		thread.join();
+		assertEquals(0, rows().size());
+	}
+}
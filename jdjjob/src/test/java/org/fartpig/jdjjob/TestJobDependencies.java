@@ -0,0 +1,84 @@
+package org.fartpig.jdjjob;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.fartpig.jdjjob.TestBatchJobs.EmailJob;
+import org.fartpig.jdjjob.TestDatabase.HelloWorldJob;
+
+public class TestJobDependencies extends DJJobTestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		dao.execute("DELETE FROM jobs_dependencies", Collections.<Object>emptyList());
+	}
+
+	public void testFanIn() {
+		long first = DJJob.enqueueAndGetId(new HelloWorldJob("first"), "default", null);
+		long second = DJJob.enqueueAndGetId(new HelloWorldJob("second"), "default", null);
+		assertTrue(first > 0);
+		assertTrue(second > first);
+
+		// an id that is not in the table is not waited for
+		long child = DJJob.enqueueAfter(new HelloWorldJob("child"), "default", null, first, second, second + 1000);
+		assertTrue(child > second);
+		assertEquals(2L, count("SELECT pending_parents FROM jobs WHERE id = " + child));
+		assertEquals(1L, new DJJobQuery("default").state(DJJobQuery.WAITING).count());
+		assertEquals(2L, new DJJobQuery("default").state(DJJobQuery.PENDING).count());
+
+		// the child is claimed last although it is the newest job
+		runJobs(2);
+		assertEquals(1L, count("SELECT COUNT(*) FROM jobs"));
+		assertEquals(0L, count("SELECT pending_parents FROM jobs WHERE id = " + child));
+		assertEquals(0L, count("SELECT COUNT(*) FROM jobs_dependencies"));
+
+		runJobs(1);
+		assertEquals(0L, count("SELECT COUNT(*) FROM jobs"));
+	}
+
+	public void testFinishedParents() {
+		long parent = DJJob.enqueueAndGetId(new HelloWorldJob("parent"), "default", null);
+		runJobs(1);
+
+		// the parent is gone already, so the child is claimable right away
+		long child = DJJob.enqueueAfter(new HelloWorldJob("child"), "default", null, parent);
+		assertEquals(0L, count("SELECT pending_parents FROM jobs WHERE id = " + child));
+		runJobs(1);
+		assertEquals(0L, count("SELECT COUNT(*) FROM jobs"));
+	}
+
+	public void testBatchWaitsForParents() {
+		long parent = DJJob.enqueueAndGetId(new HelloWorldJob("parent"), "default", null);
+		dao.execute("UPDATE jobs SET locked_at = NOW(), locked_by = 'other' WHERE id = " + parent,
+				Collections.<Object>emptyList());
+		long sibling = DJJob.enqueueAndGetId(new EmailJob("sibling@example.com"), "default", null);
+		long child = DJJob.enqueueAfter(new EmailJob("child@example.com"), "default", null, parent);
+
+		// the child is not taken into the batch of its sibling
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("batch_size", 10);
+		runJobs(1, options);
+		assertEquals(0L, count("SELECT COUNT(*) FROM jobs WHERE id = " + sibling));
+		assertEquals(1L, count("SELECT COUNT(*) FROM jobs WHERE id = " + child + " AND locked_at IS NULL"));
+		assertEquals(1L, count("SELECT pending_parents FROM jobs WHERE id = " + child));
+	}
+
+	public void testDeletedParents() {
+		long failed = DJJob.enqueueAndGetId(new HelloWorldJob("failed"), "default", null);
+		long expired = DJJob.enqueueWithDeadline(new HelloWorldJob("expired"), "default", null, -60);
+		long child = DJJob.enqueueAfter(new HelloWorldJob("child"), "default", null, failed, expired);
+		long sibling = DJJob.enqueueAfter(new HelloWorldJob("sibling"), "default", null, failed);
+		assertEquals(2L, count("SELECT pending_parents FROM jobs WHERE id = " + child));
+		dao.execute("UPDATE jobs SET failed_at = NOW() WHERE id = " + failed, Collections.<Object>emptyList());
+
+		// a purged or dropped parent counts as done for its children
+		assertEquals(1, new DJDeadLetter("default", new HashMap<String, Object>()).purge());
+		assertEquals(1L, count("SELECT pending_parents FROM jobs WHERE id = " + child));
+		assertEquals(0L, count("SELECT pending_parents FROM jobs WHERE id = " + sibling));
+		assertEquals(1, DJJob.expire("default", true));
+		assertEquals(0L, count("SELECT pending_parents FROM jobs WHERE id = " + child));
+		assertEquals(0L, count("SELECT COUNT(*) FROM jobs_dependencies"));
+		assertEquals(2L, count("SELECT COUNT(*) FROM jobs"));
+	}
+}
@@ -0,0 +1,93 @@
+package org.fartpig.jdjjob;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import org.fartpig.jdjjob.TestDatabase.FailingJob;
+import org.fartpig.jdjjob.TestDatabase.HelloWorldJob;
+import org.fartpig.jdjjob.dao.DBUtils;
+import org.fartpig.jdjjob.dao.DJJobDao;
+
+public class TestJobQuery extends DJJobTestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		for (int i = 0; i < 5; i++) {
+			DJJob.enqueue(new HelloWorldJob("job" + i), "default", null);
+		}
+		DJJob.enqueue(new FailingJob(), "default", null);
+		DJJob.enqueue(new HelloWorldJob("later"), "default", null);
+		DJJob.enqueue(new HelloWorldJob("other"), "other", null);
+		dao.execute("UPDATE jobs SET failed_at = NOW(), error = 'Uh oh' WHERE handler LIKE '%FailingJob%'",
+				Collections.<Object>emptyList());
+		dao.execute("UPDATE jobs SET run_at = NOW() + INTERVAL 1 HOUR WHERE handler LIKE '%later%'",
+				Collections.<Object>emptyList());
+	}
+
+	public void testFilters() {
+		assertEquals(8L, new DJJobQuery((String) null).count());
+		assertEquals(7L, new DJJobQuery("default").count());
+		assertEquals(5L, new DJJobQuery("default").state(DJJobQuery.PENDING).count());
+		assertEquals(1L, new DJJobQuery("default").state(DJJobQuery.SCHEDULED).count());
+		assertEquals(1L, new DJJobQuery("default").state(DJJobQuery.FAILED).count());
+		assertEquals(0L, new DJJobQuery("default").state(DJJobQuery.RUNNING).count());
+		assertEquals(1L, new DJJobQuery("default").handlerClass(FailingJob.class.getName()).count());
+		assertEquals(1L, new DJJobQuery("default").runBetween(new Date(), null).count());
+		assertEquals(0L, new DJJobQuery("default").createdBetween(null, new Date(0)).count());
+	}
+
+	public void testPagesAndSummary() {
+		DJJobQuery query = new DJJobQuery("default").state(DJJobQuery.PENDING);
+		List<Job> first = query.page(0, 3);
+		assertEquals(3, first.size());
+		assertNotNull(first.get(0).getHandler());
+		List<Job> second = query.page(first.get(2).getId(), 3);
+		assertEquals(2, second.size());
+		assertTrue(second.get(0).getId() > first.get(2).getId());
+
+		List<Job> summary = new DJJobQuery("default").withoutPayload().page(0, 10);
+		assertEquals(7, summary.size());
+		assertNull(summary.get(0).getHandler());
+		assertEquals("default", summary.get(0).getQueue());
+		assertNotNull(summary.get(0).getCreatedAt());
+	}
+
+	public void testIterator() {
+		Iterator<Job> it = new DJJobQuery("default").withoutPayload().iterator(2);
+		long lastId = 0;
+		int count = 0;
+		while (it.hasNext()) {
+			Job job = it.next();
+			assertTrue(job.getId() > lastId);
+			lastId = job.getId();
+			count++;
+		}
+		assertEquals(7, count);
+		assertFalse(it.hasNext());
+	}
+
+	public void testFailedPageThrows() {
+		final boolean[] broken = new boolean[1];
+		DJShard shard = new DJShard(DJShardRouter.DEFAULT_SHARD, null, null) {
+
+			public DJJobDao getReadDao() {
+				return broken[0] ? new DJJobDao(DBUtils.getDataSource(), "no_such_jobs") : super.getReadDao();
+			}
+
+		};
+		Iterator<Job> it = new DJJobQuery(shard).iterator(2);
+		it.next();
+		it.next();
+		broken[0] = true;
+		try {
+			it.hasNext();
+			fail();
+		} catch (DJException e) {
+			assertTrue(e.getMessage().contains("could not load"));
+		}
+		assertTrue(new DJJobQuery(shard).page(0, 2).isEmpty());
+	}
+}
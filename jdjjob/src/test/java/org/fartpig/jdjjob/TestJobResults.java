@@ -0,0 +1,137 @@
+package org.fartpig.jdjjob;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestJobResults extends DJJobTestCase {
+
+	public static class SumJob implements DJResultHandlerInterface {
+
+		private int a;
+		private int b;
+		private boolean fail;
+
+		public SumJob() {
+
+		}
+
+		public SumJob(int a, int b, boolean fail) {
+			this.a = a;
+			this.b = b;
+			this.fail = fail;
+		}
+
+		public int getA() {
+			return a;
+		}
+
+		public void setA(int a) {
+			this.a = a;
+		}
+
+		public int getB() {
+			return b;
+		}
+
+		public void setB(int b) {
+			this.b = b;
+		}
+
+		public boolean isFail() {
+			return fail;
+		}
+
+		public void setFail(boolean fail) {
+			this.fail = fail;
+		}
+
+		public void perform() throws Exception {
+			if (this.fail) {
+				throw new Exception("Uh oh");
+			}
+		}
+
+		public Object djjobResult() {
+			return this.a + this.b;
+		}
+
+		public void onDjjobRetryError(String error) {
+		}
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		dao.execute("DELETE FROM jobs_results", Collections.<Object>emptyList());
+	}
+
+	private Thread startWorker(final int count) {
+		Thread thread = new Thread() {
+			public void run() {
+				Map<String, Object> options = new HashMap<String, Object>();
+				options.put("max_attempts", 1);
+				runJobs(count, options);
+			}
+		};
+		thread.start();
+		return thread;
+	}
+
+	public void testLocalCompletion() throws Exception {
+		long first = DJJob.enqueueAndGetId(new SumJob(1, 2, false), "default", null);
+		long second = DJJob.enqueueAndGetId(new SumJob(3, 4, false), "default", null);
+		long failing = DJJob.enqueueAndGetId(new SumJob(0, 0, true), "default", null);
+		assertNull(DJJobResults.get("default", first));
+
+		Thread worker = startWorker(3);
+		Map<Long, DJJobResult> results = DJJobResults.awaitAll("default", Arrays.asList(first, second, failing),
+				10000);
+		worker.join();
+
+		assertEquals(3, results.size());
+		assertTrue(results.get(first).isSucceeded());
+		assertEquals(Integer.valueOf(3), results.get(first).getResult(Integer.class));
+		assertEquals(Integer.valueOf(7), results.get(second).getResult(Integer.class));
+		assertFalse(results.get(failing).isSucceeded());
+		assertEquals("Uh oh", results.get(failing).getError());
+		assertNull(results.get(failing).getResult());
+	}
+
+	public void testPolledCompletion() throws Exception {
+		// a job completed by a worker in another process
+		Thread remote = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException e) {
+				}
+				List<Object> args = new ArrayList<Object>();
+				args.add(123456789L);
+				args.add(DJJobResult.SUCCEEDED);
+				args.add("\"done\"");
+				args.add(60);
+				dao.execute(dao.getSql().insertResult, args);
+			}
+		};
+		remote.start();
+
+		long started = System.currentTimeMillis();
+		DJJobResult result = DJJobResults.await("default", 123456789L, 5000);
+		assertNotNull(result);
+		assertEquals("done", result.getResult(String.class));
+		assertTrue(System.currentTimeMillis() - started < 5000);
+
+		assertNull(DJJobResults.await("default", 987654321L, 200));
+	}
+
+	public void testExpiry() {
+		dao.execute("INSERT INTO jobs_results (job_id, status, result, expires_at) "
+				+ " VALUES (1, 0, NULL, NOW() - INTERVAL 1 SECOND)",
+				Collections.<Object>emptyList());
+		assertNull(DJJobResults.get("default", 1L));
+		assertEquals(1, DJJobResults.collect("default"));
+	}
+}
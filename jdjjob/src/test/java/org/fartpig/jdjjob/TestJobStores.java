@@ -0,0 +1,129 @@
+package org.fartpig.jdjjob;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Date;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.fartpig.jdjjob.TestDatabase.FailingJob;
+import org.fartpig.jdjjob.TestDatabase.HelloWorldJob;
+import org.fartpig.jdjjob.dao.DBUtils;
+import org.fartpig.jdjjob.dao.DJJobDao;
+
+import junit.framework.TestCase;
+
+public class TestJobStores extends TestCase {
+
+	private File file;
+
+	protected void setUp() throws IOException {
+		DJJob.configure(new Object[] { new HashMap<String, Object>(), "jobs" });
+		DJJobDao dao = DJShardRouter.getDefaultShard().getDao();
+		dao.execute("DELETE FROM jobs", Collections.<Object>emptyList());
+
+		this.file = File.createTempFile("djjob", ".journal");
+		this.file.delete();
+	}
+
+	protected void tearDown() {
+		DJShardRouter.reset();
+		this.file.delete();
+	}
+
+	private DJShard addShard(DJJobStoreInterface store) {
+		DJShard shard = new DJShard("fast", "jobs", DBUtils.getDataSource());
+		shard.setJobStore(store);
+		DJShardRouter.addShard(shard);
+		DJShardRouter.route("fast", "fast");
+		return shard;
+	}
+
+	private void work(int count) {
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("queue", "fast");
+		options.put("count", count);
+		options.put("sleep", 1);
+		options.put("max_attempts", 2);
+		new DJWorker(options, "fartpig:").start();
+	}
+
+	private long jobsTableTotal() {
+		DJJobDao dao = DJShardRouter.getDefaultShard().getDao();
+		return ((Number) dao.executeQuery("SELECT COUNT(*) FROM jobs", Collections.<Object>emptyList()).get(0)[0])
+				.longValue();
+	}
+
+	public void testMemoryStore() {
+		DJMemoryJobStore store = new DJMemoryJobStore();
+		assertFalse(addShard(store).hasJobsTable());
+
+		assertTrue(DJJob.enqueue(new HelloWorldJob("memory"), "fast", null));
+		assertTrue(DJJob.enqueue(new FailingJob(), "fast", null));
+		assertEquals(2L, ((Long) DJJob.status("fast").get("outstanding")).longValue());
+		assertEquals(0L, jobsTableTotal());
+
+		work(3);
+
+		// the hello world job is gone, the failing one failed for good
+		assertEquals(1, store.size());
+		Map<String, Object> status = DJJob.status("fast");
+		assertEquals(1L, ((Long) status.get("failed")).longValue());
+		assertEquals(0L, ((Long) status.get("outstanding")).longValue());
+	}
+
+	public void testMemoryStoreNeedsJobsTableForUniqueKeys() {
+		addShard(new DJMemoryJobStore());
+		try {
+			DJJob.enqueue(new HelloWorldJob("unique"), "fast", null, "key", false);
+			fail();
+		} catch (DJException e) {
+			// expected
+		}
+	}
+
+	public void testJournalReplay() throws IOException {
+		DJJournalJobStore store = new DJJournalJobStore(this.file, new HashMap<String, Object>());
+		addShard(store);
+		assertTrue(DJJob.enqueue(new HelloWorldJob("now"), "fast", null));
+		assertTrue(DJJob.enqueue(new HelloWorldJob("later"), "fast",
+				new Date(System.currentTimeMillis() + 3600 * 1000L)));
+		assertTrue(DJJob.enqueue(new FailingJob(), "fast", null));
+		work(4);
+		assertEquals(2, store.size());
+		store.close();
+		DJShardRouter.reset();
+
+		// the delayed job and the failed job come back, nothing is ready
+		store = new DJJournalJobStore(this.file, new HashMap<String, Object>());
+		addShard(store);
+		assertEquals(2, store.size());
+		Map<String, Object> status = DJJob.status("fast");
+		assertEquals(2L, ((Long) status.get("total")).longValue());
+		assertEquals(1L, ((Long) status.get("failed")).longValue());
+		assertEquals(0L, ((Long) status.get("locked")).longValue());
+		store.close();
+	}
+
+	public void testJournalCompaction() throws IOException {
+		DJJournalJobStore store = new DJJournalJobStore(this.file, new HashMap<String, Object>());
+		long first = store.enqueue("first", "fast", null, null, null);
+		for (int i = 0; i < 1000; i++) {
+			store.enqueue("handler " + i, "fast", null, null, null);
+		}
+		for (long id = first + 1; id <= first + 1000; id++) {
+			store.finish(new DJJob("fartpig:", id, new HashMap<String, Object>()), null, false);
+		}
+		long before = store.getJournalSize();
+		store.compact();
+		assertTrue(store.getJournalSize() < before / 100);
+		store.close();
+
+		// ids are not reused after the compaction dropped the finished jobs
+		store = new DJJournalJobStore(this.file, new HashMap<String, Object>());
+		assertEquals(1, store.size());
+		assertEquals(first + 1001, store.enqueue("next", "fast", null, null, null));
+		store.close();
+	}
+}
@@ -0,0 +1,77 @@
+package org.fartpig.jdjjob;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.fartpig.jdjjob.TestDatabase.HelloWorldJob;
+import org.fartpig.jdjjob.dao.DBUtils;
+
+public class TestPayloadStore extends DJJobTestCase {
+
+	private String bigName;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		dao.execute("DELETE FROM jobs_payloads", Collections.<Object>emptyList());
+		DJShardRouter.addShard(new DJShard("second", "my_jobs", DBUtils.getDataSource()));
+		DJShardRouter.route("email", "second");
+		dao.execute("DELETE FROM my_jobs", Collections.<Object>emptyList());
+
+		char[] chars = new char[2000];
+		Arrays.fill(chars, 'x');
+		bigName = new String(chars);
+	}
+
+	protected void tearDown() {
+		DJShardRouter.reset();
+	}
+
+	private void checkOffloaded(DJPayloadStoreInterface store) throws InterruptedException {
+		DJShard shard = DJShardRouter.getDefaultShard();
+		shard.setPayloadStore(store, 1000);
+		DJShardRouter.getShard("email").setPayloadStore(store, 1000);
+		DJJob.enqueue(new HelloWorldJob(bigName), "default", null);
+		DJJob.enqueue(new HelloWorldJob(bigName), "default", null);
+		DJJob.enqueue(new HelloWorldJob("small"), "default", null);
+
+		// the two large payloads share one stored copy, the small one is inline
+		assertEquals(2L, count("SELECT COUNT(*) FROM jobs WHERE payload_hash IS NOT NULL"));
+		assertEquals(1L, count("SELECT COUNT(DISTINCT payload_hash) FROM jobs"));
+		assertEquals(0L, count("SELECT COUNT(*) FROM jobs WHERE LENGTH(handler) > 200"));
+
+		List<Object[]> rs = dao.executeQuery("SELECT payload_hash FROM jobs WHERE payload_hash IS NOT NULL",
+				Collections.<Object>emptyList());
+		String hash = (String) rs.get(0)[0];
+		assertTrue(shard.loadPayload(hash).contains(bigName));
+
+		// a store shared with the second shard keeps the payloads its jobs use
+		DJJob.enqueue(new HelloWorldJob(bigName + "!"), "email", null);
+		String otherHash = (String) dao.executeQuery("SELECT payload_hash FROM my_jobs",
+				Collections.<Object>emptyList()).get(0)[0];
+
+		Thread.sleep(1100);
+		// still referenced
+		assertEquals(0, store.collect(0));
+
+		runJobs(3);
+		assertEquals(0L, count("SELECT COUNT(*) FROM jobs"));
+		assertEquals(1, store.collect(0));
+		assertNull(shard.loadPayload(hash));
+		assertNotNull(shard.loadPayload(otherHash));
+
+		dao.execute("DELETE FROM my_jobs", Collections.<Object>emptyList());
+		assertEquals(1, store.collect(0));
+	}
+
+	public void testTableStore() throws Exception {
+		checkOffloaded(new DJTablePayloadStore(null, "jobs_payloads"));
+	}
+
+	public void testFileStore() throws Exception {
+		File dir = File.createTempFile("djjob", "payloads");
+		dir.delete();
+		checkOffloaded(new DJFilePayloadStore(dir));
+	}
+}
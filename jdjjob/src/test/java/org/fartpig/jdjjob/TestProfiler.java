@@ -0,0 +1,87 @@
+package org.fartpig.jdjjob;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.fartpig.jdjjob.StatementReuseBenchmark.NoopJob;
+
+public class TestProfiler extends DJJobTestCase {
+
+	public static class HashingJob implements DJJobHandlerInterface {
+
+		public void perform() throws Exception {
+			byte[] data = new byte[1 << 20];
+			long hash = 0;
+			for (int i = 0; i < 20; i++) {
+				for (int j = 0; j < data.length; j++) {
+					hash = hash * 31 + (data[j] ^ i);
+				}
+			}
+			data[0] = (byte) hash;
+		}
+
+		public void onDjjobRetryError(String error) {
+		}
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		DJProfiler.reset();
+	}
+
+	protected void tearDown() {
+		DJProfiler.setSampleRate(0);
+		DJProfiler.reset();
+	}
+
+	public void testSampledHandlers() throws Exception {
+		for (int i = 0; i < 2; i++) {
+			DJJob.enqueue(new HashingJob(), "default", null);
+			DJJob.enqueue(new NoopJob(), "default", null);
+		}
+		DJProfiler.setSampleRate(1);
+		runJobs(4);
+
+		// the expensive handler ranks first
+		String hashing = HashingJob.class.getName();
+		String noop = NoopJob.class.getName();
+		assertEquals(2L, DJProfiler.getCount(hashing, DJProfiler.PERFORM_CPU));
+		assertEquals(2L, DJProfiler.getCount(noop, DJProfiler.PERFORM_CPU));
+		List<String> top = DJProfiler.top(DJProfiler.PERFORM_ALLOCATED, 1);
+		assertEquals(1, top.size());
+		assertTrue(top.get(0).startsWith(hashing + " "));
+		assertTrue(DJProfiler.getPercentile(hashing, DJProfiler.PERFORM_ALLOCATED, 50) >= 1 << 20);
+		assertTrue(DJProfiler.getTotal(hashing, DJProfiler.PERFORM_CPU) > DJProfiler.getTotal(noop,
+				DJProfiler.PERFORM_CPU));
+		assertTrue(DJProfiler.getTotal(hashing, DJProfiler.LOAD_ALLOCATED) > 0);
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(DJProfiler.OBJECT_NAME);
+		assertEquals(1, server.getAttribute(name, "SampleRate"));
+		long[] buckets = (long[]) server.invoke(name, "getBuckets", new Object[] { hashing,
+				DJProfiler.PERFORM_ALLOCATED }, new String[] { String.class.getName(), String.class.getName() });
+		long samples = 0;
+		for (long bucket : buckets) {
+			samples += bucket;
+		}
+		assertEquals(2L, samples);
+
+		// every other job
+		server.setAttribute(name, new Attribute("SampleRate", 2));
+		for (int i = 0; i < 4; i++) {
+			DJJob.enqueue(new NoopJob(), "default", null);
+		}
+		runJobs(4);
+		assertEquals(4L, DJProfiler.getCount(noop, DJProfiler.PERFORM_CPU));
+	}
+
+	public void testOffByDefault() {
+		DJJob.enqueue(new NoopJob(), "default", null);
+		runJobs(1);
+		assertTrue(DJProfiler.getHandlers().isEmpty());
+	}
+}
@@ -0,0 +1,87 @@
+package org.fartpig.jdjjob;
+
+import java.util.Collections;
+import java.util.HashMap;
+
+import javax.sql.DataSource;
+
+import org.fartpig.jdjjob.TestDatabase.HelloWorldJob;
+import org.fartpig.jdjjob.dao.DBUtils;
+import org.fartpig.jdjjob.dao.DJJobDao;
+
+import junit.framework.TestCase;
+
+public class TestReadReplica extends TestCase {
+
+	// a shard whose replica lag is set by the test
+	static class LaggingShard extends DJShard {
+		long lag = 0;
+		int reads = 0;
+
+		LaggingShard(DataSource replica, int maxLag) {
+			super(DJShardRouter.DEFAULT_SHARD, null, null);
+			this.setReplica(replica, maxLag);
+		}
+
+		protected long getReplicaLag() {
+			return this.lag;
+		}
+
+		public DJJobDao getReadDao() {
+			this.reads += 1;
+			return super.getReadDao();
+		}
+	}
+
+	protected void setUp() {
+		DJJob.configure(new Object[] { new HashMap<String, Object>(), "jobs" });
+	}
+
+	public void testRoutesReadsByLag() throws InterruptedException {
+		// a second pool on the same database stands in for the replica
+		DataSource replica = DBUtils.getDataSource("mysql");
+		LaggingShard shard = new LaggingShard(replica, 5);
+
+		assertSame(replica, shard.getReadDao().getDataSource());
+		assertSame(DBUtils.getDataSource(), shard.getDao().getDataSource());
+
+		shard.lag = 30;
+		Thread.sleep(1100);
+		assertSame(DBUtils.getDataSource(), shard.getReadDao().getDataSource());
+
+		shard.lag = -1;
+		shard.setReplica(replica, 5);
+		assertSame(DBUtils.getDataSource(), shard.getReadDao().getDataSource());
+
+		shard.lag = 5;
+		shard.setReplica(replica, 5);
+		assertSame(replica, shard.getReadDao().getDataSource());
+	}
+
+	public void testInspectionReadsFromReplica() {
+		DJJobDao dao = new DJJobDao();
+		dao.execute("DELETE FROM " + DJBase.jobsTable, Collections.<Object>emptyList());
+		long id = DJJob.enqueueAndGetId(new HelloWorldJob("inspected"), "default", null);
+
+		LaggingShard shard = new LaggingShard(DBUtils.getDataSource(), 5);
+		DJJobQuery query = new DJJobQuery(shard);
+		assertEquals(id, query.find(id).getId().longValue());
+		assertNull(query.state(DJJobQuery.FAILED).find(id));
+		assertEquals(2, shard.reads);
+	}
+
+	public void testStatusReadsFromReplica() {
+		DJJobDao dao = new DJJobDao();
+		dao.execute("DELETE FROM " + DJBase.jobsTable, Collections.<Object>emptyList());
+		DJJob.enqueue(new HelloWorldJob("replicated"), "default", null);
+
+		DJShardRouter.reset();
+		DJShardRouter.getDefaultShard().setReplica(DBUtils.getDataSource("mysql"), 5);
+		try {
+			// not a running replica, so the primary answers
+			assertEquals(1L, ((Long) DJJob.status("default").get("total")).longValue());
+		} finally {
+			DJShardRouter.reset();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package org.fartpig.jdjjob;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fartpig.jdjjob.TestDatabase.FailingJob;
+import org.fartpig.jdjjob.TestDatabase.HelloWorldJob;
+import org.fartpig.jdjjob.dao.DJJobDao;
+
+import junit.framework.TestCase;
+
+public class TestRetryPolicy extends TestCase {
+
+	protected void tearDown() {
+		DJRetryPolicy.clear();
+	}
+
+	public void testDelays() {
+		DJRetryPolicy fixed = new DJRetryPolicy(DJRetryPolicy.FIXED, 10, 60, 0);
+		assertEquals(10, fixed.getDelay(1));
+		assertEquals(10, fixed.getDelay(7));
+
+		DJRetryPolicy exponential = new DJRetryPolicy(DJRetryPolicy.EXPONENTIAL, 10, 60, 0);
+		assertEquals(10, exponential.getDelay(1));
+		assertEquals(20, exponential.getDelay(2));
+		assertEquals(40, exponential.getDelay(3));
+		assertEquals(60, exponential.getDelay(4));
+		assertEquals(60, exponential.getDelay(100));
+
+		DJRetryPolicy jitter = new DJRetryPolicy(DJRetryPolicy.DECORRELATED_JITTER, 10, 600, 0);
+		for (int attempt = 1; attempt < 20; attempt++) {
+			long delay = jitter.getDelay(attempt);
+			assertTrue(delay >= 10);
+			assertTrue(delay <= Math.min(600, 10 * Math.pow(3, attempt)));
+		}
+	}
+
+	public void testRetryOn() {
+		DJRetryPolicy policy = new DJRetryPolicy(DJRetryPolicy.FIXED, 10, 60, 0);
+		assertTrue(policy.isRetryable(new IllegalStateException()));
+
+		List<Class<? extends Exception>> types = new ArrayList<Class<? extends Exception>>();
+		types.add(IOException.class);
+		types.add(DJRetryException.class);
+		policy.retryOn(types);
+		assertTrue(policy.isRetryable(new IOException()));
+		assertTrue(policy.isRetryable(new DJRetryException("later")));
+		assertFalse(policy.isRetryable(new IllegalStateException()));
+	}
+
+	public void testLookup() {
+		DJRetryPolicy handlerPolicy = new DJRetryPolicy(DJRetryPolicy.FIXED, 1, 1, 3);
+		DJRetryPolicy queuePolicy = new DJRetryPolicy(DJRetryPolicy.FIXED, 2, 2, 8);
+		DJRetryPolicy.register(FailingJob.class, handlerPolicy);
+		DJRetryPolicy.register("email", queuePolicy);
+
+		assertSame(handlerPolicy, DJRetryPolicy.get(FailingJob.class, "email"));
+		assertSame(queuePolicy, DJRetryPolicy.get(HelloWorldJob.class, "email"));
+		assertNull(DJRetryPolicy.get(HelloWorldJob.class, "default"));
+		assertEquals(8, DJRetryPolicy.getMaxAttemptsCeiling(5));
+		assertEquals(10, DJRetryPolicy.getMaxAttemptsCeiling(10));
+	}
+
+	public void testRetryGoesThroughRunAt() {
+		DJJob.configure(new Object[] { new HashMap<String, Object>(), "jobs" });
+
+		DJJobDao dao = new DJJobDao();
+		StringBuilder sb = new StringBuilder();
+		sb.append("DELETE FROM ");
+		sb.append(DJBase.jobsTable);
+		dao.execute(sb.toString(), Collections.<Object>emptyList());
+
+		DJRetryPolicy.register(FailingJob.class, new DJRetryPolicy(DJRetryPolicy.EXPONENTIAL, 60, 600, 3));
+		DJJob.enqueue(new FailingJob(), "default", null);
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("count", 2);
+		options.put("sleep", 1);
+		options.put("max_attempts", 1);
+		new DJWorker(options, "fartpig:").start();
+
+		// ran once, then waits a minute instead of failing or running again
+		sb = new StringBuilder();
+		sb.append(" SELECT attempts, failed_at, CASE WHEN run_at > NOW() THEN 1 ELSE 0 END FROM ");
+		sb.append(DJBase.jobsTable);
+		List<Object[]> rs = dao.executeQuery(sb.toString(), Collections.<Object>emptyList());
+		assertEquals(1, rs.size());
+		assertEquals(1L, ((Number) rs.get(0)[0]).longValue());
+		assertNull(rs.get(0)[1]);
+		assertEquals(1L, ((Number) rs.get(0)[2]).longValue());
+	}
+}
@@ -0,0 +1,70 @@
+package org.fartpig.jdjjob;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.fartpig.jdjjob.TestDatabase.HelloWorldJob;
+import org.fartpig.jdjjob.dao.DBUtils;
+import org.fartpig.jdjjob.dao.DJJobDao;
+
+import junit.framework.TestCase;
+
+public class TestSharding extends TestCase {
+
+	protected void setUp() {
+		DJJob.configure(new Object[] { new HashMap<String, Object>(), "jobs" });
+
+		DJShardRouter.addShard(new DJShard("second", "my_jobs", DBUtils.getDataSource()));
+		DJShardRouter.route("email", "second");
+
+		for (DJShard shard : DJShardRouter.getShards()) {
+			DJJobDao dao = shard.getDao();
+			dao.execute("DELETE FROM " + shard.getJobsTable(), Collections.<Object>emptyList());
+		}
+	}
+
+	protected void tearDown() {
+		DJShardRouter.reset();
+	}
+
+	private long total(DJShard shard) {
+		DJJobDao dao = shard.getDao();
+		return ((Number) dao.executeQuery("SELECT COUNT(*) FROM " + shard.getJobsTable(),
+				Collections.<Object>emptyList()).get(0)[0]).longValue();
+	}
+
+	public void testRouting() {
+		assertSame(DJShardRouter.getDefaultShard(), DJShardRouter.getShard("default"));
+		assertEquals("second", DJShardRouter.getShard("email").getName());
+
+		DJShardRouter.setHashRouting(true);
+		boolean[] used = new boolean[2];
+		for (int i = 0; i < 20; i++) {
+			DJShard shard = DJShardRouter.getShard("queue" + i);
+			assertSame(shard, DJShardRouter.getShard("queue" + i));
+			used[shard.getName().equals("second") ? 1 : 0] = true;
+		}
+		assertTrue(used[0] && used[1]);
+		assertEquals("second", DJShardRouter.getShard("email").getName());
+	}
+
+	public void testWorkerDrainsSeveralShards() {
+		DJJob.enqueue(new HelloWorldJob("default shard"), "default", null);
+		DJJob.enqueue(new HelloWorldJob("second shard"), "email", null);
+		DJJob.enqueue(new HelloWorldJob("second shard again"), "email", null);
+
+		assertEquals(1L, total(DJShardRouter.getDefaultShard()));
+		assertEquals(2L, total(DJShardRouter.getShard("email")));
+		assertEquals(2L, ((Long) DJJob.status("email").get("outstanding")).longValue());
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("queues", "default, email");
+		options.put("count", 4);
+		options.put("sleep", 1);
+		new DJWorker(options, "fartpig:").start();
+
+		assertEquals(0L, total(DJShardRouter.getDefaultShard()));
+		assertEquals(0L, total(DJShardRouter.getShard("email")));
+	}
+}
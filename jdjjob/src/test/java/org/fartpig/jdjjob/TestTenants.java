@@ -0,0 +1,95 @@
+package org.fartpig.jdjjob;
+
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestTenants extends DJJobTestCase {
+
+	private static List<String> performed = new ArrayList<String>();
+
+	public static class TenantJob implements DJJobHandlerInterface {
+
+		private String name;
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		public TenantJob(String name) {
+			this.name = name;
+		}
+
+		public TenantJob() {
+		}
+
+		public void perform() throws Exception {
+			performed.add(this.name);
+		}
+
+		public void onDjjobRetryError(String error) {
+		}
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		performed.clear();
+	}
+
+	protected void runJobs(int count) {
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("claim_order", "fair");
+		runJobs(count, options);
+	}
+
+	public void testTenantsTakeTurns() {
+		List<DJJobHandlerInterface> imports = new ArrayList<DJJobHandlerInterface>();
+		for (int i = 0; i < 20; i++) {
+			imports.add(new TenantJob("bulk"));
+		}
+		assertTrue(DJJob.bulkEnqueueForTenant(imports, "default", null, "bulk"));
+		assertTrue(DJJob.enqueueForTenant(new TenantJob("alice"), "default", null, "alice") > 0);
+		assertTrue(DJJob.enqueueForTenant(new TenantJob("bob"), "default", null, "bob") > 0);
+		assertTrue(DJJob.enqueue(new TenantJob("none"), "default", null));
+		assertEquals(20L, new DJJobQuery("default").tenant("bulk").count());
+
+		// the bulk import gets one turn like everyone else
+		runJobs(4);
+		assertEquals(4, performed.size());
+		assertTrue(performed.containsAll(Arrays.asList("alice", "bob", "bulk", "none")));
+		assertEquals(19L, new DJJobQuery("default").count());
+		assertEquals(19L, new DJJobQuery("default").tenant("bulk").count());
+	}
+
+	public void testTenantsWithoutReadyJobsAreSkipped() {
+		// more tenants than a claim probes, with only failed, delayed or
+		// locked jobs
+		Date later = new Date(System.currentTimeMillis() + 2 * 86400 * 1000L);
+		for (int i = 0; i < 12; i++) {
+			String tenant = String.format("a%02d", i);
+			assertTrue(DJJob.enqueueForTenant(new TenantJob(tenant), "default", i % 3 == 1 ? later : null, tenant) > 0);
+		}
+		dao.execute("UPDATE " + DJBase.jobsTable + " SET failed_at = NOW() WHERE tenant IN ('a00', 'a03', 'a06', 'a09')",
+				Collections.<Object>emptyList());
+		dao.execute("UPDATE " + DJBase.jobsTable
+				+ " SET locked_at = NOW(), locked_by = 'other' WHERE tenant IN ('a02', 'a05', 'a08', 'a11')",
+				Collections.<Object>emptyList());
+		for (int i = 0; i < 5; i++) {
+			assertTrue(DJJob.enqueueForTenant(new TenantJob("z"), "default", null, "z") > 0);
+		}
+		assertTrue(DJJob.enqueueForTenant(new TenantJob("y"), "default", null, "y") > 0);
+
+		// y still gets its turn before z's second job
+		runJobs(2);
+		assertEquals(Arrays.asList("y", "z"), performed);
+		assertEquals(16L, new DJJobQuery("default").count());
+	}
+}
@@ -0,0 +1,66 @@
+package org.fartpig.jdjjob;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TestTimingWheel extends TestCase {
+
+	public void testDueJobIsRejected() {
+		DJTimingWheel wheel = new DJTimingWheel(100, 8, 1000);
+		assertFalse(wheel.add(1, 900));
+		assertFalse(wheel.add(2, 1000));
+		assertTrue(wheel.add(3, 1001));
+		assertEquals(1, wheel.size());
+	}
+
+	public void testNeverFiresEarly() {
+		DJTimingWheel wheel = new DJTimingWheel(100, 8, 1000);
+		wheel.add(1, 1150);
+
+		assertTrue(wheel.advance(1149).isEmpty());
+		assertTrue(wheel.advance(1199).isEmpty());
+		assertEquals(Arrays.asList(1L), wheel.advance(1200));
+		assertEquals(0, wheel.size());
+	}
+
+	public void testCascadesThroughOverflowLevels() {
+		// level ranges are 800ms, 6.4s and 51.2s
+		DJTimingWheel wheel = new DJTimingWheel(100, 8, 0);
+		long[] expirations = { 50, 750, 799, 800, 1234, 6399, 6400, 7000, 30000, 51200, 60000 };
+		for (int i = 0; i < expirations.length; i++) {
+			assertTrue(wheel.add(i, expirations[i]));
+		}
+
+		List<Long> fired = new ArrayList<Long>();
+		for (long now = 0; now <= 70000; now += 100) {
+			for (Long id : wheel.advance(now)) {
+				long expiration = expirations[id.intValue()];
+				assertTrue("job " + id + " fired early at " + now, now >= expiration);
+				assertTrue("job " + id + " fired late at " + now, now < expiration + 100);
+				fired.add(id);
+			}
+		}
+
+		assertEquals(expirations.length, fired.size());
+		for (int i = 0; i < expirations.length; i++) {
+			assertEquals(Long.valueOf(i), fired.get(i));
+		}
+		assertEquals(0, wheel.size());
+	}
+
+	public void testLargeTimeJump() {
+		DJTimingWheel wheel = new DJTimingWheel(100, 8, 0);
+		wheel.add(1, 500);
+		wheel.add(2, 20000);
+
+		assertEquals(Arrays.asList(1L, 2L), wheel.advance(100000));
+
+		// an empty wheel jumps straight to the new time
+		assertFalse(wheel.add(3, 100000));
+		assertTrue(wheel.add(4, 100050));
+		assertEquals(Arrays.asList(4L), wheel.advance(100100));
+	}
+}
@@ -0,0 +1,77 @@
+package org.fartpig.jdjjob;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fartpig.jdjjob.TestDatabase.HelloWorldJob;
+import org.fartpig.jdjjob.dao.DJJobDao;
+
+import junit.framework.TestCase;
+
+public class TestUniqueJobs extends TestCase {
+
+	private void clearJobs() {
+		DJJob.configure(new Object[] { new HashMap<String, Object>(), "jobs" });
+
+		DJJobDao dao = new DJJobDao();
+		StringBuilder sb = new StringBuilder();
+		sb.append("DELETE FROM ");
+		sb.append(DJBase.jobsTable);
+		dao.execute(sb.toString(), Collections.<Object>emptyList());
+	}
+
+	private String handlerOf(String uniqueKey) {
+		List<Job> jobs = new DJJobDao().findByCondition("unique_key = ?", null,
+				Arrays.<Object>asList(uniqueKey));
+		assertEquals(1, jobs.size());
+		return jobs.get(0).getHandler();
+	}
+
+	public void testDuplicateIsRejected() {
+		clearJobs();
+
+		assertTrue(DJJob.enqueue(new HelloWorldJob("first"), "default", null, "greet:1", false));
+		assertTrue(DJJob.enqueue(new HelloWorldJob("second"), "default", null, "greet:1", false));
+		assertTrue(DJJob.enqueue(new HelloWorldJob("other"), "default", null, "greet:2", false));
+
+		Map<String, Object> status = DJJob.status("default");
+		assertEquals(2L, ((Long) status.get("total")).longValue());
+		assertTrue(handlerOf("greet:1").contains("first"));
+	}
+
+	public void testDuplicateReplacesPending() {
+		clearJobs();
+
+		DJJob.enqueue(new HelloWorldJob("first"), "default", null, "greet:1", true);
+		DJJob.enqueue(new HelloWorldJob("second"), "default", null, "greet:1", true);
+
+		Map<String, Object> status = DJJob.status("default");
+		assertEquals(1L, ((Long) status.get("total")).longValue());
+		assertTrue(handlerOf("greet:1").contains("second"));
+	}
+
+	public void testBulkDuplicates() {
+		clearJobs();
+
+		DJJob.enqueue(new HelloWorldJob("existing"), "default", null, "greet:1", false);
+		DJJob.bulkEnqueue(
+				Arrays.<DJJobHandlerInterface>asList(new HelloWorldJob("a"), new HelloWorldJob("b"),
+						new HelloWorldJob("c"), new HelloWorldJob("d"), new HelloWorldJob("e")),
+				Arrays.asList("greet:1", "greet:2", "greet:2", null, null), "default", null, false);
+
+		Map<String, Object> status = DJJob.status("default");
+		assertEquals(4L, ((Long) status.get("total")).longValue());
+		assertTrue(handlerOf("greet:1").contains("existing"));
+		assertTrue(handlerOf("greet:2").contains("\"b\""));
+
+		DJJob.bulkEnqueue(Arrays.<DJJobHandlerInterface>asList(new HelloWorldJob("x"), new HelloWorldJob("y")),
+				Arrays.asList("greet:2", "greet:2"), "default", null, true);
+
+		status = DJJob.status("default");
+		assertEquals(4L, ((Long) status.get("total")).longValue());
+		assertTrue(handlerOf("greet:2").contains("\"y\""));
+	}
+}
@@ -0,0 +1,139 @@
+package org.fartpig.jdjjob;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fartpig.jdjjob.TestDatabase.FailingJob;
+import org.fartpig.jdjjob.TestDatabase.HelloWorldJob;
+import org.fartpig.jdjjob.TestJobResults.SumJob;
+import org.fartpig.jdjjob.dao.DBUtils;
+import org.fartpig.jdjjob.dao.DJUnitOfWork;
+
+public class TestUnitOfWork extends DJJobTestCase {
+
+	/**
+	 * A unit of work whose statements containing a given text fail.
+	 */
+	static class BrokenUnitOfWork extends DJUnitOfWork {
+		private String broken;
+		private Connection proxy;
+
+		BrokenUnitOfWork(String broken) {
+			super(DBUtils.getDataSource());
+			this.broken = broken;
+		}
+
+		public Connection getConnection() throws SQLException {
+			final Connection conn = super.getConnection();
+			if (this.proxy == null) {
+				this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+						new Class<?>[] { Connection.class }, new InvocationHandler() {
+							public Object invoke(Object o, Method method, Object[] args) throws Throwable {
+								if (method.getName().equals("prepareStatement")
+										&& ((String) args[0]).contains(broken)) {
+									throw new SQLException("broken statement");
+								}
+								try {
+									return method.invoke(conn, args);
+								} catch (InvocationTargetException e) {
+									throw e.getCause();
+								}
+							}
+						});
+			}
+			return this.proxy;
+		}
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+	}
+
+	public void testCloseConn() throws Exception {
+		Connection conn = DBUtils.getConnection();
+		assertFalse(conn.isClosed());
+		DBUtils.closeConn(conn);
+		assertTrue(conn.isClosed());
+	}
+
+	public void testRollback() {
+		DJJob.enqueue(new HelloWorldJob("kept"), "default", null);
+
+		DJUnitOfWork unitOfWork = new DJUnitOfWork(DBUtils.getDataSource());
+		assertTrue(unitOfWork.begin());
+		unitOfWork.getDao(DJBase.jobsTable).execute("DELETE FROM " + DJBase.jobsTable,
+				Collections.<Object>emptyList());
+		// closing without commit rolls back
+		unitOfWork.close();
+		assertEquals(1L, count("SELECT COUNT(*) FROM jobs WHERE 1 = 1"));
+
+		assertTrue(unitOfWork.begin());
+		unitOfWork.getDao(DJBase.jobsTable).execute("DELETE FROM " + DJBase.jobsTable,
+				Collections.<Object>emptyList());
+		assertTrue(unitOfWork.commit());
+		unitOfWork.close();
+		assertEquals(0L, count("SELECT COUNT(*) FROM jobs WHERE 1 = 1"));
+	}
+
+	public void testFailedStatementRollsBack() {
+		long id = DJJob.enqueueAndGetId(new SumJob(1, 2, false), "default", null);
+		DJJob job = new DJJob("fartpig:", id, new HashMap<String, Object>());
+		assertTrue(job.acquireLock());
+
+		// the result is not stored, so the job is not deleted either
+		DJUnitOfWork unitOfWork = new BrokenUnitOfWork("_results");
+		job.setUnitOfWork(unitOfWork);
+		job.finish(new SumJob(1, 2, false));
+		assertEquals(1L, count("SELECT COUNT(*) FROM jobs WHERE id = " + id + " AND locked_by = 'fartpig:'"));
+
+		// the lock is not released, so no attempt is counted
+		unitOfWork.close();
+		unitOfWork = new BrokenUnitOfWork("locked_by = NULL");
+		job.setUnitOfWork(unitOfWork);
+		job.retryLater(60);
+		assertEquals(1L,
+				count("SELECT COUNT(*) FROM jobs WHERE id = " + id + " AND locked_by = 'fartpig:' AND attempts = 0"));
+		unitOfWork.close();
+	}
+
+	public void testOneCheckoutPerJob() {
+		DJJob.enqueue(new HelloWorldJob("pinned"), "default", null);
+		DJJob.enqueue(new FailingJob(), "default", null);
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("count", 2);
+		options.put("sleep", 1);
+		options.put("max_attempts", 1);
+		DJWorker worker = new DJWorker(options, "fartpig:");
+		assertEquals(2, worker.getPoolSize());
+
+		DJMetrics.reset();
+		worker.start();
+
+		// claim, load, perform and finish or fail each on one connection
+		assertEquals(2L, DJMetrics.getCount(DJMetrics.POOL_WAIT));
+		assertEquals(0L, count("SELECT COUNT(*) FROM jobs WHERE failed_at IS NULL"));
+		assertEquals(1L,
+				count("SELECT COUNT(*) FROM jobs WHERE failed_at IS NOT NULL AND locked_at IS NULL AND attempts = 1"));
+	}
+
+	public void testPoolSize() {
+		Map<String, Object> options = new HashMap<String, Object>();
+		List<String> queues = new ArrayList<String>();
+		queues.add("default");
+		queues.add("email");
+		options.put("queues", queues);
+		options.put("prefetch", 3);
+		options.put("scheduler_horizon", 10);
+		assertEquals(2 + 4 + 2, new DJWorker(options, "fartpig:").getPoolSize());
+	}
+}
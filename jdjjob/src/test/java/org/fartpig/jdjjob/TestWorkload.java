@@ -0,0 +1,109 @@
+package org.fartpig.jdjjob;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.fartpig.jdjjob.StatementReuseBenchmark.NoopJob;
+import org.fartpig.jdjjob.TestTenants.TenantJob;
+
+public class TestWorkload extends DJJobTestCase {
+
+	private File trace;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		trace = File.createTempFile("djjob", ".trace");
+	}
+
+	protected void tearDown() {
+		DJWorkloadRecorder.stop();
+		trace.delete();
+	}
+
+	private List<String[]> readTrace() throws IOException {
+		List<String[]> lines = new ArrayList<String[]>();
+		BufferedReader in = new BufferedReader(new FileReader(trace));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.startsWith("#")) {
+					lines.add(line.split("\t"));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return lines;
+	}
+
+	public void testRecordAnonymizedTrace() throws IOException {
+		DJWorkloadRecorder.start(trace);
+		DJJob.enqueue(new NoopJob(), "default", null);
+		DJJob.enqueue(new NoopJob(), "default", null);
+		DJJob.enqueue(new TenantJob("a secret customer"), "default", null);
+		runJobs(3);
+		DJWorkloadRecorder.stop();
+		assertFalse(DJWorkloadRecorder.isRecording());
+
+		int enqueued = 0;
+		int ran = 0;
+		Set<String> handlers = new HashSet<String>();
+		for (String[] line : readTrace()) {
+			assertEquals(5, line.length);
+			if (DJWorkloadRecorder.ENQUEUED.equals(line[0])) {
+				enqueued += 1;
+				handlers.add(line[3]);
+			} else {
+				assertEquals(DJWorkloadRecorder.RAN, line[0]);
+				ran += 1;
+			}
+			assertFalse(line[2].contains("default"));
+			assertFalse(line[3].contains("Job"));
+		}
+		assertEquals(3, enqueued);
+		assertEquals(3, ran);
+		assertEquals(2, handlers.size());
+	}
+
+	public void testReplayTrace() throws Exception {
+		Writer out = new FileWriter(trace);
+		out.write(DJWorkloadRecorder.HEADER + "\n");
+		for (int i = 0; i < 10; i++) {
+			out.write(String.format("E\t%d\tq%d\th1\t%d\n", i * 20, i % 2, 100 + i * 100));
+		}
+		out.write("R\t300\tq0\th1\t20\n");
+		out.write("R\t300\tq1\th1\t5\n");
+		out.close();
+
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put("workers", 2);
+		options.put("load_factor", 2.0);
+		options.put("enqueuers", 3);
+		Map<String, Object> workerOptions = new HashMap<String, Object>();
+		workerOptions.put("concurrency", 2);
+		options.put("worker_options", workerOptions);
+		DJWorkloadReplay replay = new DJWorkloadReplay(trace, options);
+		assertEquals(10, replay.getJobCount());
+		Map<String, Long> report = replay.run();
+
+		assertEquals(10L, (long) report.get("jobs"));
+		assertTrue(report.get("jobs_per_second") > 0);
+		assertTrue(report.get("latency_p50_ms") >= 5);
+		assertTrue(report.get("wait_p50_ms") <= report.get("wait_p99_ms"));
+		assertTrue(report.get("wait_p99_ms") <= report.get("wait_max_ms"));
+		assertEquals(0L, (long) report.get("enqueue_failed"));
+		assertTrue(report.get("enqueue_lag_p50_ms") <= report.get("enqueue_lag_max_ms"));
+		assertTrue(report.containsKey("claim_lost"));
+		assertEquals(0L, new DJJobQuery("replay_q0").count() + new DJJobQuery("replay_q1").count());
+	}
+}